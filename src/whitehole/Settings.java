@@ -41,6 +41,9 @@ public final class Settings {
     public static boolean getShowPaths() { return PREFERENCES.getBoolean("whitehole_showPaths", true); }
     public static boolean getDebugFakeColor() { return PREFERENCES.getBoolean("whitehole_debugFakeColor", false); }
     public static boolean getDebugFastDrag() { return PREFERENCES.getBoolean("whitehole_debugFastDrag", false); }
+    public static boolean getUseLod() { return PREFERENCES.getBoolean("whitehole_useLod", true); }
+    public static int getLodSimplifiedSize() { return PREFERENCES.getInt("whitehole_lodSimplifiedSize", 64); }
+    public static int getLodProxySize() { return PREFERENCES.getInt("whitehole_lodProxySize", 6); }
     
     public static void setShowAxis(boolean val) { PREFERENCES.putBoolean("whitehole_showAxis", val); }
     public static void setShowAreas(boolean val) { PREFERENCES.putBoolean("whitehole_showAreas", val); }
@@ -49,6 +52,9 @@ public final class Settings {
     public static void setShowPaths(boolean val) { PREFERENCES.putBoolean("whitehole_showPaths", val); }
     public static void setDebugFakeColor(boolean val) { PREFERENCES.putBoolean("whitehole_debugFakeColor", val); }
     public static void setDebugFastDrag(boolean val) { PREFERENCES.putBoolean("whitehole_debugFastDrag", val); }
+    public static void setUseLod(boolean val) { PREFERENCES.putBoolean("whitehole_useLod", val); }
+    public static void setLodSimplifiedSize(int val) { PREFERENCES.putInt("whitehole_lodSimplifiedSize", val); }
+    public static void setLodProxySize(int val) { PREFERENCES.putInt("whitehole_lodProxySize", val); }
     
     // Controls
     public static boolean getUseReverseRot() { return PREFERENCES.getBoolean("whitehole_useReverseRot", false); }
@@ -47,6 +47,12 @@ public class SettingsForm extends javax.swing.JDialog {
         lblAppearance = new javax.swing.JLabel();
         lblControls = new javax.swing.JLabel();
         chkUseDarkMode = new javax.swing.JCheckBox();
+        chkUseLod = new javax.swing.JCheckBox();
+        pnlLodSizes = new javax.swing.JPanel();
+        lblLodSimplified = new javax.swing.JLabel();
+        spnLodSimplified = new javax.swing.JSpinner();
+        lblLodProxy = new javax.swing.JLabel();
+        spnLodProxy = new javax.swing.JSpinner();
         chkDebugFakeColor = new javax.swing.JCheckBox();
         chkDebugFastDrag = new javax.swing.JCheckBox();
         chkUseReverseRot = new javax.swing.JCheckBox();
@@ -100,6 +106,51 @@ public class SettingsForm extends javax.swing.JDialog {
         gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
         pnlSettings.add(chkUseDarkMode, gridBagConstraints);
 
+        chkUseLod.setSelected(Settings.getUseLod());
+        chkUseLod.setText("Simplify distant objects");
+        chkUseLod.addItemListener(new java.awt.event.ItemListener() {
+            public void itemStateChanged(java.awt.event.ItemEvent evt) {
+                chkUseLodItemStateChanged(evt);
+            }
+        });
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.BOTH;
+        gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
+        pnlSettings.add(chkUseLod, gridBagConstraints);
+
+        pnlLodSizes.setLayout(new java.awt.GridLayout(2, 2, 4, 2));
+
+        lblLodSimplified.setText("Simplify below (pixels)");
+        pnlLodSizes.add(lblLodSimplified);
+
+        spnLodSimplified.setModel(new javax.swing.SpinnerNumberModel(Settings.getLodSimplifiedSize(), 1, 1024, 1));
+        spnLodSimplified.setEnabled(Settings.getUseLod());
+        spnLodSimplified.addChangeListener(new javax.swing.event.ChangeListener() {
+            public void stateChanged(javax.swing.event.ChangeEvent evt) {
+                spnLodSimplifiedStateChanged(evt);
+            }
+        });
+        pnlLodSizes.add(spnLodSimplified);
+
+        lblLodProxy.setText("Draw as box below (pixels)");
+        pnlLodSizes.add(lblLodProxy);
+
+        spnLodProxy.setModel(new javax.swing.SpinnerNumberModel(Settings.getLodProxySize(), 0, 1024, 1));
+        spnLodProxy.setEnabled(Settings.getUseLod());
+        spnLodProxy.addChangeListener(new javax.swing.event.ChangeListener() {
+            public void stateChanged(javax.swing.event.ChangeEvent evt) {
+                spnLodProxyStateChanged(evt);
+            }
+        });
+        pnlLodSizes.add(spnLodProxy);
+
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.BOTH;
+        gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
+        pnlSettings.add(pnlLodSizes, gridBagConstraints);
+
         chkDebugFakeColor.setSelected(Settings.getDebugFakeColor());
         chkDebugFakeColor.setText("[Debug] Render picking colors");
         chkDebugFakeColor.addItemListener(new java.awt.event.ItemListener() {
@@ -217,6 +268,21 @@ public class SettingsForm extends javax.swing.JDialog {
         setLocationRelativeTo(null);
     }// </editor-fold>//GEN-END:initComponents
 
+    private void chkUseLodItemStateChanged(java.awt.event.ItemEvent evt) {//GEN-FIRST:event_chkUseLodItemStateChanged
+        boolean useLod = evt.getStateChange() == ItemEvent.SELECTED;
+        Settings.setUseLod(useLod);
+        spnLodSimplified.setEnabled(useLod);
+        spnLodProxy.setEnabled(useLod);
+    }//GEN-LAST:event_chkUseLodItemStateChanged
+
+    private void spnLodSimplifiedStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_spnLodSimplifiedStateChanged
+        Settings.setLodSimplifiedSize((int)spnLodSimplified.getValue());
+    }//GEN-LAST:event_spnLodSimplifiedStateChanged
+
+    private void spnLodProxyStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_spnLodProxyStateChanged
+        Settings.setLodProxySize((int)spnLodProxy.getValue());
+    }//GEN-LAST:event_spnLodProxyStateChanged
+
     private void chkDebugFakeColorItemStateChanged(java.awt.event.ItemEvent evt) {//GEN-FIRST:event_chkDebugFakeColorItemStateChanged
         Settings.setDebugFakeColor(evt.getStateChange() == ItemEvent.SELECTED);
     }//GEN-LAST:event_chkDebugFakeColorItemStateChanged
@@ -293,13 +359,19 @@ public class SettingsForm extends javax.swing.JDialog {
     private javax.swing.JCheckBox chkDebugFakeColor;
     private javax.swing.JCheckBox chkDebugFastDrag;
     private javax.swing.JCheckBox chkUseDarkMode;
+    private javax.swing.JCheckBox chkUseLod;
     private javax.swing.JCheckBox chkUseReverseRot;
     private javax.swing.JCheckBox chkUseWASD;
     private javax.swing.JLabel lblAppearance;
     private javax.swing.JLabel lblControls;
+    private javax.swing.JLabel lblLodProxy;
+    private javax.swing.JLabel lblLodSimplified;
     private javax.swing.JLabel lblPosition;
     private javax.swing.JLabel lblRotation;
     private javax.swing.JLabel lblScale;
+    private javax.swing.JPanel pnlLodSizes;
     private javax.swing.JPanel pnlSettings;
+    private javax.swing.JSpinner spnLodProxy;
+    private javax.swing.JSpinner spnLodSimplified;
     // End of variables declaration//GEN-END:variables
 }
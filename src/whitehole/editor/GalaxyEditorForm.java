@@ -33,6 +33,10 @@ import whitehole.Whitehole;
 import whitehole.db.GalaxyNames;
 import whitehole.rendering.GLRenderer;
 import whitehole.rendering.GLRenderer.RenderMode;
+import whitehole.rendering.DrawList;
+import whitehole.rendering.PickingBuffer;
+import whitehole.rendering.RayHit;
+import whitehole.rendering.ModelPreloader;
 import whitehole.rendering.RendererCache;
 import whitehole.rendering.RendererFactory;
 import whitehole.smg.Bcsv;
@@ -40,6 +44,7 @@ import whitehole.smg.GalaxyArchive;
 import whitehole.smg.StageArchive;
 import whitehole.smg.object.*;
 import whitehole.util.CheckBoxList;
+import whitehole.math.Frustum;
 import whitehole.math.Matrix4;
 import whitehole.util.PropertyGrid;
 import whitehole.math.RotationMatrix;
@@ -99,12 +104,17 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
     private GLRenderer.RenderInfo renderInfo;
     private final HashMap<String, int[]> objDisplayLists = new HashMap();
     private final HashMap<Integer, int[]> zoneDisplayLists = new HashMap();
-    private final Queue<String> rerenderTasks = new PriorityQueue();
+    private final RerenderQueue rerenderTasks = new RerenderQueue();
+    private final DrawList drawList = new DrawList();
+    private int drawListScenarioID = -1; // scenario the draw list was built for, -1 when it is outdated
     private GLCanvas glCanvas;
     private boolean initializedRenderer = false;
     
     // Camera & view
     private Matrix4 modelViewMatrix;
+    private Matrix4 projectionMatrix = new Matrix4();
+    private final Matrix4 viewProjectionMatrix = new Matrix4();
+    private final Frustum viewFrustum = new Frustum();
     private float camDistance = 1.0f;
     private final Vec2f camRotation = new Vec2f(0.0f, 0.0f);
     private final Vec3f camPosition = new Vec3f(0.0f, 0.0f, 0.0f);
@@ -117,7 +127,9 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
     private Point mousePos = new Point(-1, 1);
     private boolean isDragging = false;
     private boolean pickingCapture = false;
-    private final IntBuffer pickingFrameBuffer = IntBuffer.allocate(9);
+    private boolean pickingRequested = true;
+    private final PickingBuffer pickingBuffer = new PickingBuffer();
+    private final IntBuffer pickingFrameBuffer = IntBuffer.allocate(PickingBuffer.NUM_COLORS);
     private final FloatBuffer pickingDepthBuffer = FloatBuffer.allocate(1);
     private float pickingDepth = 1.0f;
     
@@ -603,7 +615,8 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
     }
     
     private void updateZone(String zone) {
-        rerenderTasks.add("zone:" + zone);
+        rerenderTasks.addZone(zone);
+        drawListScenarioID = -1; // the zone editor may have changed any of its objects
         glCanvas.repaint();
     }
     
@@ -700,7 +713,12 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
         }
         
         populateObjectNodeTree(zoneModeLayerBitmask);
-        rerenderTasks.add("allobjects:");
+        rerenderTasks.addScenarios();
+        
+        for (AbstractObj obj : curZoneArc.objects.get(layerName.toLowerCase())) {
+            refreshDrawList(obj);
+        }
+        
         glCanvas.repaint();
     }
     
@@ -1296,8 +1314,8 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                 pnlObjectSettings.setFieldValue("pnt2_z", pointObj.point2.z);
                 pnlObjectSettings.repaint();
                 
-                rerenderTasks.add("path:" + pointObj.path.uniqueID);
-                rerenderTasks.add("zone:" + pointObj.stage.stageName);
+                rerenderTasks.addPath(pointObj.path.uniqueID);
+                rerenderTasks.addZone(pointObj.stage.stageName);
             }
             else {
                 addUndoEntry("changeObj", obj);
@@ -1308,8 +1326,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                 pnlObjectSettings.setFieldValue("pos_z", obj.position.z);
                 pnlObjectSettings.repaint();
                 
-                rerenderTasks.add("object:" + obj.uniqueID);
-                rerenderTasks.add("zone:" + obj.stage.stageName);
+                updateTransform(obj);
             }
             
             lblStatus.setText(String.format("Pasted position %s.", COPY_POSITION.toString()));
@@ -1333,8 +1350,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             pnlObjectSettings.setFieldValue("dir_z", obj.rotation.z);
             pnlObjectSettings.repaint();
             
-            rerenderTasks.add("object:" + obj.uniqueID);
-            rerenderTasks.add("zone:" + obj.stage.stageName);
+            updateTransform(obj);
             
             lblStatus.setText(String.format("Pasted rotation %s.", COPY_ROTATION.toString()));
             
@@ -1357,8 +1373,10 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             pnlObjectSettings.setFieldValue("scale_z", obj.scale.z);
             pnlObjectSettings.repaint();
             
-            rerenderTasks.add("object:" + obj.uniqueID);
-            rerenderTasks.add("zone:" + obj.stage.stageName);
+            if(obj.renderer != null && obj.renderer.hasSpecialScaling())
+                rerenderTasks.addObject(obj.uniqueID);
+            
+            updateTransform(obj);
             
             lblStatus.setText(String.format("Pasted scale %s.", COPY_SCALE.toString()));
             
@@ -1452,7 +1470,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
 
     private void tgbDeselectActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_tgbDeselectActionPerformed
         for (AbstractObj obj : selectedObjs.values()) {
-            addRerenderTask("zone:" + obj.stage.stageName);
+            rerenderTasks.addZone(obj.stage.stageName);
         }
         
         selectedObjs.clear();
@@ -1494,10 +1512,10 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             AbstractObj obj =(AbstractObj)tnode.object;
             if(evt.isAddedPath(path)) {
                 selectedObjs.put(obj.uniqueID, obj);
-                addRerenderTask("zone:"+obj.stage.stageName);
+                rerenderTasks.addZone(obj.stage.stageName);
             } else {
                 selectedObjs.remove(obj.uniqueID);
-                addRerenderTask("zone:"+obj.stage.stageName);
+                rerenderTasks.addZone(obj.stage.stageName);
             }
         }
 
@@ -1632,7 +1650,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
         // Resolve position
         Vec3f position;
         if(point instanceof Point) {
-            position = get3DCoords((Point)point, Math.min(pickingDepth, 1f));
+            position = getSurfaceCoords((Point)point);
         }
         else {
             position = (Vec3f)point;
@@ -1684,8 +1702,8 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             newNode = newnode.addObject(thepoint);
             treeNodeList.put(thepoint.uniqueID, newNode);
 
-            rerenderTasks.add("path:" + thepath.uniqueID);
-            rerenderTasks.add("zone:" + curZone);
+            rerenderTasks.addPath(thepath.uniqueID);
+            rerenderTasks.addZone(curZone);
         }
         // Add new path point?
         else if (objtype.equals("pathpoint")) {
@@ -1713,8 +1731,8 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             newNode = listnode.addObject(thepoint);
             treeNodeList.put(thepoint.uniqueID, newNode);
             
-            rerenderTasks.add("path:" + thepath.uniqueID);
-            rerenderTasks.add("zone:" + thepath.stage.stageName);
+            rerenderTasks.addPath(thepath.uniqueID);
+            rerenderTasks.addZone(thepath.stage.stageName);
         }
         else {
             newobj = null;
@@ -1760,8 +1778,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             treeNodeList.put(uniqueID, newNode);
             
             // Update rendering
-            rerenderTasks.add(String.format("addobj:%1$d", uniqueID));
-            rerenderTasks.add("zone:" + curZone);
+            rerenderTasks.addNewObject(uniqueID);
         }
         
         // Update tree node model and scroll to new node
@@ -1781,8 +1798,8 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             addUndoEntry("deleteObj", obj);
             
             obj.stage.objects.get(obj.layerKey).remove(obj);
-            rerenderTasks.add(String.format("delobj:%1$d", uniqueID));
-            rerenderTasks.add("zone:" + obj.stage.stageName);
+            drawList.remove(obj); // the renderer may only be closed a few frames later
+            rerenderTasks.deleteObject(uniqueID);
 
             if(treeNodeList.containsKey(uniqueID)) {
                 DefaultTreeModel objlist =(DefaultTreeModel)treeObjects.getModel();
@@ -1800,7 +1817,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                 obj.path.stage.paths.remove(obj.path);
                 globalPathList.remove(obj.path.uniqueID);
                 
-                rerenderTasks.add("zone:"+obj.path.stage.stageName);
+                rerenderTasks.addZone(obj.path.stage.stageName);
 
                 if(treeNodeList.containsKey(obj.path.uniqueID)) {
                     DefaultTreeModel objlist =(DefaultTreeModel)treeObjects.getModel();
@@ -1811,8 +1828,8 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                 }
             }
             else {
-                rerenderTasks.add(String.format("path:%1$d", obj.path.uniqueID));
-                rerenderTasks.add("zone:"+obj.path.stage.stageName);
+                rerenderTasks.addPath(obj.path.uniqueID);
+                rerenderTasks.addZone(obj.path.stage.stageName);
 
                 if(treeNodeList.containsKey(uniqueID)) {
                     DefaultTreeModel objlist =(DefaultTreeModel)treeObjects.getModel();
@@ -2048,7 +2065,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     pnlObjectSettings.setFieldValue("pos_y", obj.position.y);
                     pnlObjectSettings.setFieldValue("pos_z", obj.position.z);
                     pnlObjectSettings.repaint();
-                    addRerenderTask("zone:"+obj.stage.stageName);
+                    updateTransform(obj);
                     break;
                 case "deleteObj":
                     addingObject = change.objType + "|" + change.name;
@@ -2065,8 +2082,6 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
 
                     if(change.scale != null)
                         newobj.scale =(Vec3f) change.scale.clone();
-
-                    addRerenderTask("zone:" + newobj.stage.stageName);
                     break;
                 case "addObj":
                     deleteObject(change.id);
@@ -2156,6 +2171,24 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
         return ret;
     }
     
+    /**
+     * Returns the point where the mouse ray at {@code pt} first hits an object. If there is none within a distance of 1
+     * from the camera, returns the point at that distance.
+     */
+    private Vec3f getSurfaceCoords(Point pt) {
+        Vec3f origin = new Vec3f(camPosition.x * SCALE_DOWN, camPosition.y * SCALE_DOWN, camPosition.z * SCALE_DOWN);
+        Vec3f dir = get3DCoords(pt, 1f);
+        Vec3f.subtract(dir, origin, dir);
+        
+        RayHit hit = new RayHit();
+        hit.distance = 1f;
+        
+        if(drawList.raycast(origin, dir, hit))
+            return hit.point;
+        
+        return get3DCoords(pt, 1f);
+    }
+    
     /**
      * Moves the selection by {@code delta}.
      * @param delta the distance to move the selection by
@@ -2200,8 +2233,8 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                 pnlObjectSettings.setFieldValue("pnt2_y", selectedPathPoint.point2.y);
                 pnlObjectSettings.setFieldValue("pnt2_z", selectedPathPoint.point2.z);
                 pnlObjectSettings.repaint();
-                rerenderTasks.add(String.format("path:%1$d", selectedPathPoint.path.uniqueID));
-                rerenderTasks.add("zone:"+selectedPathPoint.path.stage.stageName);
+                rerenderTasks.addPath(selectedPathPoint.path.uniqueID);
+                rerenderTasks.addZone(selectedPathPoint.path.stage.stageName);
             } else {
                 //if(selectedObj instanceof StageObj)
                 //    return;
@@ -2215,7 +2248,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                 pnlObjectSettings.setFieldValue("pos_y", selectedObj.position.y);
                 pnlObjectSettings.setFieldValue("pos_z", selectedObj.position.z);
                 pnlObjectSettings.repaint();
-                addRerenderTask("zone:"+selectedObj.stage.stageName);
+                updateTransform(selectedObj);
             }
             glCanvas.repaint();
         }
@@ -2240,10 +2273,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             pnlObjectSettings.setFieldValue("dir_y", selectedObj.rotation.y);
             pnlObjectSettings.setFieldValue("dir_z", selectedObj.rotation.z);
             pnlObjectSettings.repaint();
-            
-            addRerenderTask("zone:"+selectedObj.stage.stageName);
-            addRerenderTask("object:"+selectedObj.uniqueID);
-            glCanvas.repaint();
+            updateTransform(selectedObj);
         }
     }
     
@@ -2274,10 +2304,11 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             pnlObjectSettings.setFieldValue("scale_y", selectedObj.scale.y);
             pnlObjectSettings.setFieldValue("scale_z", selectedObj.scale.z);
             pnlObjectSettings.repaint();
-
-            addRerenderTask("zone:"+selectedObj.stage.stageName);
-            addRerenderTask("object:"+selectedObj.uniqueID);
-            glCanvas.repaint();
+            
+            if(selectedObj.renderer != null && selectedObj.renderer.hasSpecialScaling())
+                rerenderTasks.addObject(selectedObj.uniqueID);
+            
+            updateTransform(selectedObj);
         }
     }
     
@@ -2335,7 +2366,6 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
         offsetSelectionBy(delta);
 
         lastDist = curDist;
-        rerenderTasks.add("zone:" + curZone);
         pnlObjectSettings.repaint();
         glCanvas.repaint();
         unsavedChanges = true;
@@ -2394,7 +2424,6 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             scaleSelectionBy(delta);
         
         lastDist = curDist;
-        rerenderTasks.add("zone:" + curZone);
         pnlObjectSettings.repaint();
         glCanvas.repaint();
         unsavedChanges = true;
@@ -2437,7 +2466,6 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
         rotateSelectionBy(delta);
 
         lastDist = curDist;
-        rerenderTasks.add("zone:" + curZone);
         pnlObjectSettings.repaint();
         glCanvas.repaint();
         unsavedChanges = true;
@@ -2680,8 +2708,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
 							break;
 	    			default:System.out.println("Invalid axis");
 	    		}
-        		rerenderTasks.add("zone:"+selectedObj.stage.stageName);
-                glCanvas.repaint();//redraw the objects
+        		updateTransform(selectedObj);//redraw the objects
         	}
         	if(propname.startsWith("group_move_")){
         		axis = propname.substring(propname.length()-1);
@@ -2726,8 +2753,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
 							break;
         			default:System.out.println("invalid axis");
         		}
-        		rerenderTasks.add("zone:"+selectedObj.stage.stageName);
-                glCanvas.repaint();
+        		updateTransform(selectedObj);
         	}
             // Path point objects, as they work a bit differently
             if(selectedObj instanceof PathPointObj) {
@@ -2747,8 +2773,8 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                         case "pnt2_z": selectedPathPoint.point2.z =(float)value; break;
                     }
                     
-                    rerenderTasks.add("path:" + selectedPathPoint.path.uniqueID);
-                    rerenderTasks.add("zone:"+selectedObj.stage.stageName);
+                    rerenderTasks.addPath(selectedPathPoint.path.uniqueID);
+                    rerenderTasks.addZone(selectedObj.stage.stageName);
                     glCanvas.repaint();
                 }
                 
@@ -2758,7 +2784,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     switch(property) {
                         case "closed": {
                             selectedPathPoint.path.data.put(property,(boolean) value ? "CLOSE" : "OPEN");
-                            rerenderTasks.add("path:" + selectedPathPoint.path.uniqueID);
+                            rerenderTasks.addPath(selectedPathPoint.path.uniqueID);
                             glCanvas.repaint();
                             break;
                         }
@@ -2793,8 +2819,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     DefaultTreeModel objlist =(DefaultTreeModel)treeObjects.getModel();
                     objlist.nodeChanged(treeNodeList.get(selectedObj.uniqueID));
 
-                    rerenderTasks.add("object:"+Integer.toString(selectedObj.uniqueID));
-                    rerenderTasks.add("zone:"+selectedObj.stage.stageName);
+                    rerenderTasks.addObject(selectedObj.uniqueID);
                     glCanvas.repaint();
                 }
                 else if(propname.equals("zone")) {
@@ -2825,9 +2850,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     }
 
                     selectionChanged();
-                    rerenderTasks.add("zone:"+oldzone);
-                    rerenderTasks.add("zone:"+newzone);
-                    glCanvas.repaint();
+                    refreshDrawList(selectedObj);
                 }
                 else if(propname.equals("layer")) {
                     String oldlayer = selectedObj.layerKey;
@@ -2840,8 +2863,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     DefaultTreeModel objlist =(DefaultTreeModel)treeObjects.getModel();
                     objlist.nodeChanged(treeNodeList.get(selectedObj.uniqueID));
 
-                    rerenderTasks.add("zone:"+selectedObj.stage.stageName);
-                    glCanvas.repaint();
+                    refreshDrawList(selectedObj);
                 }
                 else if(propname.startsWith("pos_") || propname.startsWith("dir_") || propname.startsWith("scale_")) {
                     switch(propname) {
@@ -2857,35 +2879,26 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     }
 
                     if(propname.startsWith("scale_") && selectedObj.renderer.hasSpecialScaling())
-                        rerenderTasks.add("object:"+Integer.toString(selectedObj.uniqueID));
+                        rerenderTasks.addObject(selectedObj.uniqueID);
                     
-                    if (selectedObj instanceof StageObj) {
-                        rerenderTasks.add("zone:"+selectedObj.name);
-                    }
-                    else {
-                        rerenderTasks.add("zone:"+selectedObj.stage.stageName);
-                    }
-                    glCanvas.repaint();
+                    updateTransform(selectedObj);
                 }
                 else {
                     propertyChanged(propname, value, selectedObj.data);
                     if(propname.startsWith("Obj_arg")) {
                         int argnum = Integer.parseInt(propname.substring(7));
                         if(selectedObj.renderer.boundToObjArg(argnum)) {
-                            rerenderTasks.add("object:"+Integer.toString(selectedObj.uniqueID));
-                            rerenderTasks.add("zone:"+selectedObj.stage.stageName);
+                            rerenderTasks.addObject(selectedObj.uniqueID);
                             glCanvas.repaint();
                         }
                     }
                     else if (propname.equals("ShapeModelNo")) {
-                        rerenderTasks.add("object:"+Integer.toString(selectedObj.uniqueID));
-                        rerenderTasks.add("zone:"+selectedObj.stage.stageName);
+                        rerenderTasks.addObject(selectedObj.uniqueID);
                         glCanvas.repaint();
                     }
                     else if(propname.equals("Range")) {
                         if(selectedObj.renderer.boundToProperty()) {
-                            rerenderTasks.add("object:"+Integer.toString(selectedObj.uniqueID));
-                            rerenderTasks.add("zone:"+selectedObj.stage.stageName);
+                            rerenderTasks.addObject(selectedObj.uniqueID);
                             glCanvas.repaint();
                         }
                     }
@@ -2893,8 +2906,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                         DefaultTreeModel objlist =(DefaultTreeModel)treeObjects.getModel();
                         objlist.nodeChanged(treeNodeList.get(selectedObj.uniqueID));
                         if(selectedObj.getClass() == AreaObj.class || selectedObj.getClass() == CameraObj.class) {
-                            rerenderTasks.add("object:"+Integer.toString(selectedObj.uniqueID));
-                            rerenderTasks.add("zone:"+selectedObj.stage.stageName);
+                            rerenderTasks.addObject(selectedObj.uniqueID);
                             glCanvas.repaint();
                         }
                     }
@@ -2913,43 +2925,122 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
     // Actual galaxy scene renderer
     
     /**
-     * Rerenders all objects in all zones.
+     * Recompiles the lists of all zones and rebuilds the draw list.
      */
     public void renderAllObjects() {
-        for(String zone : zoneArchives.keySet())
-            rerenderTasks.add("zone:" + zone);
+        rerenderTasks.addAllObjects();
+        drawListScenarioID = -1;
+        glCanvas.repaint();
+    }
+    
+    /**
+     * Returns true if {@code obj} is visible in the current scenario, i.e. it is not hidden or filtered out by the toggles
+     * and its layer is active in its zone.
+     */
+    private boolean isDrawn(AbstractObj obj) {
+        if(obj.isHidden || obj.renderer == null || obj instanceof PathPointObj)
+            return false;
+        
+        if(obj instanceof AreaObj && !tgbShowAreas.isSelected())
+            return false;
+        
+        if(obj instanceof CameraObj && !tgbShowCameras.isSelected())
+            return false;
+        
+        if(obj.layerKey.equals("common"))
+            return true;
+        
+        int layermask;
+        
+        if(isGalaxyMode)
+            layermask = galaxyArchive.scenarioData.get(curScenarioID).getInt(obj.stage.stageName, 0);
+        else
+            layermask = zoneModeLayerBitmask;
+        
+        return (layermask & (1 << (obj.layerKey.charAt(5) - 'a'))) != 0;
+    }
+    
+    /**
+     * Adds, updates or removes the draw list entry of {@code obj} after its visibility, layer or zone changed.
+     */
+    private void refreshDrawList(AbstractObj obj) {
+        if(isDrawn(obj))
+            drawList.add(obj);
+        else
+            drawList.remove(obj);
         
         glCanvas.repaint();
     }
     
     /**
-     * Adds {@code task} to the queue if it is not already in the rerender queue.
-     * @param task the task to add
+     * Applies a changed position, rotation or scale of {@code obj}. Moving an object only touches its draw list entry,
+     * moving a zone recompiles the scenario lists and rebuilds the draw list.
      */
-    public void addRerenderTask(String task) {
-        if(!rerenderTasks.contains(task))
-            rerenderTasks.add(task);
+    private void updateTransform(AbstractObj obj) {
+        if(obj instanceof StageObj) {
+            rerenderTasks.addScenarios();
+            drawListScenarioID = -1;
+        }
+        else
+            drawList.update(obj);
+        
+        glCanvas.repaint();
     }
     
     private class GalaxyRenderer implements GLEventListener, MouseListener, MouseMotionListener, MouseWheelListener, KeyListener {
-        private class AsyncPrerenderer implements Runnable {
-            private final GL2 gl;
-            
-            public AsyncPrerenderer(GL2 gl) {
-                this.gl = gl;
+        /**
+         * Initializes the renderers of all objects in small per-frame steps while their models are being loaded in
+         * the background, then compiles the display lists. This keeps the event thread responsive during loading.
+         */
+        private class Prerenderer {
+            private static final long FRAME_BUDGET = 12000000L; // nanoseconds of renderer setup per frame
+            
+            private final Queue<AbstractObj> pendingObjs;
+            private final int numObjs;
+            private boolean failed = false;
+            
+            public Prerenderer() {
+                pendingObjs = new ArrayDeque<>(isGalaxyMode ? globalObjList.values() : Collections.emptyList());
+                numObjs = pendingObjs.size();
+                
+                // Every finished model triggers a repaint, which continues the prerendering
+                for (AbstractObj obj : pendingObjs) {
+                    ModelPreloader.preload(this, RendererFactory.getSubstitutedModelName(obj.name, obj), glCanvas::repaint);
+                }
             }
             
-            @Override
-            public void run() {
+            /**
+             * Does one frame's worth of prerendering. Returns true once everything has been prerendered.
+             */
+            public boolean step(GL2 gl) {
+                if (failed) {
+                    return false;
+                }
+                
+                long start = System.nanoTime();
+                
                 try {
-                    gl.getContext().makeCurrent();
-                    
-                    if (isGalaxyMode) {
-                        for (AbstractObj obj : globalObjList.values()) {
-                            obj.initRenderer(renderInfo);
-                            obj.oldName = obj.name;
+                    while (!pendingObjs.isEmpty()) {
+                        AbstractObj obj = pendingObjs.peek();
+                        
+                        // Wait for the model instead of blocking the event thread on it
+                        if (!ModelPreloader.isReady(RendererFactory.getSubstitutedModelName(obj.name, obj))) {
+                            updateStatus();
+                            return false;
                         }
                         
+                        pendingObjs.poll();
+                        obj.initRenderer(renderInfo);
+                        obj.oldName = obj.name;
+                        
+                        if (System.nanoTime() - start > FRAME_BUDGET && !pendingObjs.isEmpty()) {
+                            updateStatus();
+                            glCanvas.repaint();
+                            return false;
+                        }
+                    }
+                    
+                    if (isGalaxyMode) {
                         for (PathObj obj : globalPathList.values()) {
                             obj.prerender(renderInfo);
                         }
@@ -2959,18 +3050,29 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     renderInfo.renderMode = GLRenderer.RenderMode.OPAQUE; renderAllObjects(gl);
                     renderInfo.renderMode = GLRenderer.RenderMode.TRANSLUCENT; renderAllObjects(gl);
                     
-                    gl.getContext().release();
-                    glCanvas.repaint();
+                    ModelPreloader.clear(this);
                     setDefaultStatus();
+                    return true;
                 }
                 catch(GLException ex) {
+                    failed = true;
+                    ModelPreloader.clear(this);
                     lblStatus.setForeground(Color.red);
                     lblStatus.setText("Failed to render level!" + ex.getMessage());
                     System.out.println(ex);
+                    return false;
                 }
             }
+            
+            private void updateStatus() {
+                lblStatus.setText(String.format("Prerendering %s, please wait... (%d/%d)", isGalaxyMode ? "galaxy" : "zone",
+                        numObjs - pendingObjs.size(), numObjs));
+            }
         }
         
+        private Prerenderer prerenderer;
+        
+        private static final long RERENDER_BUDGET = 8000000L; // nanoseconds of rerender tasks per frame
         private static final float FOV = (float)((70.0 * Math.PI) / 180.0);
         private static final float Z_NEAR = 0.001f;
         private static final float Z_FAR = 1000f;
@@ -3015,26 +3117,30 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             gl.glClear(GL2.GL_COLOR_BUFFER_BIT);
             lblStatus.setText("Prerendering "+(isGalaxyMode?"galaxy":"zone")+", please wait...");
             
-            SwingUtilities.invokeLater(new GalaxyRenderer.AsyncPrerenderer(gl));
+            prerenderer = new Prerenderer();
             
             initializedRenderer = true;
         }
         
-        private void renderSelectHighlight(GL2 gl, String zone)  {
-            boolean gotany = false;
-            for(AbstractObj obj : selectedObjs.values()) {
-                if(obj.stage.stageName.equals(zone)) {
-                    gotany = true;
-                    break;
-                }
-            }
-            if(!gotany) return;
+        /**
+         * Draws the highlight over the selected objects. The transforms come from the draw list, so selecting or moving
+         * objects does not have to recompile any display list.
+         */
+        private void renderSelectHighlight(GL2 gl)  {
+            if(selectedObjs.isEmpty())
+                return;
             
             RenderMode oldmode = doHighLightSettings(gl);
             
             for(AbstractObj obj : selectedObjs.values()) {
-                if(obj.stage.stageName.equals(zone) && !(obj instanceof PathPointObj))
-                    obj.render(renderInfo);
+                DrawList.Entry entry = drawList.getEntry(obj);
+                if(entry == null || obj instanceof PathPointObj)
+                    continue;
+                
+                gl.glPushMatrix();
+                gl.glMultMatrixf(entry.transform.m, 0);
+                gl.glCallList(entry.renderer.getDisplayList(RenderMode.PICKING));
+                gl.glPopMatrix();
             }
             
             gl.glDisable(GL2.GL_POLYGON_OFFSET_FILL);
@@ -3042,6 +3148,21 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
         }
         
         private void renderAllObjects(GL2 gl) {
+            if(isGalaxyMode) {
+                for(String zone : galaxyArchive.zoneList)
+                    prerenderZone(gl, zone);
+            }
+            else
+                prerenderZone(gl, galaxyName);
+            
+            compileScenarioLists(gl);
+        }
+        
+        /**
+         * Compiles the lists that call the layer lists of every zone placed in a scenario. The layer lists are called
+         * by name, so they can be recompiled without touching these.
+         */
+        private void compileScenarioLists(GL2 gl) {
             int mode = -1;
             switch(renderInfo.renderMode) {
                 case PICKING: mode = 0; break;
@@ -3050,9 +3171,6 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             }
             
             if(isGalaxyMode) {
-                for(String zone : galaxyArchive.zoneList)
-                    prerenderZone(gl, zone);
-                
                 for(int s = 0; s < galaxyArchive.scenarioData.size(); s++) {
 
                     int dl = zoneDisplayLists.get(s)[mode];
@@ -3068,8 +3186,6 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     gl.glEndList();
                 }
             } else {
-                prerenderZone(gl, galaxyName);
-                
                 if(!zoneDisplayLists.containsKey(0))
                      zoneDisplayLists.put(0, new int[] {0,0,0});
 
@@ -3096,6 +3212,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             
             StageArchive zonearc = zoneArchives.get(zone);
             Set<String> layers = zonearc.objects.keySet();
+            
             for(String layer : layers) {
                 String key = zone + "/" + layer.toLowerCase();
                 if(!objDisplayLists.containsKey(key))
@@ -3109,35 +3226,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                 
                 gl.glNewList(dl, GL2.GL_COMPILE);
                 
-                for(AbstractObj obj : zonearc.objects.get(layer)) {
-                    if(mode == 0) {
-                        int uniqueid = obj.uniqueID << 3;
-                        // set color to the object's uniqueID(RGB)
-                        gl.glColor4ub(
-                               (byte)(uniqueid >>> 16), 
-                               (byte)(uniqueid >>> 8), 
-                               (byte)uniqueid, 
-                               (byte)0xFF);
-                    }
-                    
-                    final String c = obj.getClass().getSimpleName();
-                    switch(c) {
-                        case "AreaObj":
-                            if(tgbShowAreas.isSelected())
-                                obj.render(renderInfo);
-                            break;
-                        case "CameraObj":
-                            if(tgbShowCameras.isSelected())
-                                obj.render(renderInfo);
-                            break;
-                        default:
-                            obj.render(renderInfo);
-                    }
-                }
-                
-                if(mode == 2 && !selectedObjs.isEmpty())
-                    renderSelectHighlight(gl, zone);
-                
+                // The objects and the selection highlight come from the draw list, only the paths are compiled here
                 // path rendering -- be lazy and hijack the display lists used for the Common objects
                 if(layer.equalsIgnoreCase("common")) {
                     for(PathObj pobj : zonearc.paths) {
@@ -3209,11 +3298,69 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             }
         }
         
+        /**
+         * Collects the objects of the current scenario together with their world transforms. This walks the zones in
+         * the same way as {@link #renderZone}.
+         */
+        private void buildDrawList(GL2 gl) {
+            drawList.clear(gl);
+            
+            if(isGalaxyMode) {
+                Bcsv.Entry scenario = galaxyArchive.scenarioData.get(curScenarioID);
+                collectZoneObjects(scenario, galaxyName, (int)scenario.get(galaxyName), 0, new Matrix4());
+            }
+            else
+                collectZoneObjects(null, galaxyName, zoneModeLayerBitmask, 99, new Matrix4());
+            
+            drawListScenarioID = curScenarioID;
+        }
+        
+        private void collectZoneObjects(Bcsv.Entry scenario, String zone, int layermask, int level, Matrix4 zoneTransform) {
+            String alphabet = "abcdefghijklmnop";
+            StageArchive zonearc = zoneArchives.get(zone);
+            drawList.setZoneTransform(zone, zoneTransform);
+            
+            for(int l = -1; l < 16; l++) {
+                if(l >= 0 && (layermask & (1 << l)) == 0)
+                    continue;
+                
+                String layer = l < 0 ? "common" : "layer" + alphabet.charAt(l);
+                List<AbstractObj> objs = zonearc.objects.get(layer);
+                
+                if(objs != null) {
+                    for(AbstractObj obj : objs) {
+                        if(isDrawn(obj))
+                            drawList.add(obj);
+                    }
+                }
+                
+                List<StageObj> subzones = zonearc.zones.get(layer);
+                
+                if(level >= 5 || subzones == null)
+                    continue;
+                
+                for(StageObj subzone : subzones) {
+                    Vec3f rot = new Vec3f((float)Math.toRadians(subzone.rotation.x), (float)Math.toRadians(subzone.rotation.y),
+                            (float)Math.toRadians(subzone.rotation.z));
+                    Matrix4 subzoneTransform = Matrix4.SRTToMatrix(new Vec3f(1f, 1f, 1f), rot, subzone.position);
+                    Matrix4.mult(subzoneTransform, zoneTransform, subzoneTransform);
+                    
+                    collectZoneObjects(scenario, subzone.name, (int)scenario.get(subzone.name), level + 1, subzoneTransform);
+                }
+            }
+        }
+        
         @Override
         public void dispose(GLAutoDrawable glad) {
             GL2 gl = glad.getGL().getGL2();
             renderInfo.drawable = glad;
             
+            drawList.close(gl);
+            pickingBuffer.close(gl);
+            
+            if(prerenderer != null)
+                ModelPreloader.clear(prerenderer);
+            
             for(int[] dls : zoneDisplayLists.values()) {
                 gl.glDeleteLists(dls[0], 1);
                 gl.glDeleteLists(dls[1], 1);
@@ -3234,57 +3381,76 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             RendererCache.clearRefContext();
         }
         
+        /**
+         * Runs the queued rerender tasks until the queue is empty or the frame's budget is used up. Leftover tasks are
+         * run in the next frame. At least one task runs per frame, so the queue always drains.
+         */
         private void doRerenderTasks() {
             try {
                 GL2 gl = renderInfo.drawable.getGL().getGL2();
+                long start = System.nanoTime();
 
                 while(!rerenderTasks.isEmpty()) {
-                    String[] task = rerenderTasks.poll().split(":");
-                    switch(task[0]) {
-                        case "zone":
-                            renderInfo.renderMode = GLRenderer.RenderMode.PICKING;      renderAllObjects(gl);
-                            renderInfo.renderMode = GLRenderer.RenderMode.OPAQUE;       prerenderZone(gl, task[1]);
-                            renderInfo.renderMode = GLRenderer.RenderMode.TRANSLUCENT;  prerenderZone(gl, task[1]);
+                    if(System.nanoTime() - start > RERENDER_BUDGET) {
+                        glCanvas.repaint();
+                        break;
+                    }
+                    
+                    RerenderQueue.Task task = rerenderTasks.poll();
+                    switch(task.type) {
+                        case ZONE:
+                            renderInfo.renderMode = GLRenderer.RenderMode.PICKING;      prerenderZone(gl, task.getZone());
+                            renderInfo.renderMode = GLRenderer.RenderMode.OPAQUE;       prerenderZone(gl, task.getZone());
+                            renderInfo.renderMode = GLRenderer.RenderMode.TRANSLUCENT;  prerenderZone(gl, task.getZone());
+                            break;
+                            
+                        case SCENARIOS:
+                            renderInfo.renderMode = GLRenderer.RenderMode.PICKING;      compileScenarioLists(gl);
+                            renderInfo.renderMode = GLRenderer.RenderMode.OPAQUE;       compileScenarioLists(gl);
+                            renderInfo.renderMode = GLRenderer.RenderMode.TRANSLUCENT;  compileScenarioLists(gl);
                             break;
 
-                        case "object":
+                        case OBJECT:
                             {
-                                int objid = Integer.parseInt(task[1]);
-                                AbstractObj obj = globalObjList.get(objid);
+                                AbstractObj obj = globalObjList.get(task.getID());
+                                drawList.remove(obj);
                                 obj.closeRenderer(renderInfo);
                                 obj.initRenderer(renderInfo);
                                 obj.oldName = obj.name;
+                                if(isDrawn(obj))
+                                    drawList.add(obj);
                             }
                             break;
 
-                        case "addobj":
+                        case ADD_OBJECT:
                             {
-                                int objid = Integer.parseInt(task[1]);
-                                AbstractObj obj = globalObjList.get(objid);
+                                AbstractObj obj = globalObjList.get(task.getID());
                                 obj.initRenderer(renderInfo);
                                 obj.oldName = obj.name;
+                                if(isDrawn(obj))
+                                    drawList.add(obj);
                             }
                             break;
 
-                        case "delobj":
+                        case DELETE_OBJECT:
                             {
-                                int objid = Integer.parseInt(task[1]);
-                                AbstractObj obj = globalObjList.get(objid);
+                                AbstractObj obj = globalObjList.get(task.getID());
+                                drawList.remove(obj);
                                 obj.closeRenderer(renderInfo);
                                 globalObjList.remove(obj.uniqueID);
                             }
                             break;
 
-                        case "allobjects":
+                        case ALL_OBJECTS:
                             renderInfo.renderMode = GLRenderer.RenderMode.PICKING;      renderAllObjects(gl);
                             renderInfo.renderMode = GLRenderer.RenderMode.OPAQUE;       renderAllObjects(gl);
                             renderInfo.renderMode = GLRenderer.RenderMode.TRANSLUCENT;  renderAllObjects(gl);
+                            drawListScenarioID = -1;
                             break;
 
-                        case "path":
+                        case PATH:
                             {
-                                int pathid = Integer.parseInt(task[1]);
-                                PathObj pobj = globalPathList.get(pathid);
+                                PathObj pobj = globalPathList.get(task.getID());
                                 pobj.prerender(renderInfo);
                             }
                             break;
@@ -3305,50 +3471,44 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             GL2 gl = glad.getGL().getGL2();
             renderInfo.drawable = glad;
             
+            if(prerenderer != null) {
+                gl.glClearColor(0.118f, 0.118f, 0.784f, 1f);
+                gl.glClear(GL2.GL_COLOR_BUFFER_BIT);
+                
+                if(!prerenderer.step(gl))
+                    return;
+                
+                prerenderer = null;
+            }
+            
             doRerenderTasks();
             
-            // Rendering pass 1 -- fakecolor rendering
-            // the results are used to determine which object is clicked
+            if(drawListScenarioID != curScenarioID)
+                buildDrawList(gl);
             
-            gl.glClearColor(0.118f, 0.118f, 0.784f, 1f);
-            gl.glClearDepth(1f);
-            gl.glClearStencil(0);
-            gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT | GL2.GL_STENCIL_BUFFER_BIT);
+            Matrix4.mult(modelViewMatrix, projectionMatrix, viewProjectionMatrix);
+            viewFrustum.set(viewProjectionMatrix);
+            Vec3f eye = new Vec3f(camPosition.x * SCALE_DOWN, camPosition.y * SCALE_DOWN, camPosition.z * SCALE_DOWN);
+            drawList.cull(gl, viewFrustum, eye, 1f / pixelFactorY);
             
-            gl.glMatrixMode(GL2.GL_MODELVIEW);
-            gl.glLoadMatrixf(modelViewMatrix.m, 0);
-            
-            try { gl.glUseProgram(0); } catch(GLException ex) { }
-            gl.glDisable(GL2.GL_ALPHA_TEST);
-            gl.glDisable(GL2.GL_BLEND);
-            gl.glDisable(GL2.GL_COLOR_LOGIC_OP);
-            gl.glDisable(GL2.GL_LIGHTING);
-            gl.glDisable(GL2.GL_DITHER);
-            gl.glDisable(GL2.GL_POINT_SMOOTH);
-            gl.glDisable(GL2.GL_LINE_SMOOTH);
-            gl.glDisable(GL2.GL_POLYGON_SMOOTH);
-            if(gl.isFunctionAvailable("glActiveTexture")) {
-                for(int i = 0; i < 8; i++) {
-                    try {
-                        gl.glActiveTexture(GL2.GL_TEXTURE0 + i);
-                        gl.glDisable(GL2.GL_TEXTURE_2D);
-                    } catch(GLException ex) {}
-                }
-            }
-            gl.glDisable(GL2.GL_TEXTURE_2D);
-            
-            gl.glCallList(zoneDisplayLists.get(curScenarioID)[0]);
-            
-            gl.glDepthMask(true);
+            // Rendering pass 1 -- fakecolor rendering
+            // the results are used to determine which object is clicked. The pass only runs after the cursor moved or
+            // clicked, and its result arrives one frame later.
             
-            gl.glFlush();
+            if(pickingBuffer.resolve(gl, pickingFrameBuffer, pickingDepthBuffer))
+                pickingDepth = -(Z_FAR * Z_NEAR /(pickingDepthBuffer.get(0) *(Z_FAR - Z_NEAR) - Z_FAR));
             
-            gl.glReadPixels(mousePos.x - 1, glad.getSurfaceHeight() - mousePos.y + 1, 3, 3, GL2.GL_BGRA, GL2.GL_UNSIGNED_INT_8_8_8_8_REV,
-                                                                                                                                pickingFrameBuffer);
-            gl.glReadPixels(mousePos.x, glad.getSurfaceHeight() - mousePos.y, 1, 1, GL2.GL_DEPTH_COMPONENT, GL2.GL_FLOAT, pickingDepthBuffer);
-            pickingDepth = -(Z_FAR * Z_NEAR /(pickingDepthBuffer.get(0) *(Z_FAR - Z_NEAR) - Z_FAR));
+            if(pickingRequested) {
+                pickingRequested = false;
+                
+                int height = glad.getSurfaceHeight();
+                pickingBuffer.begin(gl, glad.getSurfaceWidth(), height, mousePos.x - 1, height - mousePos.y + 1);
+                renderPickingPass(gl);
+                pickingBuffer.end(gl);
+            }
             
             if (Settings.getDebugFakeColor()) {
+                renderPickingPass(gl);
                 glad.swapBuffers();
                 return;
             }
@@ -3375,9 +3535,15 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
             }
             
+            // The zone lists only hold paths, the objects come from the draw list
+            renderInfo.renderMode = GLRenderer.RenderMode.OPAQUE;
+            drawList.render(renderInfo);
             gl.glCallList(zoneDisplayLists.get(curScenarioID)[1]);
             
+            renderInfo.renderMode = GLRenderer.RenderMode.TRANSLUCENT;
+            drawList.render(renderInfo);
             gl.glCallList(zoneDisplayLists.get(curScenarioID)[2]);
+            renderSelectHighlight(gl);
             
             gl.glDepthMask(true);
             try { gl.glUseProgram(0); } catch(GLException ex) { }
@@ -3412,6 +3578,43 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             // Apparently this prevents the infamous flickering glitch
             // glad.swapBuffers();
         }
+        
+        /**
+         * Draws the objects in their picking colors into the current framebuffer.
+         */
+        private void renderPickingPass(GL2 gl) {
+            gl.glClearColor(0.118f, 0.118f, 0.784f, 1f);
+            gl.glClearDepth(1f);
+            gl.glClearStencil(0);
+            gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT | GL2.GL_STENCIL_BUFFER_BIT);
+            
+            gl.glMatrixMode(GL2.GL_MODELVIEW);
+            gl.glLoadMatrixf(modelViewMatrix.m, 0);
+            
+            try { gl.glUseProgram(0); } catch(GLException ex) { }
+            gl.glDisable(GL2.GL_ALPHA_TEST);
+            gl.glDisable(GL2.GL_BLEND);
+            gl.glDisable(GL2.GL_COLOR_LOGIC_OP);
+            gl.glDisable(GL2.GL_LIGHTING);
+            gl.glDisable(GL2.GL_DITHER);
+            gl.glDisable(GL2.GL_POINT_SMOOTH);
+            gl.glDisable(GL2.GL_LINE_SMOOTH);
+            gl.glDisable(GL2.GL_POLYGON_SMOOTH);
+            if(gl.isFunctionAvailable("glActiveTexture")) {
+                for(int i = 0; i < 8; i++) {
+                    try {
+                        gl.glActiveTexture(GL2.GL_TEXTURE0 + i);
+                        gl.glDisable(GL2.GL_TEXTURE_2D);
+                    } catch(GLException ex) {}
+                }
+            }
+            gl.glDisable(GL2.GL_TEXTURE_2D);
+            
+            gl.glCallList(zoneDisplayLists.get(curScenarioID)[0]);
+            drawList.renderPicking(gl);
+            
+            gl.glDepthMask(true);
+        }
 
         private RenderMode doHighLightSettings(GL2 gl) {
             try { gl.glUseProgram(0); } catch(GLException ex) { }
@@ -3456,6 +3659,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             gl.glFrustum(-ymax * aspectRatio, ymax * aspectRatio,
                     -ymax, ymax,
                     Z_NEAR, Z_FAR);
+            projectionMatrix = Matrix4.createFrustum(-ymax * aspectRatio, ymax * aspectRatio, -ymax, ymax, Z_NEAR, Z_FAR);
             
             pixelFactorX =(2f * (float) Math.tan(FOV * 0.5f) * aspectRatio) / (float) width;
             pixelFactorY =(2f * (float) Math.tan(FOV * 0.5f)) / (float) height;
@@ -3484,6 +3688,16 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
         }
         
 
+        /**
+         * Makes sure that the picking results belong to the cursor's current position. A pick may still be requested or
+         * in flight when the button is released, so this draws frames until it has been issued and handed out. Frames
+         * that skip picking, like those during prerendering, end the loop after a few tries.
+         */
+        private void resolvePick() {
+            for(int frames = 0; frames < 3 && (pickingRequested || pickingBuffer.isPending()); frames++)
+                glCanvas.display();
+        }
+        
         @Override
         public void mouseDragged(MouseEvent e) {
             if(!initializedRenderer) return;
@@ -3492,6 +3706,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             float ydelta = e.getY() - mousePos.y;
             
             if(!isDragging && (Math.abs(xdelta) >= 3f || Math.abs(ydelta) >= 3f)) {
+                resolvePick();
                 pickingCapture = true;
                 isDragging = true;
             }
@@ -3583,6 +3798,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             if(!initializedRenderer) return;
             
             mousePos = e.getPoint();
+            pickingRequested = true;
             
             if(startingMousePos == null)
             {
@@ -3611,6 +3827,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             
             mouseButton = e.getButton();
             mousePos = e.getPoint();
+            pickingRequested = true;
             
             isDragging = false;
             keyTranslating = false;
@@ -3636,6 +3853,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     return;
                 }
 
+                resolvePick();
                 int val = pickingFrameBuffer.get(4);
                 if(    val != pickingFrameBuffer.get(1) ||
                         val != pickingFrameBuffer.get(3) ||
@@ -3724,7 +3942,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                                         treeObjects.removeSelectionPath(tp);
                                     }
                                     else
-                                        addRerenderTask("zone:"+unselobj.stage.stageName);
+                                        rerenderTasks.addZone(unselobj.stage.stageName);
                                 }
 
                                 selectionChanged();
@@ -3743,7 +3961,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                             listZones.setSelectedIndex(z);
                             break;
                         }
-                        addRerenderTask("zone:"+theobject.stage.stageName);
+                        rerenderTasks.addZone(theobject.stage.stageName);
 
                         if(wasselected) {
                             if(selectedObjs.size() == 1) {
@@ -3768,7 +3986,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                                 treeObjects.scrollPathToVisible(tp);
                             }
                             else {
-                                addRerenderTask("zone:"+theobject.stage.stageName);
+                                rerenderTasks.addZone(theobject.stage.stageName);
                                 selectionChanged();
                             }
                         } else {
@@ -3777,7 +3995,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                                 TreePath tp = new TreePath(((DefaultTreeModel)treeObjects.getModel()).getPathToRoot(tn));
                                 treeObjects.removeSelectionPath(tp);
                             } else {
-                                addRerenderTask("zone:"+theobject.stage.stageName);
+                                rerenderTasks.addZone(theobject.stage.stageName);
                                 selectionChanged();
                             }
                         }
@@ -3845,6 +4063,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
             }
             
             pickingCapture = true;
+            pickingRequested = true;
             e.getComponent().repaint();
         }
         
@@ -3872,7 +4091,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     for (AbstractObj obj : globalObjList.values()) {
                         if (obj.isHidden) {
                             obj.isHidden = false;
-                            rerenderTasks.add("zone:" + obj.stage.stageName);
+                            refreshDrawList(obj);
                         }
                     }
                     
@@ -3887,7 +4106,7 @@ public class GalaxyEditorForm extends javax.swing.JFrame {
                     
                     for (AbstractObj obj : hideObjs) {
                         obj.isHidden = !obj.isHidden;
-                        rerenderTasks.add("zone:" + obj.stage.stageName);
+                        refreshDrawList(obj);
                     }
                     
                     lblStatus.setText("Hid/unhid selection.");
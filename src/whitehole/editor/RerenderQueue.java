@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.editor;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The display list and renderer updates the galaxy editor still has to do on the GL thread. Each task type keeps its
+ * pending keys in insertion order, so adding a task that is already queued costs nothing. Tasks made redundant by a
+ * pending task are dropped, for example everything that {@link Type#ALL_OBJECTS} recompiles anyway.<br>
+ * Tasks are taken in the order of their types: renderers are set up and closed first, so that the display lists compiled
+ * afterwards use the current renderers.
+ */
+public class RerenderQueue {
+    public enum Type {
+        ADD_OBJECT,     // initializes the renderer of a new object
+        OBJECT,         // reinitializes the renderer of a changed object
+        DELETE_OBJECT,  // closes the renderer of a deleted object
+        PATH,           // recompiles a path
+        ZONE,           // recompiles the lists of one zone
+        SCENARIOS,      // recompiles the scenario lists
+        ALL_OBJECTS     // recompiles the lists of all zones and scenarios
+    }
+    
+    public static class Task {
+        public final Type type;
+        private final Object key;
+        
+        private Task(Type type, Object key) {
+            this.type = type;
+            this.key = key;
+        }
+        
+        /**
+         * Returns the unique ID of the object or path.
+         */
+        public int getID() {
+            return (Integer)key;
+        }
+        
+        public String getZone() {
+            return (String)key;
+        }
+    }
+    
+    private static final Type[] TYPES = Type.values();
+    private static final Object NO_KEY = new Object();
+    
+    private final EnumMap<Type, LinkedHashSet<Object>> pending = new EnumMap(Type.class);
+    private int size = 0;
+    
+    public RerenderQueue() {
+        for (Type type : TYPES) {
+            pending.put(type, new LinkedHashSet());
+        }
+    }
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    public void addObject(int uniqueID) {
+        // A new renderer is initialized anyway and a deleted one is not needed anymore
+        if (isPending(Type.ADD_OBJECT, uniqueID) || isPending(Type.DELETE_OBJECT, uniqueID)) {
+            return;
+        }
+        
+        add(Type.OBJECT, uniqueID);
+    }
+    
+    public void addNewObject(int uniqueID) {
+        add(Type.ADD_OBJECT, uniqueID);
+    }
+    
+    public void deleteObject(int uniqueID) {
+        remove(Type.OBJECT, uniqueID);
+        add(Type.DELETE_OBJECT, uniqueID);
+    }
+    
+    public void addPath(int uniqueID) {
+        add(Type.PATH, uniqueID);
+    }
+    
+    public void addZone(String zone) {
+        if (isPending(Type.ALL_OBJECTS, NO_KEY)) {
+            return;
+        }
+        
+        add(Type.ZONE, zone);
+    }
+    
+    public void addScenarios() {
+        if (isPending(Type.ALL_OBJECTS, NO_KEY)) {
+            return;
+        }
+        
+        add(Type.SCENARIOS, NO_KEY);
+    }
+    
+    public void addAllObjects() {
+        removeAll(Type.ZONE);
+        removeAll(Type.SCENARIOS);
+        add(Type.ALL_OBJECTS, NO_KEY);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Removes and returns the next task, or null if the queue is empty.
+     */
+    public Task poll() {
+        for (Type type : TYPES) {
+            Iterator<Object> keys = pending.get(type).iterator();
+            
+            if (keys.hasNext()) {
+                Object key = keys.next();
+                keys.remove();
+                size--;
+                return new Task(type, key);
+            }
+        }
+        
+        return null;
+    }
+    
+    private boolean isPending(Type type, Object key) {
+        return pending.get(type).contains(key);
+    }
+    
+    private void add(Type type, Object key) {
+        if (pending.get(type).add(key)) {
+            size++;
+        }
+    }
+    
+    private void remove(Type type, Object key) {
+        if (pending.get(type).remove(key)) {
+            size--;
+        }
+    }
+    
+    private void removeAll(Type type) {
+        LinkedHashSet<Object> keys = pending.get(type);
+        size -= keys.size();
+        keys.clear();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.math;
+
+/**
+ * The six clipping planes of a view volume, taken from a combined model-view and projection matrix.
+ */
+public class Frustum {
+    private final float[] planes = new float[24]; // left, right, bottom, top, near, far as (a, b, c, d)
+    
+    public Frustum() {}
+    
+    public Frustum(Matrix4 viewProjection) {
+        set(viewProjection);
+    }
+    
+    public void set(Matrix4 viewProjection) {
+        float[] m = viewProjection.m;
+        
+        for (int i = 0; i < 6; i++) {
+            int axis = i / 2;
+            float sign = (i & 1) == 0 ? 1f : -1f;
+            
+            float a = m[3] + sign * m[axis];
+            float b = m[7] + sign * m[4 + axis];
+            float c = m[11] + sign * m[8 + axis];
+            float d = m[15] + sign * m[12 + axis];
+            float len = (float)Math.sqrt(a * a + b * b + c * c);
+            
+            if (len > 0f) {
+                a /= len; b /= len; c /= len; d /= len;
+            }
+            
+            planes[i * 4] = a;
+            planes[i * 4 + 1] = b;
+            planes[i * 4 + 2] = c;
+            planes[i * 4 + 3] = d;
+        }
+    }
+    
+    /**
+     * Returns false if the box from {@code min} to {@code max} lies completely outside of one of the planes.
+     */
+    public boolean intersectsBox(Vec3f min, Vec3f max) {
+        for (int i = 0; i < 24; i += 4) {
+            float a = planes[i], b = planes[i + 1], c = planes[i + 2];
+            float x = a >= 0f ? max.x : min.x;
+            float y = b >= 0f ? max.y : min.y;
+            float z = c >= 0f ? max.z : min.z;
+            
+            if (a * x + b * y + c * z + planes[i + 3] < 0f) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+}
@@ -92,6 +92,17 @@ public class Matrix4 {
                 trans.x, trans.y, trans.z, 1f);
     }
     
+    /**
+     * Creates the same projection as {@code glFrustum}.
+     */
+    public static Matrix4 createFrustum(float left, float right, float bottom, float top, float near, float far) {
+        return new Matrix4(
+                2f * near / (right - left), 0f, 0f, 0f,
+                0f, 2f * near / (top - bottom), 0f, 0f,
+                (right + left) / (right - left), (top + bottom) / (top - bottom), -(far + near) / (far - near), -1f,
+                0f, 0f, -2f * far * near / (far - near), 0f);
+    }
+    
     public static Matrix4 SRTToMatrix(Vec3f scale, Vec3f rot, Vec3f trans) {
         Matrix4 ret = new Matrix4();
 
@@ -137,6 +148,29 @@ public class Matrix4 {
         out.m[12] = m12; out.m[13] = m13; out.m[14] = m14; out.m[15] = m15;
     }
     
+    /**
+     * Transforms the box from {@code min} to {@code max} by {@code mat} and stores the box that encloses the result in
+     * {@code outMin} and {@code outMax}.
+     */
+    public static void transformBounds(Matrix4 mat, Vec3f min, Vec3f max, Vec3f outMin, Vec3f outMax) {
+        float[] lo = { mat.m[12], mat.m[13], mat.m[14] };
+        float[] hi = { mat.m[12], mat.m[13], mat.m[14] };
+        float[] inLo = { min.x, min.y, min.z };
+        float[] inHi = { max.x, max.y, max.z };
+        
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                float a = mat.m[j * 4 + i] * inLo[j];
+                float b = mat.m[j * 4 + i] * inHi[j];
+                lo[i] += Math.min(a, b);
+                hi[i] += Math.max(a, b);
+            }
+        }
+        
+        outMin.x = lo[0]; outMin.y = lo[1]; outMin.z = lo[2];
+        outMax.x = hi[0]; outMax.y = hi[1]; outMax.z = hi[2];
+    }
+    
     // stolen from https://stackoverflow.com/questions/28267591/matrix-vector-multiplication
     public static float[] multiplyVec(float[] vec, float[] matrix) {
         float[] newV = new float[4];
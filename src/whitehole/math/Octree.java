@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.math;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+
+/**
+ * Loose octree over axis-aligned boxes. Every node's bounds are twice the size of its cell, so a box only depends on its
+ * center and size to find its node: it goes into the smallest cell that contains its center and is at least as large as
+ * its extent. Moving a box therefore never splits or merges anything. Nodes are created on demand, empty branches are
+ * pruned, and the root grows when boxes are inserted outside of it.
+ */
+public class Octree<T> {
+    private static class Node {
+        Node parent;
+        int octant;
+        final float cx, cy, cz, half; // cell center and half size, the node bounds are twice as large
+        final ArrayList<Item> items = new ArrayList();
+        Node[] children = null;
+        int count = 0; // items in this node and below
+        
+        Node(Node parent, int octant, float cx, float cy, float cz, float half) {
+            this.parent = parent;
+            this.octant = octant;
+            this.cx = cx;
+            this.cy = cy;
+            this.cz = cz;
+            this.half = half;
+        }
+        
+        Node child(int octant) {
+            if (children == null) {
+                children = new Node[8];
+            }
+            
+            if (children[octant] == null) {
+                float q = half * 0.5f;
+                children[octant] = new Node(this, octant,
+                        cx + ((octant & 1) != 0 ? q : -q),
+                        cy + ((octant & 2) != 0 ? q : -q),
+                        cz + ((octant & 4) != 0 ? q : -q), q);
+            }
+            
+            return children[octant];
+        }
+        
+        int octantOf(float x, float y, float z) {
+            return (x >= cx ? 1 : 0) | (y >= cy ? 2 : 0) | (z >= cz ? 4 : 0);
+        }
+        
+        boolean containsCell(float x, float y, float z) {
+            return Math.abs(x - cx) <= half && Math.abs(y - cy) <= half && Math.abs(z - cz) <= half;
+        }
+    }
+    
+    private static class Item {
+        final Object value;
+        final Vec3f min = new Vec3f(), max = new Vec3f();
+        Node node;
+        
+        Item(Object value) {
+            this.value = value;
+        }
+    }
+    
+    private final float minHalfSize;
+    private final IdentityHashMap<T, Item> items = new IdentityHashMap();
+    private Node root = null;
+    
+    /**
+     * Creates an empty tree whose cells are never smaller than twice {@code minHalfSize}.
+     */
+    public Octree(float minHalfSize) {
+        this.minHalfSize = minHalfSize;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    public int size() {
+        return items.size();
+    }
+    
+    public boolean contains(T value) {
+        return items.containsKey(value);
+    }
+    
+    public void clear() {
+        items.clear();
+        root = null;
+    }
+    
+    /**
+     * Inserts {@code value} with the box from {@code min} to {@code max}, or moves it there if it is already in the tree.
+     */
+    public void insert(T value, Vec3f min, Vec3f max) {
+        Item item = items.get(value);
+        
+        if (item == null) {
+            item = new Item(value);
+            items.put(value, item);
+        }
+        else {
+            unlink(item);
+        }
+        
+        item.min.set(min);
+        item.max.set(max);
+        link(item);
+    }
+    
+    /**
+     * Removes {@code value} and returns true if it was in the tree.
+     */
+    public boolean remove(T value) {
+        Item item = items.remove(value);
+        
+        if (item == null) {
+            return false;
+        }
+        
+        unlink(item);
+        return true;
+    }
+    
+    private void link(Item item) {
+        float x = (item.min.x + item.max.x) * 0.5f;
+        float y = (item.min.y + item.max.y) * 0.5f;
+        float z = (item.min.z + item.max.z) * 0.5f;
+        float extent = Math.max(item.max.x - x, Math.max(item.max.y - y, item.max.z - z));
+        
+        if (!Float.isFinite(x + y + z + extent)) {
+            x = y = z = extent = 0f; // kept in the tree, but never found by a query
+        }
+        
+        if (root == null) {
+            float half = minHalfSize;
+            while (half < extent) {
+                half *= 2f;
+            }
+            root = new Node(null, 0, x, y, z, half);
+        }
+        
+        // Grow the root towards the box until it fits, the old root becomes one of the new root's cells
+        while (!root.containsCell(x, y, z) || root.half < extent) {
+            Node old = root;
+            float h = old.half;
+            int octant = (x >= old.cx ? 0 : 1) | (y >= old.cy ? 0 : 2) | (z >= old.cz ? 0 : 4);
+            
+            root = new Node(null, 0,
+                    old.cx + ((octant & 1) != 0 ? -h : h),
+                    old.cy + ((octant & 2) != 0 ? -h : h),
+                    old.cz + ((octant & 4) != 0 ? -h : h), h * 2f);
+            
+            if (old.count > 0) {
+                root.children = new Node[8];
+                root.children[octant] = old;
+                root.count = old.count;
+                old.parent = root;
+                old.octant = octant;
+            }
+        }
+        
+        Node node = root;
+        while (node.half * 0.5f >= minHalfSize && extent <= node.half * 0.5f) {
+            node = node.child(node.octantOf(x, y, z));
+        }
+        
+        node.items.add(item);
+        item.node = node;
+        
+        for (Node n = node ; n != null ; n = n.parent) {
+            n.count++;
+        }
+    }
+    
+    private void unlink(Item item) {
+        Node node = item.node;
+        node.items.remove(item);
+        item.node = null;
+        
+        for (Node n = node ; n != null ; n = n.parent) {
+            n.count--;
+        }
+        
+        // Prune the branches that became empty
+        while (node.count == 0 && node.parent != null) {
+            Node parent = node.parent;
+            parent.children[node.octant] = null;
+            node = parent;
+        }
+        
+        if (root != null && root.count == 0) {
+            root = null;
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Queries
+    
+    /**
+     * Adds every value whose box intersects the box from {@code min} to {@code max} to {@code out}.
+     */
+    public void queryBox(Vec3f min, Vec3f max, Collection<T> out) {
+        if (root != null) {
+            queryBox(root, min, max, out);
+        }
+    }
+    
+    private void queryBox(Node node, Vec3f min, Vec3f max, Collection<T> out) {
+        float h = node.half * 2f;
+        
+        if (node.cx + h < min.x || node.cx - h > max.x || node.cy + h < min.y || node.cy - h > max.y
+                || node.cz + h < min.z || node.cz - h > max.z) {
+            return;
+        }
+        
+        for (Item item : node.items) {
+            if (item.max.x >= min.x && item.min.x <= max.x && item.max.y >= min.y && item.min.y <= max.y
+                    && item.max.z >= min.z && item.min.z <= max.z) {
+                out.add((T)item.value);
+            }
+        }
+        
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child != null) {
+                    queryBox(child, min, max, out);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Adds every value whose box is at most {@code radius} away from {@code center} to {@code out}.
+     */
+    public void queryRange(Vec3f center, float radius, Collection<T> out) {
+        if (root != null) {
+            queryRange(root, center, radius * radius, out);
+        }
+    }
+    
+    private void queryRange(Node node, Vec3f center, float radiusSq, Collection<T> out) {
+        if (distanceSq(node, center) > radiusSq) {
+            return;
+        }
+        
+        for (Item item : node.items) {
+            if (distanceSq(item.min, item.max, center) <= radiusSq) {
+                out.add((T)item.value);
+            }
+        }
+        
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child != null) {
+                    queryRange(child, center, radiusSq, out);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Adds every value whose box intersects {@code frustum} to {@code out}.
+     */
+    public void queryFrustum(Frustum frustum, Collection<T> out) {
+        if (root != null) {
+            queryFrustum(root, frustum, new Vec3f(), new Vec3f(), out);
+        }
+    }
+    
+    private void queryFrustum(Node node, Frustum frustum, Vec3f min, Vec3f max, Collection<T> out) {
+        float h = node.half * 2f;
+        min.x = node.cx - h; min.y = node.cy - h; min.z = node.cz - h;
+        max.x = node.cx + h; max.y = node.cy + h; max.z = node.cz + h;
+        
+        if (!frustum.intersectsBox(min, max)) {
+            return;
+        }
+        
+        for (Item item : node.items) {
+            if (frustum.intersectsBox(item.min, item.max)) {
+                out.add((T)item.value);
+            }
+        }
+        
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child != null) {
+                    queryFrustum(child, frustum, min, max, out);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Adds every value whose box is crossed by the ray from {@code origin} along {@code dir} within
+     * {@code maxDistance} multiples of the direction's length to {@code out}.
+     */
+    public void queryRay(Vec3f origin, Vec3f dir, float maxDistance, Collection<T> out) {
+        if (root != null) {
+            queryRay(root, origin, dir, maxDistance, out);
+        }
+    }
+    
+    private void queryRay(Node node, Vec3f origin, Vec3f dir, float maxDistance, Collection<T> out) {
+        float h = node.half * 2f;
+        
+        if (!crossesBox(origin, dir, maxDistance, node.cx - h, node.cy - h, node.cz - h,
+                node.cx + h, node.cy + h, node.cz + h)) {
+            return;
+        }
+        
+        for (Item item : node.items) {
+            if (crossesBox(origin, dir, maxDistance, item.min.x, item.min.y, item.min.z,
+                    item.max.x, item.max.y, item.max.z)) {
+                out.add((T)item.value);
+            }
+        }
+        
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child != null) {
+                    queryRay(child, origin, dir, maxDistance, out);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the value whose box is closest to {@code point}, but not farther away than {@code maxDistance}, or null if
+     * there is none.
+     */
+    public T nearest(Vec3f point, float maxDistance) {
+        if (root == null) {
+            return null;
+        }
+        
+        Object[] best = { null };
+        float[] bestDistSq = { maxDistance * maxDistance };
+        nearest(root, point, best, bestDistSq);
+        return (T)best[0];
+    }
+    
+    private void nearest(Node node, Vec3f point, Object[] best, float[] bestDistSq) {
+        if (distanceSq(node, point) > bestDistSq[0]) {
+            return;
+        }
+        
+        for (Item item : node.items) {
+            float distSq = distanceSq(item.min, item.max, point);
+            
+            if (distSq <= bestDistSq[0]) {
+                bestDistSq[0] = distSq;
+                best[0] = item.value;
+            }
+        }
+        
+        if (node.children != null) {
+            // The cell holding the point first, so that the bound tightens early
+            int first = node.octantOf(point.x, point.y, point.z);
+            
+            for (int i = 0 ; i < 8 ; i++) {
+                Node child = node.children[i ^ first];
+                
+                if (child != null) {
+                    nearest(child, point, best, bestDistSq);
+                }
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Utilities
+    
+    private static float distanceSq(Node node, Vec3f p) {
+        float h = node.half * 2f;
+        float dx = Math.max(0f, Math.abs(p.x - node.cx) - h);
+        float dy = Math.max(0f, Math.abs(p.y - node.cy) - h);
+        float dz = Math.max(0f, Math.abs(p.z - node.cz) - h);
+        return dx * dx + dy * dy + dz * dz;
+    }
+    
+    private static float distanceSq(Vec3f min, Vec3f max, Vec3f p) {
+        float dx = Math.max(0f, Math.max(min.x - p.x, p.x - max.x));
+        float dy = Math.max(0f, Math.max(min.y - p.y, p.y - max.y));
+        float dz = Math.max(0f, Math.max(min.z - p.z, p.z - max.z));
+        return dx * dx + dy * dy + dz * dz;
+    }
+    
+    private static boolean crossesBox(Vec3f origin, Vec3f dir, float maxDistance, float minx, float miny, float minz,
+            float maxx, float maxy, float maxz) {
+        float near = 0f, far = maxDistance;
+        
+        float inv = 1f / dir.x;
+        float t0 = (minx - origin.x) * inv, t1 = (maxx - origin.x) * inv;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        
+        inv = 1f / dir.y;
+        t0 = (miny - origin.y) * inv; t1 = (maxy - origin.y) * inv;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        
+        inv = 1f / dir.z;
+        t0 = (minz - origin.z) * inv; t1 = (maxz - origin.z) * inv;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        
+        return near <= far;
+    }
+}
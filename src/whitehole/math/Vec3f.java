@@ -125,6 +125,13 @@ public class Vec3f implements Cloneable {
         out.x = x; out.y = y; out.z = z;
     }
     
+    public static void transformDirection(Vec3f v, Matrix4 m, Vec3f out) {
+        float x = v.x * m.m[0] + v.y * m.m[4] + v.z * m.m[8],
+              y = v.x * m.m[1] + v.y * m.m[5] + v.z * m.m[9],
+              z = v.x * m.m[2] + v.y * m.m[6] + v.z * m.m[10];
+        out.x = x; out.y = y; out.z = z;
+    }
+    
     public static void normalize(Vec3f v, Vec3f out) {
         float len = v.length();
         if (len < 0.000001f) len = 1f;
@@ -146,6 +153,13 @@ public class Vec3f implements Cloneable {
         out.z = a.z - b.z;
     }
     
+    public static float distance(Vec3f a, Vec3f b) {
+        float x = a.x - b.x,
+              y = a.y - b.y,
+              z = a.z - b.z;
+        return (float)Math.sqrt(x * x + y * y + z * z);
+    }
+    
     public static void cross(Vec3f a, Vec3f b, Vec3f out) {
         float x = a.y * b.z - a.z * b.y,
               y = a.z * b.x - a.x * b.z,
@@ -18,6 +18,7 @@ package whitehole.rendering;
 
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.glu.*;
+import whitehole.math.Vec3f;
 import whitehole.util.Color4;
 
 public class AreaShapeRenderer extends GLRenderer {
@@ -45,6 +46,16 @@ public class AreaShapeRenderer extends GLRenderer {
         return true;
     }
     
+    @Override
+    public boolean getBounds(Vec3f min, Vec3f max) {
+        // Encloses every shape, the base origin box reaches up to twice its size
+        min.x = min.z = -SIZE;
+        max.x = max.z = SIZE;
+        min.y = -SIZE;
+        max.y = SIZE * 2f;
+        return true;
+    }
+    
     @Override
     public boolean gottaRender(GLRenderer.RenderInfo info) throws GLException {
         return info.renderMode != GLRenderer.RenderMode.TRANSLUCENT;
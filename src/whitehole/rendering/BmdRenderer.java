@@ -23,33 +23,33 @@ import java.nio.charset.Charset;
 import java.util.Locale;
 import whitehole.Whitehole;
 import whitehole.io.RarcFile;
+import whitehole.smg.BakedMesh;
 import whitehole.smg.Bmd;
 import whitehole.smg.Bva;
+import whitehole.smg.ImageUtils;
+import whitehole.smg.ModelCache;
+import whitehole.smg.TriangleBvh;
 import whitehole.smg.ImageUtils.FilterMode;
 import whitehole.smg.ImageUtils.WrapMode;
-import whitehole.util.Color4;
 import whitehole.math.Matrix4;
-import whitehole.util.SuperFastHash;
-import whitehole.math.Vec2f;
 import whitehole.math.Vec3f;
 
 public class BmdRenderer extends GLRenderer {
     private void uploadTexture(GL2 gl, int id) {
         Bmd.Texture tex = model.textures[id];
-        int hash = 0;
-        for(int i = 0; i < tex.mipmapCount; i++)
-            hash =(int) SuperFastHash.calculate(tex.image[i],(long)hash, 0, tex.image[i].length);
-        textures[id] = hash;
+        ContentKey key = TextureUploader.createKey(tex.format, tex.layout, tex.width, tex.height, tex.mipmapCount,
+                tex.wrapS, tex.wrapT, tex.minFilter, tex.magFilter, tex.image);
+        textures[id] = key;
         
-        if(TextureCache.containsEntry(hash)) {
-            TextureCache.getEntry(hash);
+        if(TextureCache.containsEntry(key)) {
+            TextureCache.getEntry(key);
             return;
         }
         
         int[] texids = new int[1];
         gl.glGenTextures(1, texids, 0);
         int texid = texids[0];
-        TextureCache.addEntry(hash, texid);
+        TextureCache.addEntry(key, texid);
         
         gl.glBindTexture(GL2.GL_TEXTURE_2D, texid);
         gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAX_LEVEL, tex.mipmapCount - 1);
@@ -58,28 +58,93 @@ public class BmdRenderer extends GLRenderer {
         gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, WrapMode.values()[tex.wrapS].get());
         gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, WrapMode.values()[tex.wrapT].get());
         
-        int ifmt, fmt;
-        switch(tex.format) {
-            case 0:
-            case 1: ifmt = GL2.GL_INTENSITY; fmt = GL2.GL_LUMINANCE; break;
-            case 2:
-            case 3: ifmt = GL2.GL_LUMINANCE8_ALPHA8; fmt = GL2.GL_LUMINANCE_ALPHA; break;
-            default: ifmt = 4; fmt = GL2.GL_BGRA; break;
+        TextureUploader.upload(gl, tex.format, tex.layout, tex.width, tex.height, tex.image);
+    }
+    
+    private void uploadVertexBuffers(GL2 gl) {
+        BakedMesh mesh = model.getMesh();
+        int numbatches = mesh.batches.length;
+        
+        vertexBuffers = new int[numbatches];
+        indexBuffers = new int[numbatches];
+        indexTypes = new int[numbatches];
+        simplifiedBuffers = new int[numbatches];
+        simplifiedCounts = new int[numbatches];
+        gl.glGenBuffers(numbatches, vertexBuffers, 0);
+        gl.glGenBuffers(numbatches, indexBuffers, 0);
+        
+        for(int i = 0; i < numbatches; i++) {
+            BakedMesh.Batch batch = mesh.batches[i];
+            
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBuffers[i]);
+            gl.glBufferData(GL2.GL_ARRAY_BUFFER, batch.vertices.length * 4L, FloatBuffer.wrap(batch.vertices), GL2.GL_STATIC_DRAW);
+            
+            // 16-bit indices whenever they fit
+            indexTypes[i] = batch.numVertices <= 0x10000 ? GL2.GL_UNSIGNED_SHORT : GL2.GL_UNSIGNED_INT;
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexBuffers[i]);
+            uploadIndices(gl, batch.triangles, indexTypes[i]);
+            
+            // The simplified mesh shares the vertices, batches that hardly simplify keep drawing the full one
+            int[] simplified = LevelOfDetail.simplify(batch, bboxMin, bboxMax);
+            if(simplified != null) {
+                int[] buffers = new int[1];
+                gl.glGenBuffers(1, buffers, 0);
+                simplifiedBuffers[i] = buffers[0];
+                simplifiedCounts[i] = simplified.length;
+                
+                gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, simplifiedBuffers[i]);
+                uploadIndices(gl, simplified, indexTypes[i]);
+            }
         }
         
-        int width = tex.width, height = tex.height;
-        for(int mip = 0; mip < tex.mipmapCount; mip++) {
-            gl.glTexImage2D(GL2.GL_TEXTURE_2D, mip, ifmt, width, height, 0, fmt, GL2.GL_UNSIGNED_BYTE, ByteBuffer.wrap(tex.image[mip]));
-            width /= 2; height /= 2;
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+    
+    private static void uploadIndices(GL2 gl, int[] triangles, int type) {
+        if(type == GL2.GL_UNSIGNED_SHORT) {
+            short[] indices = new short[triangles.length];
+            for(int j = 0; j < indices.length; j++)
+                indices[j] =(short)triangles[j];
+            
+            gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, indices.length * 2L, ShortBuffer.wrap(indices), GL2.GL_STATIC_DRAW);
+        }
+        else
+            gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, triangles.length * 4L, IntBuffer.wrap(triangles), GL2.GL_STATIC_DRAW);
+    }
+    
+    /**
+     * Averages the smallest mipmap of the first texture the materials use, which is what the model roughly looks like
+     * from far away. Returns the default proxy color if no material is textured.
+     */
+    static int computeProxyColor(Bmd model) {
+        for(Bmd.Material mat : model.materials) {
+            if(mat.texStages[0] ==(short)0xFFFF)
+                continue;
+            
+            Bmd.Texture tex = model.textures[mat.texStages[0]];
+            int level = Math.max(0, tex.image.length - 1);
+            
+            // Halving may leave the last levels without texels
+            while(level > 0 &&((tex.width >> level) == 0 ||(tex.height >> level) == 0))
+                level--;
+            
+            int width = tex.width >> level, height = tex.height >> level;
+            if(width <= 0 || height <= 0)
+                break;
+            
+            return ImageUtils.getAverageColor(tex.layout, tex.image[level], width, height);
         }
+        
+        return 0x808080;
     }
     
-    private int shaderHash(int matid) {
+    private ContentKey shaderKey(int matid) {
         byte[] sigarray = new byte[200];
         ByteBuffer sig = ByteBuffer.wrap(sigarray);
         
         if(model == null || model.materials.length - 1 < matid) { // avoid nullpointer exception
-            return -1;
+            return null;
         }
         
         Bmd.Material mat = model.materials[matid];
@@ -167,7 +232,7 @@ public class BmdRenderer extends GLRenderer {
                 sig.put(mat.alphaComp.mergeFunc);
         }
         
-        return(int) SuperFastHash.calculate(sigarray, 0, 0, sig.position());
+        return ContentKey.of(sigarray, sig.position());
     }
 
     // Huge performance eater. rewrite will never happen :c
@@ -179,7 +244,7 @@ public class BmdRenderer extends GLRenderer {
             shaders = new Shader[1];
         shaders[matid] = new Shader();
         
-        int hash = shaderHash(matid);
+        ContentKey hash = shaderKey(matid);
         shaders[matid].cacheKey = hash;
         
         if(ShaderCache.containsEntry(hash) && customColors.length == 0)
@@ -223,9 +288,14 @@ public class BmdRenderer extends GLRenderer {
         StringBuilder vert = new StringBuilder();
         vert.append("#version 120\n");
         vert.append("\n");
+        vert.append("attribute vec4 instanceRow0;\n");
+        vert.append("attribute vec4 instanceRow1;\n");
+        vert.append("attribute vec4 instanceRow2;\n");
+        vert.append("\n");
         vert.append("void main()\n");
         vert.append("{\n");
-        vert.append("    gl_Position = gl_ModelViewProjectionMatrix * gl_Vertex;\n");
+        vert.append("    vec4 pos = vec4(dot(instanceRow0, gl_Vertex), dot(instanceRow1, gl_Vertex), dot(instanceRow2, gl_Vertex), 1.0);\n");
+        vert.append("    gl_Position = gl_ModelViewProjectionMatrix * pos;\n");
         vert.append("    gl_FrontColor = gl_Color;\n");
         vert.append("    gl_FrontSecondaryColor = gl_SecondaryColor;\n");
         for (int i = 0; i < mat.numTexgens; i++) {
@@ -456,6 +526,9 @@ public class BmdRenderer extends GLRenderer {
 
         gl.glAttachShader(sid, vertid);
         gl.glAttachShader(sid, fragid);
+        
+        for(int i = 0; i < 3; i++)
+            gl.glBindAttribLocation(sid, INSTANCE_ATTRIB + i, "instanceRow" + i);
 
         gl.glLinkProgram(sid);
         gl.glGetProgramiv(sid, GL2.GL_LINK_STATUS, sillyarray, 0);
@@ -468,6 +541,15 @@ public class BmdRenderer extends GLRenderer {
             // TODO: better error reporting/logging?
         }
         
+        // The samplers always read the texture unit of their stage, so they are assigned once instead of per draw
+        gl.glUseProgram(sid);
+        for(int i = 0; i < 8; i++) {
+            int loc = gl.glGetUniformLocation(sid, "texture" + i);
+            if(loc >= 0)
+                gl.glUniform1i(loc, i);
+        }
+        gl.glUseProgram(0);
+        
         ShaderCache.addEntry(hash, vertid, fragid, sid);
         //System.out.println(matid);
         //System.out.println(frag.toString());
@@ -475,12 +557,51 @@ public class BmdRenderer extends GLRenderer {
     
     // -------------------------------------------------------------------------------------------------------------------------
     
+    /**
+     * First generic vertex attribute of the three instance matrix rows. Attributes 5 to 7 do not alias any of the
+     * fixed-function arrays used here.
+     */
+    static final int INSTANCE_ATTRIB = 5;
+    
+    private static final int[] BLEND_SRC = { GL2.GL_ZERO, GL2.GL_ONE,
+                                             GL2.GL_ONE, GL2.GL_ZERO, // um...
+                                             GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA, 
+                                             GL2.GL_DST_ALPHA, GL2.GL_ONE_MINUS_DST_ALPHA,
+                                             GL2.GL_DST_COLOR, GL2.GL_ONE_MINUS_DST_COLOR };
+    private static final int[] BLEND_DST = { GL2.GL_ZERO, GL2.GL_ONE,
+                                             GL2.GL_SRC_COLOR, GL2.GL_ONE_MINUS_SRC_COLOR,
+                                             GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA, 
+                                             GL2.GL_DST_ALPHA, GL2.GL_ONE_MINUS_DST_ALPHA,
+                                             GL2.GL_DST_COLOR, GL2.GL_ONE_MINUS_DST_COLOR };
+    private static final int[] LOGIC_OPS = { GL2.GL_CLEAR, GL2.GL_AND, GL2.GL_AND_REVERSE, GL2.GL_COPY,
+                                             GL2.GL_AND_INVERTED, GL2.GL_NOOP, GL2.GL_XOR, GL2.GL_OR,
+                                             GL2.GL_NOR, GL2.GL_EQUIV, GL2.GL_INVERT, GL2.GL_OR_REVERSE,
+                                             GL2.GL_COPY_INVERTED, GL2.GL_OR_INVERTED, GL2.GL_NAND, GL2.GL_SET };
+    private static final int[] PRIM_TYPES = { GL2.GL_QUADS, GL2.GL_POINTS, GL2.GL_TRIANGLES, GL2.GL_TRIANGLE_STRIP,
+                                              GL2.GL_TRIANGLE_FAN, GL2.GL_LINES, GL2.GL_LINE_STRIP, GL2.GL_POINTS };
+    private static final int[] CULL_MODES = { GL2.GL_FRONT, GL2.GL_BACK, GL2.GL_FRONT_AND_BACK };
+    private static final int[] DEPTH_FUNCS = { GL2.GL_NEVER, GL2.GL_LESS, GL2.GL_EQUAL, GL2.GL_LEQUAL,
+                                               GL2.GL_GREATER, GL2.GL_NOTEQUAL, GL2.GL_GEQUAL, GL2.GL_ALWAYS };
+    private static final int[] ALPHA_FUNCS = DEPTH_FUNCS;
+    
     private RarcFile archive = null;
     protected Bmd model = null;
     protected Bva visible = null;
     protected Shader[] shaders = null;
-    protected int[] textures = null;
+    protected ContentKey[] textures = null;
+    protected int[][] materialTextures = null; // texture IDs of the 8 stages of every material, 0 for unused stages
     protected boolean hasShaders = false;
+    protected boolean hasVertexBuffers = false;
+    protected boolean hasInstancing = false;
+    protected boolean hasPlainRender = false; // false if a subclass draws differently in render()
+    protected int[] vertexBuffers = null, indexBuffers = null, indexTypes = null; // per batch
+    protected int[] simplifiedBuffers = null, simplifiedCounts = null; // per batch, 0 where not simplified
+    protected MaterialState[] materialStates = null; // kept after releaseStorage for drawing from buffers
+    protected int[] nodeShapes = null, nodeMaterials = null; // geometry nodes of the scene graph in drawing order
+    protected BatchLayout[] batchLayouts = null;
+    protected TriangleBvh bvh = null; // kept after releaseStorage for raycasts
+    protected int proxyColor = 0x808080;
+    protected Vec3f bboxMin = null, bboxMax = null; // kept after releaseStorage for culling
     protected Vec3f translation = TRANSLATION;
     protected Vec3f rotation = ROTATION;
     protected Vec3f scale = SCALE;
@@ -514,25 +635,78 @@ public class BmdRenderer extends GLRenderer {
      * @throws GLException 
      */
     protected final void ctor_loadModel(String modelName) throws GLException {
+        LoadedModel loaded = ModelPreloader.take(modelName);
+        
+        if (loaded == null) {
+            loaded = loadModel(modelName);
+        }
+        
+        if (loaded != null) {
+            archive = loaded.archive;
+            model = loaded.model;
+            visible = loaded.visible;
+            proxyColor = loaded.proxyColor;
+        }
+    }
+    
+    /**
+     * The CPU-side part of loading a model. This does not touch any GL state, so it may run on any thread.
+     */
+    static final class LoadedModel {
+        RarcFile archive;
+        Bmd model;
+        Bva visible;
+        int proxyColor;
+        
+        void close() {
+            try {
+                if (visible != null)
+                    visible.close();
+                
+                model.close();
+                
+                if (archive != null)
+                    archive.close();
+            }
+            catch (IOException ex) {}
+        }
+    }
+    
+    static LoadedModel loadModel(String modelName) {
         String arcPath = Whitehole.createResourceArcPath(modelName);
         
         if (arcPath == null) {
-            return;
+            return null;
+        }
+        
+        LoadedModel loaded = new LoadedModel();
+        
+        // Try the model cache first, this skips all archive and model parsing
+        ModelCache.Entry cached = ModelCache.load(arcPath, modelName);
+        
+        if (cached != null) {
+            loaded.model = cached.model;
+            loaded.visible = cached.animation;
+            loaded.model.getMesh(); // bounds are not cached, baking recomputes them
+            loaded.proxyColor = computeProxyColor(loaded.model);
+            return loaded;
         }
         
         // Load the BMD/BDL file
+        RarcFile archive = null;
+        
         try {
             archive = new RarcFile(Whitehole.getCurrentGameFileSystem().openFile(arcPath));
             
             if (archive.fileExists("/" + modelName + "/" + modelName + ".bdl")) {
-                model = new Bmd(archive.openFile("/" + modelName + "/" + modelName + ".bdl"));
+                loaded.model = new Bmd(archive.openFile("/" + modelName + "/" + modelName + ".bdl"));
             }
             else if (archive.fileExists("/" + modelName + "/" + modelName + ".bmd")) {
-                model = new Bmd(archive.openFile("/" + modelName + "/" + modelName + ".bmd"));
+                loaded.model = new Bmd(archive.openFile("/" + modelName + "/" + modelName + ".bmd"));
             }
             else {
                 archive.close();
-                return;
+                return null;
             }
         }
         catch(IOException up) {
@@ -542,19 +716,25 @@ public class BmdRenderer extends GLRenderer {
                 }
                 catch(IOException ex2) {}
             }
-            return;
+            return null;
         }
         
+        loaded.archive = archive;
+        
         // Load a BVA file
         try {
             if(archive.fileExists("/" + modelName + "/Wait.bva")) {
-                visible = new Bva(archive.openFile("/" + modelName + "/Wait.bva"));
+                loaded.visible = new Bva(archive.openFile("/" + modelName + "/Wait.bva"));
             }
             else if(archive.fileExists("/" + modelName + "/Normal.bva")) {
-                visible = new Bva(archive.openFile("/" + modelName + "/Normal.bva"));
+                loaded.visible = new Bva(archive.openFile("/" + modelName + "/Normal.bva"));
             }
         }
         catch(IOException ex) {}
+        
+        ModelCache.store(arcPath, modelName, loaded.model, loaded.visible);
+        loaded.proxyColor = computeProxyColor(loaded.model);
+        return loaded;
     }
     
     protected final void ctor_uploadData(RenderInfo info) throws GLException {
@@ -563,6 +743,8 @@ public class BmdRenderer extends GLRenderer {
         }
         
         GL2 gl = info.drawable.getGL().getGL2();
+        bboxMin = model.bboxMin;
+        bboxMax = model.bboxMax;
         
         String extensions = gl.glGetString(GL2.GL_EXTENSIONS);
         hasShaders = extensions.contains("GL_ARB_shading_language_100") &&
@@ -570,9 +752,23 @@ public class BmdRenderer extends GLRenderer {
             extensions.contains("GL_ARB_vertex_shader") &&
             extensions.contains("GL_ARB_fragment_shader");
 
-        textures = new int[model.textures.length];
+        textures = new ContentKey[model.textures.length];
         for(int i = 0; i < model.textures.length; i++)
             uploadTexture(gl, i);
+        
+        materialTextures = new int[model.materials.length][8];
+        for(int m = 0; m < model.materials.length; m++) {
+            for(int i = 0; i < 8; i++) {
+                short stage = model.materials[m].texStages[i];
+                if(stage != (short)0xFFFF)
+                    materialTextures[m][i] = TextureCache.getTextureID(textures[stage]);
+            }
+        }
+        copyDrawData();
+        
+        hasVertexBuffers = gl.isFunctionAvailable("glGenBuffers") && gl.isFunctionAvailable("glDrawElements");
+        if(hasVertexBuffers)
+            uploadVertexBuffers(gl);
 
         if(hasShaders) {
             shaders = new Shader[model.materials.length];
@@ -599,18 +795,130 @@ public class BmdRenderer extends GLRenderer {
                 }
             }
         }
+        
+        // Instanced drawing transforms vertices in the shaders, so every material needs a working program
+        hasInstancing = hasShaders && hasVertexBuffers && gl.isFunctionAvailable("glDrawElementsInstanced") &&
+            gl.isFunctionAvailable("glVertexAttribDivisor");
+        
+        if(hasInstancing) {
+            for(Shader shader : shaders) {
+                if(shader == null || shader.program == 0)
+                    hasInstancing = false;
+            }
+        }
+        
+        // Instances and simplified meshes are drawn without render(), which subclasses may have changed
+        try {
+            hasPlainRender = getClass().getMethod("render", RenderInfo.class).getDeclaringClass() == BmdRenderer.class;
+        }
+        catch(NoSuchMethodException ex) {
+            hasPlainRender = false;
+        }
+    }
+    
+    /**
+     * Copies what drawing needs out of the model: the materials resolved to GL state, the geometry nodes and the
+     * layout of every batch. This lets releaseStorage drop the model and its baked mesh once they are in buffers.
+     */
+    private void copyDrawData() {
+        materialStates = new MaterialState[model.materials.length];
+        for(int m = 0; m < materialStates.length; m++)
+            materialStates[m] = resolveMaterial(model.materials[m]);
+        
+        int numnodes = 0;
+        for(Bmd.SceneGraphNode node : model.sceneGraph) {
+            if(node.nodeType == 0)
+                numnodes++;
+        }
+        
+        nodeShapes = new int[numnodes];
+        nodeMaterials = new int[numnodes];
+        numnodes = 0;
+        
+        for(Bmd.SceneGraphNode node : model.sceneGraph) {
+            if(node.nodeType != 0)
+                continue;
+            
+            nodeShapes[numnodes] = node.nodeID;
+            nodeMaterials[numnodes] = node.materialID & 0xFFFF;
+            numnodes++;
+        }
+        
+        BakedMesh mesh = model.getMesh();
+        batchLayouts = new BatchLayout[mesh.batches.length];
+        
+        for(int i = 0; i < batchLayouts.length; i++) {
+            BakedMesh.Batch batch = mesh.batches[i];
+            BatchLayout layout = new BatchLayout();
+            layout.stride = batch.stride;
+            layout.offsets = batch.offsets;
+            layout.numIndices = batch.triangles.length;
+            layout.primTypes = batch.primTypes;
+            layout.primFirst = batch.primFirst;
+            layout.primCount = batch.primCount;
+            batchLayouts[i] = layout;
+        }
+    }
+    
+    private static MaterialState resolveMaterial(Bmd.Material mat) {
+        MaterialState state = new MaterialState();
+        state.translucent = mat.drawFlag == 4;
+        
+        // alpha test -- only one comparison can be done
+        if(mat.alphaComp.mergeFunc == 1 &&(mat.alphaComp.func0 == 7 || mat.alphaComp.func1 == 7))
+            state.alphaFunc = GL2.GL_ALWAYS;
+        else if(mat.alphaComp.mergeFunc == 0 &&(mat.alphaComp.func0 == 0 || mat.alphaComp.func1 == 0))
+            state.alphaFunc = GL2.GL_NEVER;
+        else if((mat.alphaComp.mergeFunc == 1 && mat.alphaComp.func0 == 0) ||(mat.alphaComp.mergeFunc == 0 && mat.alphaComp.func0 == 7)) {
+            state.alphaFunc = ALPHA_FUNCS[mat.alphaComp.func1];
+            state.alphaRef = (float)mat.alphaComp.ref1 / 255f;
+        }
+        else {
+            state.alphaFunc = ALPHA_FUNCS[mat.alphaComp.func0];
+            state.alphaRef = (float)mat.alphaComp.ref0 / 255f;
+        }
+        
+        switch(mat.blendMode.blendMode) {
+            case 0:
+                state.blendMode = 0;
+                break;
+                
+            case 1:
+            case 3:
+                state.blendMode = 1;
+                state.blendEquation = mat.blendMode.blendMode == 3 ? GL2.GL_FUNC_SUBTRACT : GL2.GL_FUNC_ADD;
+                state.blendSrc = BLEND_SRC[mat.blendMode.srcFactor];
+                state.blendDst = BLEND_DST[mat.blendMode.dstFactor];
+                break;
+                
+            case 2:
+                state.blendMode = 2;
+                state.logicOp = LOGIC_OPS[mat.blendMode.blendOp];
+                break;
+                
+            default:
+                state.blendMode = -1;
+                break;
+        }
+        
+        state.blendKey = ((mat.blendMode.blendMode << 12) | (mat.blendMode.srcFactor << 8) | (mat.blendMode.dstFactor << 4)
+                | mat.blendMode.blendOp) & 0xFFFF;
+        state.cullFace = mat.cullMode == 0 ? 0 : CULL_MODES[mat.cullMode - 1];
+        state.depthFunc = mat.zMode.enableZTest ? DEPTH_FUNCS[mat.zMode.func] : 0;
+        state.depthWrite = mat.zMode.enableZWrite;
+        return state;
     }
     
     @Override
     public void close(RenderInfo info) throws GLException {
-        if(model == null)
+        if(textures == null) // the model is gone after releaseStorage, but the GL objects still have to be freed
             return;
         
         GL2 gl = info.drawable.getGL().getGL2();
         
         if(hasShaders) {
             for(Shader shader : shaders) {
-                if(!ShaderCache.removeEntry(shader.cacheKey))
+                if(shader == null || !ShaderCache.removeEntry(shader.cacheKey))
                     continue;
                 
                 if(shader.vertexShader > 0) {
@@ -628,7 +936,14 @@ public class BmdRenderer extends GLRenderer {
             }
         }
 
-        for(int tex : textures) {
+        if(vertexBuffers != null) {
+            gl.glDeleteBuffers(vertexBuffers.length, vertexBuffers, 0);
+            gl.glDeleteBuffers(indexBuffers.length, indexBuffers, 0);
+            gl.glDeleteBuffers(simplifiedBuffers.length, simplifiedBuffers, 0);
+            vertexBuffers = indexBuffers = simplifiedBuffers = null;
+        }
+
+        for(ContentKey tex : textures) {
             int theid = TextureCache.getTextureID(tex);
             if(!TextureCache.removeEntry(tex))
                 continue;
@@ -637,7 +952,12 @@ public class BmdRenderer extends GLRenderer {
         }
 
         if(model != null) {
-            try { model.close(); archive.close(); }
+            try {
+                model.close();
+                
+                if(archive != null)
+                    archive.close();
+            }
             catch(IOException ex) {}
         }
     }
@@ -651,25 +971,88 @@ public class BmdRenderer extends GLRenderer {
             catch(IOException ex) {}
         }
         if(model != null) {
+            // The triangle hierarchy holds its own copy of the triangles, so raycasts do not need the mesh
+            bvh = model.getBvh();
+            
             try {
                 model.close();
-                archive.close();
+                
+                if(archive != null)
+                    archive.close();
             }
             catch(IOException ex) {}
             
-            model = null;
-            visible = null;
             archive = null;
+            model = null;
+            
+            // Drawing from buffers only needs the data copyDrawData kept and the visibility
+            if(!hasVertexBuffers)
+                visible = null;
         }
     }
+    
+    @Override
+    public boolean supportsInstancing() {
+        // Instances only carry the object transform, so the renderer's own offsets must be the shared defaults
+        return hasInstancing && hasPlainRender && nodeShapes != null && translation == TRANSLATION && rotation == ROTATION && scale == SCALE;
+    }
+
+    @Override
+    public boolean supportsLod() {
+        return hasVertexBuffers && hasPlainRender && nodeShapes != null;
+    }
+    
+    @Override
+    public int getProxyColor() {
+        return proxyColor;
+    }
+
+    @Override
+    public boolean raycast(Vec3f origin, Vec3f dir, RayHit hit) {
+        TriangleBvh tree = model != null ? model.getBvh() : bvh;
+        
+        if(tree == null)
+            return false;
+        
+        Matrix4 inverse;
+        try {
+            inverse = Matrix4.invert(offsetTransform(translation, rotation, scale));
+        }
+        catch(IllegalArgumentException ex) {
+            return false; // flattened by a zero scale
+        }
+        
+        Vec3f localorigin = new Vec3f(), localdir = new Vec3f();
+        Vec3f.transform(origin, inverse, localorigin);
+        Vec3f.transformDirection(dir, inverse, localdir);
+        
+        TriangleBvh.Hit bvhhit = new TriangleBvh.Hit();
+        bvhhit.distance = hit.distance;
+        
+        if(!tree.intersect(localorigin, localdir, bvhhit))
+            return false;
+        
+        hit.distance = bvhhit.distance;
+        hit.subMesh = bvhhit.batch;
+        return true;
+    }
+
+    @Override
+    public boolean getBounds(Vec3f min, Vec3f max) {
+        if(bboxMin == null)
+            return false;
+        
+        Matrix4.transformBounds(offsetTransform(translation, rotation, scale), bboxMin, bboxMax, min, max);
+        return true;
+    }
 
     @Override
     public boolean gottaRender(RenderInfo info) throws GLException {
         if(info.renderMode == RenderMode.PICKING)
             return true;
         
-        for(Bmd.Material mat : model.materials) {
-            if(!((mat.drawFlag == 4) ^(info.renderMode == RenderMode.TRANSLUCENT)))
+        for(MaterialState mat : materialStates) {
+            if(!(mat.translucent ^(info.renderMode == RenderMode.TRANSLUCENT)))
                 return true;
         }
 
@@ -678,31 +1061,60 @@ public class BmdRenderer extends GLRenderer {
 
     @Override
     public void render(RenderInfo info) throws GLException {
+        renderNodes(info, 0, false);
+    }
+    
+    @Override
+    public void renderSimplified(RenderInfo info) throws GLException {
+        renderNodes(info, 0, true);
+    }
+    
+    @Override
+    public void renderInstanced(RenderInfo info, int instanceBuffer, int count, boolean simplified) throws GLException {
         GL2 gl = info.drawable.getGL().getGL2();
         
-        int[] blendsrc = { GL2.GL_ZERO, GL2.GL_ONE,
-                           GL2.GL_ONE, GL2.GL_ZERO, // um...
-                           GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA, 
-                           GL2.GL_DST_ALPHA, GL2.GL_ONE_MINUS_DST_ALPHA,
-                           GL2.GL_DST_COLOR, GL2.GL_ONE_MINUS_DST_COLOR };
-        int[] blenddst = { GL2.GL_ZERO, GL2.GL_ONE,
-                           GL2.GL_SRC_COLOR, GL2.GL_ONE_MINUS_SRC_COLOR,
-                           GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA, 
-                           GL2.GL_DST_ALPHA, GL2.GL_ONE_MINUS_DST_ALPHA,
-                           GL2.GL_DST_COLOR, GL2.GL_ONE_MINUS_DST_COLOR };
-        int[] logicop = { GL2.GL_CLEAR, GL2.GL_AND, GL2.GL_AND_REVERSE, GL2.GL_COPY,
-                          GL2.GL_AND_INVERTED, GL2.GL_NOOP, GL2.GL_XOR, GL2.GL_OR,
-                          GL2.GL_NOR, GL2.GL_EQUIV, GL2.GL_INVERT, GL2.GL_OR_REVERSE,
-                          GL2.GL_COPY_INVERTED, GL2.GL_OR_INVERTED, GL2.GL_NAND, GL2.GL_SET };
-
-        Matrix4[] lastmatrixtable = null;
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, instanceBuffer);
+        for(int i = 0; i < 3; i++) {
+            gl.glEnableVertexAttribArray(INSTANCE_ATTRIB + i);
+            gl.glVertexAttribPointer(INSTANCE_ATTRIB + i, 4, GL2.GL_FLOAT, false, InstanceBatcher.INSTANCE_STRIDE, i * 16L);
+            gl.glVertexAttribDivisor(INSTANCE_ATTRIB + i, 1);
+        }
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+        
+        renderNodes(info, count, simplified);
+        
+        for(int i = 0; i < 3; i++) {
+            gl.glVertexAttribDivisor(INSTANCE_ATTRIB + i, 0);
+            gl.glDisableVertexAttribArray(INSTANCE_ATTRIB + i);
+        }
+    }
+    
+    /**
+     * Draws all scene graph nodes, either once or as {@code instances} instances, with the full or simplified meshes.
+     */
+    private void renderNodes(RenderInfo info, int instances, boolean simplified) throws GLException {
+        GL2 gl = info.drawable.getGL().getGL2();
         
         if(info.renderMode != RenderMode.PICKING)
             gl.glColor4f(1f, 1f, 1f, 1f);
         
-        if(model == null)
+        // Immediate mode draws straight from the mesh, which releaseStorage drops
+        if(nodeShapes == null ||(!hasVertexBuffers && model == null))
             return;
         
+        BakedMesh mesh = hasVertexBuffers ? null : model.getMesh();
+        
+        // Outside of instanced drawing the shaders see an identity instance transform
+        if(hasShaders && instances == 0 && info.renderMode != RenderMode.PICKING) {
+            gl.glVertexAttrib4f(INSTANCE_ATTRIB, 1f, 0f, 0f, 0f);
+            gl.glVertexAttrib4f(INSTANCE_ATTRIB + 1, 0f, 1f, 0f, 0f);
+            gl.glVertexAttrib4f(INSTANCE_ATTRIB + 2, 0f, 0f, 1f, 0f);
+        }
+        
+        // Consecutive nodes often share their state, so only the changes end up in the display lists
+        RenderStateTracker state = new RenderStateTracker();
+        state.begin(gl);
+        
         gl.glPushMatrix();
             
         gl.glTranslatef(translation.x, translation.y, translation.z);
@@ -711,14 +1123,12 @@ public class BmdRenderer extends GLRenderer {
         gl.glRotatef(rotation.z, 1f, 0f, 0f);
         gl.glScalef(scale.x, scale.y, scale.z);
         
-        for(Bmd.SceneGraphNode node : model.sceneGraph) {
-            if(node.nodeType != 0) continue;
-            int shape = node.nodeID;
+        for(int n = 0; n < nodeShapes.length; n++) {
+            int shape = nodeShapes[n];
+            int matid = nodeMaterials[n];
             
-            if(visible != null) {
-                if(!visible.animData.get(shape).get(0))
-                    continue;
-            }
+            if(visible != null && !visible.isVisible(shape, 0))
+                continue;
             
             // Pole:
             // 0 -(joint)
@@ -728,214 +1138,280 @@ public class BmdRenderer extends GLRenderer {
             // 4 - top part
             // 5 -(joint)
 
-            if(node.materialID != 0xFFFF) {
-                int[] cullmodes = { GL2.GL_FRONT, GL2.GL_BACK, GL2.GL_FRONT_AND_BACK };
-                int[] depthfuncs = { GL2.GL_NEVER, GL2.GL_LESS, GL2.GL_EQUAL, GL2.GL_LEQUAL,
-                                     GL2.GL_GREATER, GL2.GL_NOTEQUAL, GL2.GL_GEQUAL, GL2.GL_ALWAYS };
-
-                Bmd.Material mat = model.materials[node.materialID];
+            if(matid == 0xFFFF)
+                throw new GLException(String.format("Material-less geometry node %1$d", shape));
+            
+            if(info.renderMode != RenderMode.PICKING && (materialStates[matid].translucent ^(info.renderMode == RenderMode.TRANSLUCENT)))
+                continue;
+            
+            applyMaterial(gl, info, state, matid);
+            
+            if(batchLayouts[shape].offsets[BakedMesh.ATTRIB_POSITION] < 0)
+                continue;
+            
+            if(hasVertexBuffers) {
+                drawBatchBuffers(gl, info, shape, instances, simplified);
+                continue;
+            }
+            
+            BakedMesh.Batch batch = mesh.batches[shape];
+            int stride = batch.stride;
+            
+            gl.glBegin(GL2.GL_TRIANGLES);
+            for(int i : batch.triangles)
+                emitVertex(gl, info, batch, i * stride);
+            gl.glEnd();
+            
+            for(int p = 0; p < batch.primTypes.length; p++) {
+                gl.glBegin(PRIM_TYPES[(batch.primTypes[p] - 0x80) / 8]);
+                for(int i = 0; i < batch.primCount[p]; i++)
+                    emitVertex(gl, info, batch, (batch.primFirst[p] + i) * stride);
+                gl.glEnd();
+            }
+        }
+        
+        gl.glPopMatrix();
+    }
+    
+    /**
+     * Sets the state of material {@code matid} through {@code state}. The picking pass only needs culling and depth.
+     */
+    private void applyMaterial(GL2 gl, RenderInfo info, RenderStateTracker state, int matid) {
+        MaterialState mat = materialStates[matid];
+        int[] texids = materialTextures[matid];
+        
+        if(info.renderMode != RenderMode.PICKING) {
+            if(hasShaders) {
+                // shader: handles multitexturing, color combination, alpha test
+                state.useProgram(gl, shaders[matid].program);
+
+                // do multitexturing
+                for(int i = 0; i < 8; i++)
+                    state.bindTexture(gl, i, texids[i]);
+            }
+            else {
+                // texturing -- texture 0 will be used
+                state.bindTexture(gl, 0, texids[0]);
 
-                if(info.renderMode != RenderMode.PICKING) {
-                    if((mat.drawFlag == 4) ^(info.renderMode == RenderMode.TRANSLUCENT))
-                        continue;
-                    if(hasShaders) {
-                        // shader: handles multitexturing, color combination, alpha test
-                        if(gl.isFunctionAvailable("glUseProgram"))
-                            gl.glUseProgram(shaders[node.materialID].program);
-
-                        // do multitexturing
-                        for(int i = 0; i < 8; i++)
-                        {
-                            if(gl.isFunctionAvailable("glActiveTexture"))
-                                gl.glActiveTexture(GL2.GL_TEXTURE0 + i);
-
-                            if(mat.texStages[i] ==(short)0xFFFF)
-                            {
-                                gl.glDisable(GL2.GL_TEXTURE_2D);
-                                continue;
-                            }
-
-                            int loc = gl.glGetUniformLocation(shaders[node.materialID].program, String.format("texture%1$d", i));
-                            gl.glUniform1i(loc, i);
-
-                            int texid = TextureCache.getTextureID(textures[mat.texStages[i]]);
-                            gl.glEnable(GL2.GL_TEXTURE_2D);
-                            gl.glBindTexture(GL2.GL_TEXTURE_2D, texid);
-                        }
-                    }
-                    else {
-                        int[] alphafunc = { GL2.GL_NEVER, GL2.GL_LESS, GL2.GL_EQUAL, GL2.GL_LEQUAL,
-                                            GL2.GL_GREATER, GL2.GL_NOTEQUAL, GL2.GL_GEQUAL, GL2.GL_ALWAYS };
-
-                        // texturing -- texture 0 will be used
-                        if(gl.isFunctionAvailable("glActiveTexture")) {try { gl.glActiveTexture(GL2.GL_TEXTURE0); } catch(GLException ex) {}}
-                        if(mat.texStages[0] !=(short)0xFFFF) {
-                            int texid = TextureCache.getTextureID(textures[mat.texStages[0]]);
-                            gl.glEnable(GL2.GL_TEXTURE_2D);
-                            gl.glBindTexture(GL2.GL_TEXTURE_2D, texid);
-                        }
-                        else
-                            gl.glDisable(GL2.GL_TEXTURE_2D);
-
-                        // alpha test -- only one comparison can be done
-                        if(mat.alphaComp.mergeFunc == 1 &&(mat.alphaComp.func0 == 7 || mat.alphaComp.func1 == 7))
-                            gl.glDisable(GL2.GL_ALPHA_TEST);
-                        else if(mat.alphaComp.mergeFunc == 0 &&(mat.alphaComp.func0 == 0 || mat.alphaComp.func1 == 0)) {
-                            gl.glEnable(GL2.GL_ALPHA_TEST);
-                            gl.glAlphaFunc(GL2.GL_NEVER, 0f);
-                        }
-                        else {
-                            gl.glEnable(GL2.GL_ALPHA_TEST);
-
-                            if((mat.alphaComp.mergeFunc == 1 && mat.alphaComp.func0 == 0) ||(mat.alphaComp.mergeFunc == 0 && mat.alphaComp.func0 == 7))
-                                gl.glAlphaFunc(alphafunc[mat.alphaComp.func1],(float)mat.alphaComp.ref1 / 255f);
-                            else
-                                gl.glAlphaFunc(alphafunc[mat.alphaComp.func0],(float)mat.alphaComp.ref0 / 255f);
-                        }
-                    }
+                // alpha test -- only one comparison can be done
+                state.setAlphaTest(gl, mat.alphaFunc, mat.alphaRef);
+            }
 
-                    switch(mat.blendMode.blendMode) {
-                        case 0: 
-                            gl.glDisable(GL2.GL_BLEND);
-                            gl.glDisable(GL2.GL_COLOR_LOGIC_OP);
-                            break;
-
-                        case 1:
-                        case 3:
-                            gl.glEnable(GL2.GL_BLEND);
-                            gl.glDisable(GL2.GL_COLOR_LOGIC_OP);
-                            if(gl.isFunctionAvailable("glBlendEquation")) {
-                                if(mat.blendMode.blendMode == 3)
-                                    gl.glBlendEquation(GL2.GL_FUNC_SUBTRACT);
-                                else
-                                    gl.glBlendEquation(GL2.GL_FUNC_ADD);
-                            }
-                            if(gl.isFunctionAvailable("glBlendFunc"))
-                                gl.glBlendFunc(blendsrc[mat.blendMode.srcFactor], blenddst[mat.blendMode.dstFactor]);
-                            break;
-
-                        case 2:
-                            gl.glDisable(GL2.GL_BLEND);
-                            gl.glEnable(GL2.GL_COLOR_LOGIC_OP);
-                            gl.glLogicOp(logicop[mat.blendMode.blendOp]);
-                            break;
-                    }
-                }
+            if(mat.blendMode >= 0)
+                state.setBlend(gl, mat.blendMode, mat.blendEquation, mat.blendSrc, mat.blendDst, mat.logicOp);
+        }
 
-                if(mat.cullMode == 0)
-                    gl.glDisable(GL2.GL_CULL_FACE);
-                else {
-                    gl.glEnable(GL2.GL_CULL_FACE);
-                    gl.glCullFace(cullmodes[mat.cullMode - 1]);
+        state.setCullFace(gl, mat.cullFace);
+        state.setDepth(gl, mat.depthFunc, mat.depthWrite);
+    }
+    
+    /**
+     * Returns the key the nodes of material {@code matid} are sorted by in a {@link RenderQueue}: the shader program,
+     * then the first texture, then the blend state.
+     */
+    private long sortKey(int matid) {
+        long program = hasShaders ? shaders[matid].program & 0xFFFF : 0;
+        long texture = materialTextures[matid][0] & 0xFFFF;
+        
+        return (program << 32) | (texture << 16) | materialStates[matid].blendKey;
+    }
+    
+    @Override
+    public boolean queueDraws(RenderInfo info, RenderQueue queue, Matrix4 transform, int instanceBuffer, int instances,
+            boolean simplified) throws GLException {
+        if(nodeShapes == null || !hasVertexBuffers || !hasPlainRender || info.renderMode == RenderMode.PICKING)
+            return false;
+        
+        for(int n = 0; n < nodeShapes.length; n++) {
+            int shape = nodeShapes[n];
+            int matid = nodeMaterials[n];
+            
+            if(visible != null && !visible.isVisible(shape, 0))
+                continue;
+            
+            if(matid == 0xFFFF)
+                throw new GLException(String.format("Material-less geometry node %1$d", shape));
+            
+            if(materialStates[matid].translucent ^(info.renderMode == RenderMode.TRANSLUCENT))
+                continue;
+            
+            if(batchLayouts[shape].offsets[BakedMesh.ATTRIB_POSITION] < 0)
+                continue;
+            
+            RenderQueue.Item item = queue.add(this, sortKey(matid));
+            item.node = shape;
+            item.material = matid;
+            item.transform = transform;
+            item.instanceBuffer = instanceBuffer;
+            item.instances = instances;
+            item.simplified = simplified;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Draws one item that {@link #queueDraws} added to a {@link RenderQueue}.
+     */
+    void drawQueued(GL2 gl, RenderInfo info, RenderStateTracker state, RenderQueue.Item item) {
+        applyMaterial(gl, info, state, item.material);
+        
+        if(hasShaders)
+            state.setInstanceBuffer(gl, item.transform == null ? item.instanceBuffer : 0);
+        
+        gl.glPushMatrix();
+        
+        if(item.transform != null)
+            gl.glMultMatrixf(item.transform.m, 0);
+        
+        gl.glTranslatef(translation.x, translation.y, translation.z);
+        gl.glRotatef(rotation.x, 0f, 0f, 1f);
+        gl.glRotatef(rotation.y, 0f, 1f, 0f);
+        gl.glRotatef(rotation.z, 1f, 0f, 0f);
+        gl.glScalef(scale.x, scale.y, scale.z);
+        
+        drawBatchBuffers(gl, info, item.node, item.transform == null ? item.instances : 0, item.simplified);
+        
+        gl.glPopMatrix();
+    }
+    
+    private void drawBatchBuffers(GL2 gl, RenderInfo info, int index, int instances, boolean simplified) {
+        BatchLayout batch = batchLayouts[index];
+        int stride = batch.stride * 4;
+        int[] off = batch.offsets;
+        
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBuffers[index]);
+        gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glVertexPointer(3, GL2.GL_FLOAT, stride, off[BakedMesh.ATTRIB_POSITION] * 4L);
+        
+        if(info.renderMode != RenderMode.PICKING) {
+            if(off[BakedMesh.ATTRIB_COLOR0] >= 0) {
+                gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+                gl.glColorPointer(4, GL2.GL_FLOAT, stride, off[BakedMesh.ATTRIB_COLOR0] * 4L);
+            }
+            
+            if(off[BakedMesh.ATTRIB_NORMAL] >= 0) {
+                gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+                gl.glNormalPointer(GL2.GL_FLOAT, stride, off[BakedMesh.ATTRIB_NORMAL] * 4L);
+            }
+            
+            if(hasShaders) {
+                if(off[BakedMesh.ATTRIB_COLOR1] >= 0) {
+                    gl.glEnableClientState(GL2.GL_SECONDARY_COLOR_ARRAY);
+                    gl.glSecondaryColorPointer(3, GL2.GL_FLOAT, stride, off[BakedMesh.ATTRIB_COLOR1] * 4L);
                 }
-
-                if(mat.zMode.enableZTest) {
-                    gl.glEnable(GL2.GL_DEPTH_TEST);
-                    gl.glDepthFunc(depthfuncs[mat.zMode.func]);
+                
+                for(int t = 0; t < 8; t++) {
+                    if(off[BakedMesh.ATTRIB_TEXCOORD0 + t] < 0)
+                        continue;
+                    
+                    gl.glClientActiveTexture(GL2.GL_TEXTURE0 + t);
+                    gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+                    gl.glTexCoordPointer(2, GL2.GL_FLOAT, stride, off[BakedMesh.ATTRIB_TEXCOORD0 + t] * 4L);
                 }
-                else
-                    gl.glDisable(GL2.GL_DEPTH_TEST);
-
-                gl.glDepthMask(mat.zMode.enableZWrite);
             }
+            else if(off[BakedMesh.ATTRIB_TEXCOORD0] >= 0) {
+                gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+                gl.glTexCoordPointer(2, GL2.GL_FLOAT, stride, off[BakedMesh.ATTRIB_TEXCOORD0] * 4L);
+            }
+        }
+        
+        simplified &= simplifiedBuffers[index] != 0;
+        int indexbuffer = simplified ? simplifiedBuffers[index] : indexBuffers[index];
+        int numindices = simplified ? simplifiedCounts[index] : batch.numIndices;
+        
+        if(numindices > 0) {
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexbuffer);
+            if(instances > 0)
+                gl.glDrawElementsInstanced(GL2.GL_TRIANGLES, numindices, indexTypes[index], 0L, instances);
             else
-                throw new GLException(String.format("Material-less geometry node %1$d", node.nodeID));
-
-            Bmd.Batch batch = model.batches[shape];
-            
-            for(Bmd.Batch.Packet packet : batch.packets) {
-                Matrix4[] mtxtable = new Matrix4[packet.matrixTable.length];
-
-                for(int i = 0; i < packet.matrixTable.length; i++) {
-                    if(packet.matrixTable[i] ==(short)0xFFFF)
-                        mtxtable[i] = lastmatrixtable[i];
-                    else {
-                        Bmd.MatrixType mtxtype = model.matrixTypes[packet.matrixTable[i]];
-
-                        if(mtxtype.isWeighted) {
-                            //throw new NotImplementedException("weighted matrix");
-
-                            // code inspired from bmdview2, except doesn't work right
-                            /*Matrix4 mtx = new Matrix4();
-                            Bmd.MultiMatrix mm = m_Model.MultiMatrices[mtxtype.Index];
-                            for(int j = 0; j < mm.NumMatrices; j++)
-                            {
-                                Matrix4 wmtx = mm.Matrices[j];
-                                float weight = mm.MatrixWeights[j];
-                                Matrix4.Mult(ref wmtx, ref m_Model.Joints[mm.MatrixIndices[j]].Matrix, out wmtx);
-                                Vector4.Mult(ref wmtx.Row0, weight, out wmtx.Row0);
-                                Vector4.Mult(ref wmtx.Row1, weight, out wmtx.Row1);
-                                Vector4.Mult(ref wmtx.Row2, weight, out wmtx.Row2);
-                                //Vector4.Mult(ref wmtx.Row3, weight, out wmtx.Row3);
-                                Vector4.Add(ref mtx.Row0, ref wmtx.Row0, out mtx.Row0);
-                                Vector4.Add(ref mtx.Row1, ref wmtx.Row1, out mtx.Row1);
-                                Vector4.Add(ref mtx.Row2, ref wmtx.Row2, out mtx.Row2);
-                                //Vector4.Add(ref mtx.Row3, ref wmtx.Row3, out mtx.Row3);
-                            }
-                            mtx.M44 = 1f;
-                            mtxtable[i] = mtx;*/
-
-                            // seems fine in most cases
-                            // but hey, certainly not right, that data has to be used in some way
-                            mtxtable[i] = new Matrix4();
-                        }
-                        else {
-                            mtxtable[i] = model.joints[mtxtype.index].finalMatrix;
-                        }
-                    }
-                }
-
-                lastmatrixtable = mtxtable;
-
-                for(Bmd.Batch.Packet.Primitive prim : packet.primitives) {
-                    int[] primtypes = { GL2.GL_QUADS, GL2.GL_POINTS, GL2.GL_TRIANGLES, GL2.GL_TRIANGLE_STRIP,
-                                        GL2.GL_TRIANGLE_FAN, GL2.GL_LINES, GL2.GL_LINE_STRIP, GL2.GL_POINTS };
-                    gl.glBegin(primtypes[(prim.primitiveType - 0x80) / 8]);
-
-                    if(info.renderMode != RenderMode.PICKING) {
-                        for(int i = 0; i < prim.numIndices; i++) {
-                            if((prim.arrayMask &(1 << 11)) != 0) { Color4 c = model.colorArray[0][prim.colorIndices[0][i]]; gl.glColor4f(c.r, c.g, c.b, c.a); }
-
-                            if(hasShaders) {
-                                if((prim.arrayMask &(1 << 12)) != 0) { Color4 c = model.colorArray[1][prim.colorIndices[1][i]]; gl.glSecondaryColor3f(c.r, c.g, c.b); }
-                                if((prim.arrayMask &(1 << 13)) != 0) { Vec2f t = model.texcoordArray[0][prim.texcoordIndices[0][i]]; gl.glMultiTexCoord2f(GL2.GL_TEXTURE0, t.x, t.y); }
-                                if((prim.arrayMask &(1 << 14)) != 0) { Vec2f t = model.texcoordArray[1][prim.texcoordIndices[1][i]]; gl.glMultiTexCoord2f(GL2.GL_TEXTURE1, t.x, t.y); }
-                                if((prim.arrayMask &(1 << 15)) != 0) { Vec2f t = model.texcoordArray[2][prim.texcoordIndices[2][i]]; gl.glMultiTexCoord2f(GL2.GL_TEXTURE2, t.x, t.y); }
-                                if((prim.arrayMask &(1 << 16)) != 0) { Vec2f t = model.texcoordArray[3][prim.texcoordIndices[3][i]]; gl.glMultiTexCoord2f(GL2.GL_TEXTURE3, t.x, t.y); }
-                                if((prim.arrayMask &(1 << 17)) != 0) { Vec2f t = model.texcoordArray[4][prim.texcoordIndices[4][i]]; gl.glMultiTexCoord2f(GL2.GL_TEXTURE4, t.x, t.y); }
-                                if((prim.arrayMask &(1 << 18)) != 0) { Vec2f t = model.texcoordArray[5][prim.texcoordIndices[5][i]]; gl.glMultiTexCoord2f(GL2.GL_TEXTURE5, t.x, t.y); }
-                                if((prim.arrayMask &(1 << 19)) != 0) { Vec2f t = model.texcoordArray[6][prim.texcoordIndices[6][i]]; gl.glMultiTexCoord2f(GL2.GL_TEXTURE6, t.x, t.y); }
-                                if((prim.arrayMask &(1 << 20)) != 0) { Vec2f t = model.texcoordArray[7][prim.texcoordIndices[7][i]]; gl.glMultiTexCoord2f(GL2.GL_TEXTURE7, t.x, t.y); }
-                            } else {
-                                if((prim.arrayMask &(1 << 13)) != 0) { Vec2f t = model.texcoordArray[0][prim.texcoordIndices[0][i]]; gl.glTexCoord2f(t.x, t.y); }
-                            }
-
-                            if((prim.arrayMask &(1 << 10)) != 0) { Vec3f n = model.normalArray[prim.normalIndices[i]]; gl.glNormal3f(n.x, n.y, n.z); }
-
-                            Vec3f pos = new Vec3f(model.positionArray[prim.positionIndices[i]]);
-                            if((prim.arrayMask & 1) != 0) Vec3f.transform(pos, mtxtable[prim.posMatrixIndices[i]], pos);
-                            else Vec3f.transform(pos, mtxtable[0], pos);
-                            gl.glVertex3f(pos.x, pos.y, pos.z);
-                        }
-                    }
-                    else {
-                        for(int i = 0; i < prim.numIndices; i++) {
-                            Vec3f pos = new Vec3f(model.positionArray[prim.positionIndices[i]]);
-                            if((prim.arrayMask & 1) != 0) Vec3f.transform(pos, mtxtable[prim.posMatrixIndices[i]], pos);
-                            else Vec3f.transform(pos, mtxtable[0], pos);
-                            gl.glVertex3f(pos.x, pos.y, pos.z);
-                        }
+                gl.glDrawElements(GL2.GL_TRIANGLES, numindices, indexTypes[index], 0L);
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+        }
+        
+        // Lines and points are stored in drawing order, so they need no indices. Simplified meshes leave them out.
+        for(int p = 0; p < batch.primTypes.length && !simplified; p++) {
+            int prim = PRIM_TYPES[(batch.primTypes[p] - 0x80) / 8];
+            
+            if(instances > 0)
+                gl.glDrawArraysInstanced(prim, batch.primFirst[p], batch.primCount[p], instances);
+            else
+                gl.glDrawArrays(prim, batch.primFirst[p], batch.primCount[p]);
+        }
+        
+        // Leave the client state as immediate mode expects it
+        if(hasShaders && info.renderMode != RenderMode.PICKING) {
+            for(int t = 7; t >= 0; t--) {
+                if(off[BakedMesh.ATTRIB_TEXCOORD0 + t] < 0)
+                    continue;
+                
+                gl.glClientActiveTexture(GL2.GL_TEXTURE0 + t);
+                gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+            }
+            
+            gl.glClientActiveTexture(GL2.GL_TEXTURE0);
+        }
+        
+        gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+        gl.glDisableClientState(GL2.GL_SECONDARY_COLOR_ARRAY);
+        gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+        gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+        gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    }
+    
+    private void emitVertex(GL2 gl, RenderInfo info, BakedMesh.Batch batch, int v) {
+        float[] vtx = batch.vertices;
+        int[] off = batch.offsets;
+        
+        if(info.renderMode != RenderMode.PICKING) {
+            if(off[BakedMesh.ATTRIB_COLOR0] >= 0) { int c = v + off[BakedMesh.ATTRIB_COLOR0]; gl.glColor4f(vtx[c], vtx[c + 1], vtx[c + 2], vtx[c + 3]); }
+            
+            if(hasShaders) {
+                if(off[BakedMesh.ATTRIB_COLOR1] >= 0) { int c = v + off[BakedMesh.ATTRIB_COLOR1]; gl.glSecondaryColor3f(vtx[c], vtx[c + 1], vtx[c + 2]); }
+                
+                for(int t = 0; t < 8; t++) {
+                    if(off[BakedMesh.ATTRIB_TEXCOORD0 + t] >= 0) {
+                        int tc = v + off[BakedMesh.ATTRIB_TEXCOORD0 + t];
+                        gl.glMultiTexCoord2f(GL2.GL_TEXTURE0 + t, vtx[tc], vtx[tc + 1]);
                     }
-
-                    gl.glEnd();
                 }
+            } else {
+                if(off[BakedMesh.ATTRIB_TEXCOORD0] >= 0) { int tc = v + off[BakedMesh.ATTRIB_TEXCOORD0]; gl.glTexCoord2f(vtx[tc], vtx[tc + 1]); }
             }
+            
+            if(off[BakedMesh.ATTRIB_NORMAL] >= 0) { int n = v + off[BakedMesh.ATTRIB_NORMAL]; gl.glNormal3f(vtx[n], vtx[n + 1], vtx[n + 2]); }
         }
         
-        gl.glPopMatrix();
+        int p = v + off[BakedMesh.ATTRIB_POSITION];
+        gl.glVertex3f(vtx[p], vtx[p + 1], vtx[p + 2]);
     }
     
     protected class Shader {
-        public int program, vertexShader, fragmentShader, cacheKey;
+        public int program, vertexShader, fragmentShader;
+        public ContentKey cacheKey;
+    }
+    
+    /**
+     * The GL state a material sets, resolved once so that drawing does not need the model's materials.
+     */
+    protected static class MaterialState {
+        public boolean translucent;
+        public int alphaFunc;
+        public float alphaRef;
+        public int blendMode, blendEquation, blendSrc, blendDst, logicOp; // blendMode -1 leaves the blending as is
+        public int cullFace, depthFunc; // 0 where culling or the depth test is disabled
+        public boolean depthWrite;
+        public long blendKey; // the blend state part of a sort key
+    }
+    
+    /**
+     * Where the vertex attributes and primitives of one batch lie in its buffers.
+     */
+    protected static class BatchLayout {
+        public int stride; // floats per vertex
+        public int[] offsets; // float offset of each ATTRIB_* inside a vertex, -1 if absent
+        public int numIndices;
+        public int[] primTypes, primFirst, primCount;
     }
 }
\ No newline at end of file
@@ -18,7 +18,6 @@ package whitehole.rendering;
 
 import com.jogamp.opengl.*;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import whitehole.Whitehole;
 import whitehole.io.RarcFile;
 import whitehole.smg.Bti;
@@ -32,6 +31,7 @@ public class BtiRenderer extends GLRenderer {
     private Vec3f point1 = null;
     private Vec3f point2 = null;
     private int texID;
+    private ContentKey texKey;
     private boolean isVertical;
     
     public boolean isValidBtiTexture() {
@@ -77,9 +77,18 @@ public class BtiRenderer extends GLRenderer {
     }
     
     private void uploadTexture(GL2 gl) {
+        texKey = TextureUploader.createKey(btiData.format, btiData.layout, btiData.width, btiData.height,
+                btiData.mipmapCount, btiData.wrapS, btiData.wrapT, btiData.minFilter, btiData.magFilter, btiData.image);
+        
+        if (TextureCache.containsEntry(texKey)) {
+            texID = TextureCache.getEntry(texKey).textureID;
+            return;
+        }
+        
         int[] texids = new int[1];
         gl.glGenTextures(1, texids, 0);
         texID = texids[0];
+        TextureCache.addEntry(texKey, texID);
 
         gl.glBindTexture(GL2.GL_TEXTURE_2D, texID);
         gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAX_LEVEL, btiData.mipmapCount - 1);
@@ -88,33 +97,7 @@ public class BtiRenderer extends GLRenderer {
         gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, WrapMode.values()[btiData.wrapS].get());
         gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, WrapMode.values()[btiData.wrapT].get());
 
-        int ifmt, fmt;
-        
-        switch (btiData.format) {
-            case 0:
-            case 1:
-                ifmt = GL2.GL_INTENSITY;
-                fmt = GL2.GL_LUMINANCE;
-                break;
-            case 2:
-            case 3:
-                ifmt = GL2.GL_LUMINANCE8_ALPHA8;
-                fmt = GL2.GL_LUMINANCE_ALPHA;
-                break;
-            default:
-                ifmt = 4;
-                fmt = GL2.GL_BGRA;
-                break;
-        }
-
-        int width = btiData.width;
-        int height = btiData.height;
-        
-        for (int mip = 0 ; mip < btiData.mipmapCount ; mip++) {
-            gl.glTexImage2D(GL2.GL_TEXTURE_2D, mip, ifmt, width, height, 0, fmt, GL2.GL_UNSIGNED_BYTE, ByteBuffer.wrap(btiData.image[mip]));
-            width /= 2;
-            height /= 2;
-        }
+        TextureUploader.upload(gl, btiData.format, btiData.layout, btiData.width, btiData.height, btiData.image);
     }
     
     // -------------------------------------------------------------------------------------------------------------------------
@@ -123,7 +106,9 @@ public class BtiRenderer extends GLRenderer {
     public void close(RenderInfo info) throws GLException {
         GL2 gl = info.drawable.getGL().getGL2();
         
-        gl.glDeleteTextures(1, new int[] { texID }, 0);
+        if (texID != 0 && TextureCache.removeEntry(texKey)) {
+            gl.glDeleteTextures(1, new int[] { texID }, 0);
+        }
 
         if (btiData != null) {
             try {
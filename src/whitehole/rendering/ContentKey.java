@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import java.util.Arrays;
+import whitehole.util.XXHash64;
+
+/**
+ * Content-addressed key for {@link TextureCache} and {@link ShaderCache}. Keys compare by a 64-bit XXH64 hash of
+ * the content. Small contents are kept and compared byte for byte on a hash match, so their keys are exact.<br>
+ * Large contents are not kept, as that would double the memory of every cached texture. Their keys only compare a
+ * second XXH64 with an independent seed and the length on top, which makes equality probabilistic: two different
+ * contents are taken for the same one if both 64-bit hashes collide, which is astronomically unlikely but possible.
+ */
+public final class ContentKey {
+    private static final long SEED = 0L;
+    private static final long CHECK_SEED = 0x5748495445484F4CL;
+    private static final int MAX_STORED_CONTENT = 256;
+    
+    private final long hash, check;
+    private final int length;
+    private final byte[] content; // null if too large to keep
+    
+    private ContentKey(long hash, long check, int length, byte[] content) {
+        this.hash = hash;
+        this.check = check;
+        this.length = length;
+        this.content = content;
+    }
+    
+    static ContentKey of(byte[] data, int len) {
+        long hash = XXHash64.calculate(data, SEED, 0, len);
+        
+        if (len <= MAX_STORED_CONTENT) {
+            return new ContentKey(hash, 0L, len, Arrays.copyOf(data, len));
+        }
+        
+        return new ContentKey(hash, XXHash64.calculate(data, CHECK_SEED, 0, len), len, null);
+    }
+    
+    static ContentKey of(byte[]... parts) {
+        long hash = SEED, check = CHECK_SEED;
+        int len = 0;
+        
+        for (byte[] part : parts) {
+            hash = XXHash64.calculate(part, hash);
+            check = XXHash64.calculate(part, check);
+            len += part.length;
+        }
+        
+        if (len > MAX_STORED_CONTENT) {
+            return new ContentKey(hash, check, len, null);
+        }
+        
+        byte[] content = new byte[len];
+        int pos = 0;
+        
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, content, pos, part.length);
+            pos += part.length;
+        }
+        
+        return new ContentKey(hash, check, len, content);
+    }
+    
+    @Override
+    public int hashCode() {
+        return (int)(hash ^ (hash >>> 32));
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        
+        if (!(obj instanceof ContentKey)) {
+            return false;
+        }
+        
+        ContentKey other = (ContentKey)obj;
+        
+        if (hash != other.hash || check != other.check || length != other.length) {
+            return false;
+        }
+        
+        // Keys without content only get here if both hashes match, see the class comment
+        if (content == null || other.content == null) {
+            return content == other.content;
+        }
+        
+        return Arrays.equals(content, other.content);
+    }
+}
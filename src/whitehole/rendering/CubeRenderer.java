@@ -17,6 +17,8 @@
 package whitehole.rendering;
 
 import com.jogamp.opengl.*;
+import whitehole.math.Vec3f;
+import whitehole.smg.TriangleBvh;
 import whitehole.util.Color4;
 
 public class CubeRenderer extends GLRenderer {
@@ -70,6 +72,29 @@ public class CubeRenderer extends GLRenderer {
         return false;
     }
 
+    @Override
+    public boolean getBounds(Vec3f min, Vec3f max) {
+        float ext = showAxes ? cubeSize * 2f : cubeSize; // the axes stick out of the cube
+        min.x = min.y = min.z = -cubeSize;
+        max.x = max.y = max.z = ext;
+        return true;
+    }
+
+    @Override
+    public boolean raycast(Vec3f origin, Vec3f dir, RayHit hit) {
+        Vec3f min = new Vec3f(-cubeSize, -cubeSize, -cubeSize);
+        Vec3f max = new Vec3f(cubeSize, cubeSize, cubeSize);
+        float distance = TriangleBvh.intersectBox(origin, dir, min, max, hit.distance);
+
+        if (distance < 0f) {
+            return false;
+        }
+
+        hit.distance = distance;
+        hit.subMesh = -1;
+        return true;
+    }
+
     @Override
     public boolean gottaRender(RenderInfo info) throws GLException {
         return info.renderMode != RenderMode.TRANSLUCENT;
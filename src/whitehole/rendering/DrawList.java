@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import com.jogamp.opengl.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import whitehole.Settings;
+import whitehole.math.Frustum;
+import whitehole.math.Matrix4;
+import whitehole.math.Octree;
+import whitehole.math.Vec3f;
+import whitehole.smg.object.AbstractObj;
+
+/**
+ * The objects of the scene, each with its world transform and world bounds, kept in an {@link Octree} for spatial
+ * queries. The list is rebuilt when the scenario changes and kept up to date when single objects are moved, added or
+ * deleted, so that edits never have to recompile display lists.<br>
+ * Every frame only the objects inside the view frustum are drawn. Those whose renderer supports instancing are handed
+ * to an {@link InstanceBatcher}, and those that only cover a few pixels are drawn at a lower {@link LevelOfDetail}.
+ */
+public class DrawList {
+    private static final float MIN_CELL_SIZE = 250f;
+    
+    public static class Entry {
+        public final AbstractObj obj;
+        public final GLRenderer renderer;
+        public final Matrix4 transform = new Matrix4();
+        public final Vec3f boundsMin = new Vec3f(), boundsMax = new Vec3f(); // in world space
+        public final boolean isBounded; // false if the renderer's extent is unknown, the bounds are just the position then
+        final Matrix4 zoneTransform;
+        final Vec3f center = new Vec3f();
+        float radius;
+        LevelOfDetail.Level level = LevelOfDetail.Level.FULL;
+        
+        Entry(AbstractObj obj, Matrix4 zoneTransform) {
+            this.obj = obj;
+            this.renderer = obj.renderer;
+            this.zoneTransform = zoneTransform;
+            
+            isBounded = renderer.getBounds(boundsMin, boundsMax);
+            update();
+        }
+        
+        /**
+         * Recomputes the world transform and bounds from the object's current position, rotation and scale.
+         */
+        final void update() {
+            Matrix4.mult(obj.getTransform(), zoneTransform, transform);
+            
+            if (isBounded) {
+                renderer.getBounds(boundsMin, boundsMax);
+                Matrix4.transformBounds(transform, boundsMin, boundsMax, boundsMin, boundsMax);
+                
+                Vec3f.add(boundsMin, boundsMax, center);
+                center.scale(0.5f);
+                radius = Vec3f.distance(center, boundsMax);
+            }
+            else {
+                center.x = transform.m[12];
+                center.y = transform.m[13];
+                center.z = transform.m[14];
+                boundsMin.set(center);
+                boundsMax.set(center);
+                radius = 0f;
+            }
+        }
+    }
+    
+    private final IdentityHashMap<AbstractObj, Entry> entriesByObject = new IdentityHashMap();
+    private final HashMap<String, Matrix4> zoneTransforms = new HashMap();
+    private final Octree<Entry> index = new Octree(MIN_CELL_SIZE);
+    private final ArrayList<Entry> unboundedEntries = new ArrayList();
+    private final ArrayList<Entry> visibleEntries = new ArrayList();
+    private final InstanceBatcher batcher = new InstanceBatcher();
+    private final RenderQueue queue = new RenderQueue();
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Removes all entries and zones. The instance groups go as well, since their renderers may be closed by now.
+     */
+    public void clear(GL2 gl) {
+        entriesByObject.clear();
+        unboundedEntries.clear();
+        zoneTransforms.clear();
+        index.clear();
+        visibleEntries.clear();
+        batcher.close(gl);
+    }
+    
+    /**
+     * Places the zone {@code zone} at the world transform {@code transform}. Objects can only be added once their zone
+     * is placed.
+     */
+    public void setZoneTransform(String zone, Matrix4 transform) {
+        zoneTransforms.put(zone, transform);
+    }
+    
+    /**
+     * Adds {@code obj}, whose renderer has to be initialized, inside of its zone. Returns null if the zone is not placed.
+     */
+    public Entry add(AbstractObj obj) {
+        Matrix4 zoneTransform = zoneTransforms.get(obj.stage.stageName);
+        
+        if (zoneTransform == null) {
+            return null;
+        }
+        
+        remove(obj);
+        
+        Entry entry = new Entry(obj, zoneTransform);
+        entriesByObject.put(obj, entry);
+        
+        if (!entry.isBounded) {
+            unboundedEntries.add(entry);
+        }
+        
+        index.insert(entry, entry.boundsMin, entry.boundsMax);
+        return entry;
+    }
+    
+    /**
+     * Updates the transform and bounds of {@code obj} after it was moved, rotated or scaled. Returns false if the object
+     * is not in the list.
+     */
+    public boolean update(AbstractObj obj) {
+        Entry entry = entriesByObject.get(obj);
+        
+        if (entry == null) {
+            return false;
+        }
+        
+        entry.update();
+        index.insert(entry, entry.boundsMin, entry.boundsMax);
+        return true;
+    }
+    
+    /**
+     * Removes {@code obj} and returns true if it was in the list.
+     */
+    public boolean remove(AbstractObj obj) {
+        Entry entry = entriesByObject.remove(obj);
+        
+        if (entry == null) {
+            return false;
+        }
+        
+        if (!entry.isBounded) {
+            unboundedEntries.remove(entry);
+        }
+        
+        // The visible entries are collected again by the next cull
+        visibleEntries.clear();
+        index.remove(entry);
+        return true;
+    }
+    
+    public Entry getEntry(AbstractObj obj) {
+        return entriesByObject.get(obj);
+    }
+    
+    /**
+     * Returns the spatial index over all entries, for range, nearest neighbour, frustum and ray queries. Entries that are
+     * not {@link Entry#isBounded} are indexed by their position.
+     */
+    public Octree<Entry> getIndex() {
+        return index;
+    }
+    
+    /**
+     * Collects the entries that intersect {@code frustum}, picks their detail level and uploads the transforms of the
+     * visible instanced entries. Entries without known bounds are always visible. {@code eye} is the camera position
+     * and {@code pixelScale} the height of the view in pixels divided by the view height at distance 1.
+     */
+    public void cull(GL2 gl, Frustum frustum, Vec3f eye, float pixelScale) {
+        boolean useLod = Settings.getUseLod();
+        int simplifiedSize = Settings.getLodSimplifiedSize();
+        int proxySize = Settings.getLodProxySize();
+        
+        visibleEntries.clear();
+        index.queryFrustum(frustum, visibleEntries);
+        visibleEntries.removeIf(entry -> !entry.isBounded);
+        visibleEntries.addAll(unboundedEntries);
+        
+        batcher.clear();
+        
+        for (Entry entry : visibleEntries) {
+            entry.level = LevelOfDetail.Level.FULL;
+            
+            if (useLod && entry.isBounded && entry.renderer.supportsLod()) {
+                float distance = Vec3f.distance(eye, entry.center);
+                
+                if (distance > entry.radius) {
+                    float screenSize = 2f * entry.radius * pixelScale / distance;
+                    entry.level = LevelOfDetail.select(screenSize, simplifiedSize, proxySize);
+                }
+            }
+            
+            if (entry.level != LevelOfDetail.Level.PROXY) {
+                batcher.add(entry.renderer, entry.transform, entry.level == LevelOfDetail.Level.SIMPLIFIED);
+            }
+        }
+        
+        batcher.upload(gl);
+    }
+    
+    /**
+     * Draws the visible entries for the opaque or translucent pass in {@code info}. Renderers that support it go through
+     * a {@link RenderQueue}, the others call their display lists.
+     */
+    public void render(GLRenderer.RenderInfo info) throws GLException {
+        GL2 gl = info.drawable.getGL().getGL2();
+        int mode = info.renderMode.ordinal();
+        
+        for (Entry entry : visibleEntries) {
+            if (entry.level == LevelOfDetail.Level.PROXY || entry.renderer.supportsInstancing()) {
+                continue;
+            }
+            
+            boolean simplified = entry.level == LevelOfDetail.Level.SIMPLIFIED;
+            
+            if (entry.renderer.queueDraws(info, queue, entry.transform, 0, 0, simplified)) {
+                continue;
+            }
+            
+            if (simplified) {
+                if (entry.renderer.gottaRender(info)) {
+                    gl.glPushMatrix();
+                    gl.glMultMatrixf(entry.transform.m, 0);
+                    entry.renderer.renderSimplified(info);
+                    gl.glPopMatrix();
+                }
+                continue;
+            }
+            
+            int[] displayLists = entry.renderer.displayLists;
+            
+            if (displayLists == null || displayLists[mode] == 0) {
+                continue;
+            }
+            
+            gl.glPushMatrix();
+            gl.glMultMatrixf(entry.transform.m, 0);
+            gl.glCallList(displayLists[mode]);
+            gl.glPopMatrix();
+        }
+        
+        batcher.render(info, queue);
+        queue.flush(info);
+        
+        if (info.renderMode == GLRenderer.RenderMode.OPAQUE) {
+            renderProxies(gl);
+        }
+    }
+    
+    /**
+     * Draws the visible entries for the picking pass, each in the color that encodes its object's unique ID. Proxies and
+     * simplified entries are picked at full detail.
+     */
+    public void renderPicking(GL2 gl) {
+        for (Entry entry : visibleEntries) {
+            int[] displayLists = entry.renderer.displayLists;
+            
+            if (displayLists == null || displayLists[0] == 0) {
+                continue;
+            }
+            
+            int uniqueID = entry.obj.uniqueID << 3;
+            gl.glColor4ub((byte)(uniqueID >>> 16), (byte)(uniqueID >>> 8), (byte)uniqueID, (byte)0xFF);
+            
+            gl.glPushMatrix();
+            gl.glMultMatrixf(entry.transform.m, 0);
+            gl.glCallList(displayLists[0]);
+            gl.glPopMatrix();
+        }
+    }
+    
+    /**
+     * Draws the world bounds of all proxy entries as flat colored boxes.
+     */
+    private void renderProxies(GL2 gl) {
+        boolean begun = false;
+        
+        for (Entry entry : visibleEntries) {
+            if (entry.level != LevelOfDetail.Level.PROXY) {
+                continue;
+            }
+            
+            if (!begun) {
+                try { gl.glUseProgram(0); } catch (GLException ex) {}
+                
+                for (int i = 0 ; i < 8 ; i++) {
+                    gl.glActiveTexture(GL2.GL_TEXTURE0 + i);
+                    gl.glDisable(GL2.GL_TEXTURE_2D);
+                }
+                
+                gl.glActiveTexture(GL2.GL_TEXTURE0);
+                gl.glDisable(GL2.GL_BLEND);
+                gl.glDisable(GL2.GL_ALPHA_TEST);
+                gl.glDisable(GL2.GL_COLOR_LOGIC_OP);
+                gl.glEnable(GL2.GL_DEPTH_TEST);
+                gl.glDepthMask(true);
+                gl.glBegin(GL2.GL_QUADS);
+                begun = true;
+            }
+            
+            int color = entry.renderer.getProxyColor();
+            gl.glColor3ub((byte)(color >>> 16), (byte)(color >>> 8), (byte)color);
+            emitBox(gl, entry.boundsMin, entry.boundsMax);
+        }
+        
+        if (begun) {
+            gl.glEnd();
+        }
+    }
+    
+    private static void emitBox(GL2 gl, Vec3f min, Vec3f max) {
+        float x0 = min.x, y0 = min.y, z0 = min.z;
+        float x1 = max.x, y1 = max.y, z1 = max.z;
+        
+        gl.glVertex3f(x0, y0, z0); gl.glVertex3f(x0, y1, z0); gl.glVertex3f(x1, y1, z0); gl.glVertex3f(x1, y0, z0);
+        gl.glVertex3f(x0, y0, z1); gl.glVertex3f(x1, y0, z1); gl.glVertex3f(x1, y1, z1); gl.glVertex3f(x0, y1, z1);
+        gl.glVertex3f(x0, y0, z0); gl.glVertex3f(x0, y0, z1); gl.glVertex3f(x0, y1, z1); gl.glVertex3f(x0, y1, z0);
+        gl.glVertex3f(x1, y0, z0); gl.glVertex3f(x1, y1, z0); gl.glVertex3f(x1, y1, z1); gl.glVertex3f(x1, y0, z1);
+        gl.glVertex3f(x0, y0, z0); gl.glVertex3f(x1, y0, z0); gl.glVertex3f(x1, y0, z1); gl.glVertex3f(x0, y0, z1);
+        gl.glVertex3f(x0, y1, z0); gl.glVertex3f(x0, y1, z1); gl.glVertex3f(x1, y1, z1); gl.glVertex3f(x1, y1, z0);
+    }
+    
+    /**
+     * Casts a ray from {@code origin} along {@code dir}, both in world space, against the surfaces of all entries and
+     * stores the closest hit in {@code hit}. Returns false if nothing was hit.
+     */
+    public boolean raycast(Vec3f origin, Vec3f dir, RayHit hit) {
+        Vec3f localOrigin = new Vec3f(), localDir = new Vec3f();
+        ArrayList<Entry> candidates = new ArrayList();
+        boolean found = false;
+        
+        index.queryRay(origin, dir, hit.distance, candidates);
+        
+        for (Entry entry : candidates) {
+            if (!entry.isBounded) {
+                continue;
+            }
+            
+            Matrix4 inverse;
+            
+            try {
+                inverse = Matrix4.invert(entry.transform);
+            }
+            catch (IllegalArgumentException ex) {
+                continue;
+            }
+            
+            // Affine transforms keep distances along the ray, so the local hit distance is the world one
+            Vec3f.transform(origin, inverse, localOrigin);
+            Vec3f.transformDirection(dir, inverse, localDir);
+            
+            if (entry.renderer.raycast(localOrigin, localDir, hit)) {
+                hit.obj = entry.obj;
+                found = true;
+            }
+        }
+        
+        if (found) {
+            hit.point.set(dir);
+            hit.point.scale(hit.distance);
+            hit.point.add(origin);
+        }
+        
+        return found;
+    }
+    
+    public void close(GL2 gl) {
+        clear(gl);
+    }
+}
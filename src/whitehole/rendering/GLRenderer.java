@@ -17,6 +17,7 @@
 package whitehole.rendering;
 
 import com.jogamp.opengl.*;
+import whitehole.math.Matrix4;
 import whitehole.math.Vec3f;
 
 public abstract class GLRenderer {
@@ -73,6 +74,67 @@ public abstract class GLRenderer {
     public boolean boundToObjArg(int arg) { return false; }
     public boolean boundToProperty() { return false; }
     
+    /**
+     * Stores the local bounding box of what {@link #render} draws in {@code min} and {@code max}. Returns false if the
+     * extent is unknown, such renderers are never culled.
+     */
+    public boolean getBounds(Vec3f min, Vec3f max) { return false; }
+    
+    /**
+     * Casts a ray from {@code origin} along {@code dir}, both in the space {@link #render} draws in, against the drawn
+     * surfaces. If they are hit closer than {@code hit.distance}, stores the distance and sub-mesh in {@code hit} and
+     * returns true. Renderers without solid geometry are never hit.
+     */
+    public boolean raycast(Vec3f origin, Vec3f dir, RayHit hit) { return false; }
+    
+    /**
+     * Returns true if {@link #renderInstanced} can draw this renderer for many objects at once.
+     */
+    public boolean supportsInstancing() { return false; }
+    
+    /**
+     * Draws {@code count} instances whose transforms are stored in {@code instanceBuffer}, laid out as described by
+     * {@link InstanceBatcher}. Uses the simplified mesh if {@code simplified} is set and the renderer supports it. Only
+     * used for the opaque and translucent passes.
+     */
+    public void renderInstanced(RenderInfo info, int instanceBuffer, int count, boolean simplified) throws GLException {}
+    
+    /**
+     * Returns true if {@link #renderSimplified} draws a cheaper version of this renderer for distant objects.
+     */
+    public boolean supportsLod() { return false; }
+    
+    /**
+     * Draws the simplified version of {@link #render} at the current matrix. Only used for the opaque and translucent
+     * passes.
+     */
+    public void renderSimplified(RenderInfo info) throws GLException {}
+    
+    /**
+     * Adds the draws of the opaque or translucent pass in {@code info} to {@code queue} instead of drawing them right away.
+     * They are drawn at {@code transform}, or as {@code instances} instances from {@code instanceBuffer} if
+     * {@code transform} is null. Returns false if nothing was queued, the caller has to draw the renderer itself then.
+     */
+    public boolean queueDraws(RenderInfo info, RenderQueue queue, Matrix4 transform, int instanceBuffer, int instances,
+            boolean simplified) throws GLException { return false; }
+    
+    /**
+     * Returns the RGB color of the box that stands in for this renderer when it is too far away to make out.
+     */
+    public int getProxyColor() { return 0x808080; }
+    
+    /**
+     * Returns the matrix of the translate, rotate and scale calls that renderers use to offset their submodels.
+     */
+    static Matrix4 offsetTransform(Vec3f translation, Vec3f rotation, Vec3f scale) {
+        Matrix4 ret = Matrix4.scale(scale);
+        Matrix4.mult(ret, Matrix4.createRotationX((float)Math.toRadians(rotation.z)), ret);
+        Matrix4.mult(ret, Matrix4.createRotationY((float)Math.toRadians(rotation.y)), ret);
+        Matrix4.mult(ret, Matrix4.createRotationZ((float)Math.toRadians(rotation.x)), ret);
+        Matrix4.mult(ret, Matrix4.createTranslation(translation), ret);
+        return ret;
+    }
+    
     public void compileDisplayLists(RenderInfo info) throws GLException {
         if (displayLists != null) {
             return;
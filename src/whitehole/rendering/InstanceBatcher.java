@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import com.jogamp.opengl.*;
+import java.nio.FloatBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import whitehole.math.Matrix4;
+
+/**
+ * Groups object transforms by renderer so that every group can be drawn with instanced draw calls. RendererCache hands
+ * the same renderer to all objects with the same cache key, so grouping by renderer groups by cache key.<br>
+ * Each instance is stored as the first three rows of its object matrix, which is all an affine transform needs. Instances
+ * that use the simplified mesh of their renderer are kept apart from the full-detail ones.
+ */
+public class InstanceBatcher {
+    static final int FLOATS_PER_INSTANCE = 12;
+    static final int INSTANCE_STRIDE = FLOATS_PER_INSTANCE * 4;
+    private static final int MAX_IDLE_UPLOADS = 60; // groups without instances for this long are deleted
+    
+    private static class Instances {
+        float[] transforms = new float[FLOATS_PER_INSTANCE * 16];
+        int count = 0;
+        int buffer = 0;
+        int capacity = 0; // in instances
+    }
+    
+    private static class Group {
+        final GLRenderer renderer;
+        final Instances full = new Instances();
+        final Instances simplified = new Instances();
+        int idleUploads = 0;
+        
+        Group(GLRenderer renderer) {
+            this.renderer = renderer;
+        }
+    }
+    
+    private final IdentityHashMap<GLRenderer, Group> groups = new IdentityHashMap();
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Forgets all instances. The buffers are kept and reused by the next {@link #upload}, which deletes the groups that
+     * stayed empty for a while, such as those of closed renderers.
+     */
+    public void clear() {
+        for (Group group : groups.values()) {
+            group.full.count = 0;
+            group.simplified.count = 0;
+        }
+    }
+    
+    /**
+     * Adds an instance of {@code renderer} at {@code transform}, drawn with the simplified mesh if {@code simplified}
+     * is set. Returns false if the renderer cannot be instanced, in which case the caller has to draw the object itself.
+     */
+    public boolean add(GLRenderer renderer, Matrix4 transform, boolean simplified) {
+        if (renderer == null || !renderer.supportsInstancing()) {
+            return false;
+        }
+        
+        Group group = groups.computeIfAbsent(renderer, Group::new);
+        Instances instances = simplified ? group.simplified : group.full;
+        int offset = instances.count * FLOATS_PER_INSTANCE;
+        
+        if (offset + FLOATS_PER_INSTANCE > instances.transforms.length) {
+            float[] grown = new float[instances.transforms.length * 2];
+            System.arraycopy(instances.transforms, 0, grown, 0, offset);
+            instances.transforms = grown;
+        }
+        
+        float[] m = transform.m;
+        float[] dst = instances.transforms;
+        
+        for (int row = 0 ; row < 3 ; row++) {
+            dst[offset++] = m[row];
+            dst[offset++] = m[row + 4];
+            dst[offset++] = m[row + 8];
+            dst[offset++] = m[row + 12];
+        }
+        
+        instances.count++;
+        return true;
+    }
+    
+    /**
+     * Uploads the collected transforms. Groups without instances keep their buffers for later frames, unless they have
+     * been empty for {@link #MAX_IDLE_UPLOADS} uploads in a row.
+     */
+    public void upload(GL2 gl) {
+        Iterator<Group> it = groups.values().iterator();
+        
+        while (it.hasNext()) {
+            Group group = it.next();
+            
+            if (group.full.count == 0 && group.simplified.count == 0) {
+                if (++group.idleUploads > MAX_IDLE_UPLOADS) {
+                    deleteBuffers(gl, group);
+                    it.remove();
+                }
+                
+                continue;
+            }
+            
+            group.idleUploads = 0;
+            upload(gl, group.full);
+            upload(gl, group.simplified);
+        }
+        
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    }
+    
+    private static void upload(GL2 gl, Instances instances) {
+        if (instances.count == 0) {
+            return;
+        }
+        
+        if (instances.buffer == 0) {
+            int[] buffers = new int[1];
+            gl.glGenBuffers(1, buffers, 0);
+            instances.buffer = buffers[0];
+        }
+        
+        FloatBuffer data = FloatBuffer.wrap(instances.transforms, 0, instances.count * FLOATS_PER_INSTANCE);
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, instances.buffer);
+        
+        if (instances.count > instances.capacity) {
+            instances.capacity = instances.transforms.length / FLOATS_PER_INSTANCE;
+            gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long)instances.capacity * INSTANCE_STRIDE, null, GL2.GL_DYNAMIC_DRAW);
+        }
+        
+        gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, 0L, (long)instances.count * INSTANCE_STRIDE, data);
+    }
+    
+    /**
+     * Adds every group for the opaque or translucent pass in {@code info} to {@code queue}. Groups whose renderer cannot
+     * be queued are drawn right away.
+     */
+    public void render(GLRenderer.RenderInfo info, RenderQueue queue) throws GLException {
+        for (Group group : groups.values()) {
+            if (!group.renderer.gottaRender(info)) {
+                continue;
+            }
+            
+            render(info, queue, group.renderer, group.full, false);
+            render(info, queue, group.renderer, group.simplified, true);
+        }
+    }
+    
+    private static void render(GLRenderer.RenderInfo info, RenderQueue queue, GLRenderer renderer, Instances instances,
+            boolean simplified) throws GLException {
+        if (instances.count == 0) {
+            return;
+        }
+        
+        if (!renderer.queueDraws(info, queue, null, instances.buffer, instances.count, simplified)) {
+            renderer.renderInstanced(info, instances.buffer, instances.count, simplified);
+        }
+    }
+    
+    private static void deleteBuffers(GL2 gl, Group group) {
+        int[] buffers = { group.full.buffer, group.simplified.buffer };
+        gl.glDeleteBuffers(2, buffers, 0); // zero names are ignored
+    }
+    
+    /**
+     * Deletes all groups and their buffers.
+     */
+    public void close(GL2 gl) {
+        for (Group group : groups.values()) {
+            deleteBuffers(gl, group);
+        }
+        
+        groups.clear();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import java.util.HashSet;
+import whitehole.math.Vec3f;
+import whitehole.smg.BakedMesh;
+
+/**
+ * Detail levels for objects that cover only a few pixels on screen. Distant objects are drawn with a simplified mesh,
+ * very distant ones as a box in the average color of their texture.
+ */
+public final class LevelOfDetail {
+    private LevelOfDetail() {}
+    
+    public static enum Level {
+        FULL,
+        SIMPLIFIED,
+        PROXY
+    }
+    
+    private static final int GRID_SIZE = 24; // clustering cells along each axis of the model bounds
+    private static final float MIN_REDUCTION = 0.75f;
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Picks the level for an object whose bounding sphere is {@code screenSize} pixels wide.
+     */
+    static Level select(float screenSize, int simplifiedSize, int proxySize) {
+        if (screenSize < proxySize) {
+            return Level.PROXY;
+        }
+        if (screenSize < simplifiedSize) {
+            return Level.SIMPLIFIED;
+        }
+        return Level.FULL;
+    }
+    
+    /**
+     * Simplifies the triangles of {@code batch} by vertex clustering: all vertices that fall into the same cell of a grid
+     * laid over the model bounds {@code min} to {@code max} are merged into the first of them. Triangles that collapse
+     * are dropped. Returns the new triangle list, or null if it would not save enough triangles to be worth it.
+     */
+    static int[] simplify(BakedMesh.Batch batch, Vec3f min, Vec3f max) {
+        int[] triangles = batch.triangles;
+        
+        if (triangles.length == 0 || batch.numVertices >= (1 << 21)) {
+            return null;
+        }
+        
+        float sx = cellScale(min.x, max.x);
+        float sy = cellScale(min.y, max.y);
+        float sz = cellScale(min.z, max.z);
+        
+        // Map every vertex to the first vertex that landed in its cell
+        int[] cells = new int[GRID_SIZE * GRID_SIZE * GRID_SIZE];
+        int[] remap = new int[batch.numVertices];
+        float[] vertices = batch.vertices;
+        int pos = batch.offsets[BakedMesh.ATTRIB_POSITION];
+        
+        for (int i = 0 ; i < batch.numVertices ; i++) {
+            int base = i * batch.stride + pos;
+            int cx = cell(vertices[base], min.x, sx);
+            int cy = cell(vertices[base + 1], min.y, sy);
+            int cz = cell(vertices[base + 2], min.z, sz);
+            int index = (cz * GRID_SIZE + cy) * GRID_SIZE + cx;
+            
+            if (cells[index] == 0) {
+                cells[index] = i + 1;
+            }
+            
+            remap[i] = cells[index] - 1;
+        }
+        
+        // Remap the triangles, dropping collapsed ones and duplicates
+        int[] result = new int[triangles.length];
+        int count = 0;
+        HashSet<Long> seen = new HashSet();
+        
+        for (int i = 0 ; i < triangles.length ; i += 3) {
+            int a = remap[triangles[i]];
+            int b = remap[triangles[i + 1]];
+            int c = remap[triangles[i + 2]];
+            
+            if (a == b || b == c || a == c) {
+                continue;
+            }
+            
+            // Rotate the smallest index to the front so that the key keeps the winding order
+            int t;
+            while (a > b || a > c) {
+                t = a; a = b; b = c; c = t;
+            }
+            
+            if (!seen.add(((long)a << 42) | ((long)b << 21) | c)) {
+                continue;
+            }
+            
+            result[count++] = a;
+            result[count++] = b;
+            result[count++] = c;
+        }
+        
+        if (count == 0 || count > triangles.length * MIN_REDUCTION) {
+            return null;
+        }
+        
+        int[] trimmed = new int[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+    
+    private static float cellScale(float min, float max) {
+        float extent = max - min;
+        return extent > 0f ? GRID_SIZE / extent : 0f;
+    }
+    
+    private static int cell(float value, float min, float scale) {
+        int cell = (int)((value - min) * scale);
+        return cell < 0 ? 0 : cell >= GRID_SIZE ? GRID_SIZE - 1 : cell;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Loads models on a worker pool ahead of their renderers. The CPU-side work (opening the archive, parsing the
+ * BMD/BDL, decoding its textures and baking the geometry) runs in the background, so that creating a
+ * {@link BmdRenderer} on the GL thread afterwards only has to upload the data.
+ */
+public final class ModelPreloader {
+    private ModelPreloader() {}
+    
+    private static final ExecutorService LOADER_POOL = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1), r -> {
+                Thread thread = new Thread(r, "Model loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+    
+    private static final class Entry {
+        final CompletableFuture<BmdRenderer.LoadedModel> future;
+        final Set<Object> owners = new HashSet();
+        volatile boolean cancelled = false;
+        
+        Entry(String modelName) {
+            future = CompletableFuture.supplyAsync(() -> cancelled ? null : BmdRenderer.loadModel(modelName), LOADER_POOL);
+        }
+    }
+    
+    private static final Map<String, Entry> PENDING = new HashMap();
+    
+    /**
+     * Starts loading {@code modelName} in the background on behalf of {@code owner} unless it is already queued.
+     * {@code onDone} is run once the model is ready and may be null.
+     */
+    public static synchronized void preload(Object owner, String modelName, Runnable onDone) {
+        Entry entry = PENDING.computeIfAbsent(modelName, Entry::new);
+        entry.owners.add(owner);
+        
+        // Runs after the future completes, so that isReady already reports the model as done
+        if (onDone != null) {
+            entry.future.whenComplete((loaded, ex) -> onDone.run());
+        }
+    }
+    
+    /**
+     * Returns whether {@code modelName} can be taken without blocking. Models that were never queued count as
+     * ready, as their renderers simply load them synchronously.
+     */
+    public static synchronized boolean isReady(String modelName) {
+        Entry entry = PENDING.get(modelName);
+        return entry == null || entry.future.isDone();
+    }
+    
+    /**
+     * Claims the preloaded {@code modelName}, waiting for it if necessary. Returns null if the model was not
+     * queued or failed to load, in which case the caller should load it itself.
+     */
+    static BmdRenderer.LoadedModel take(String modelName) {
+        Entry entry;
+        
+        synchronized (ModelPreloader.class) {
+            entry = PENDING.remove(modelName);
+        }
+        
+        if (entry == null) {
+            return null;
+        }
+        
+        try {
+            return entry.future.get();
+        }
+        catch (InterruptedException | ExecutionException ex) {
+            System.err.println("Could not preload model " + modelName + ": " + ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Drops the models that {@code owner} preloaded but no renderer claimed, unless another owner still waits for
+     * them. Models that are still loading are closed as soon as they are done.
+     */
+    public static synchronized void clear(Object owner) {
+        Iterator<Entry> entries = PENDING.values().iterator();
+        
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            
+            if (!entry.owners.remove(owner) || !entry.owners.isEmpty()) {
+                continue;
+            }
+            
+            entries.remove();
+            entry.cancelled = true;
+            entry.future.thenAccept(loaded -> {
+                if (loaded != null) {
+                    loaded.close();
+                }
+            });
+        }
+    }
+}
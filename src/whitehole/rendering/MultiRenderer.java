@@ -18,6 +18,7 @@ package whitehole.rendering;
 
 import com.jogamp.opengl.GL2;
 import java.util.List;
+import whitehole.math.Matrix4;
 import whitehole.math.Vec3f;
 
 public class MultiRenderer extends GLRenderer {
@@ -81,6 +82,56 @@ public class MultiRenderer extends GLRenderer {
         return ret;
     }
     
+    @Override
+    public boolean getBounds(Vec3f min, Vec3f max) {
+        Vec3f subMin = new Vec3f(), subMax = new Vec3f();
+        boolean first = true;
+        
+        for (MultiRendererInfo multiInfo : submodelRenderers) {
+            if (!multiInfo.renderer.getBounds(subMin, subMax)) {
+                return false;
+            }
+            
+            Matrix4 transform = offsetTransform(multiInfo.position, multiInfo.rotation, multiInfo.scale);
+            Matrix4.transformBounds(transform, subMin, subMax, subMin, subMax);
+            
+            if (first) {
+                min.set(subMin);
+                max.set(subMax);
+                first = false;
+            }
+            else {
+                min.x = Math.min(min.x, subMin.x); min.y = Math.min(min.y, subMin.y); min.z = Math.min(min.z, subMin.z);
+                max.x = Math.max(max.x, subMax.x); max.y = Math.max(max.y, subMax.y); max.z = Math.max(max.z, subMax.z);
+            }
+        }
+        
+        return !first;
+    }
+    
+    @Override
+    public boolean raycast(Vec3f origin, Vec3f dir, RayHit hit) {
+        Vec3f subOrigin = new Vec3f(), subDir = new Vec3f();
+        boolean found = false;
+        
+        for (MultiRendererInfo multiInfo : submodelRenderers) {
+            Matrix4 inverse;
+            
+            try {
+                inverse = Matrix4.invert(offsetTransform(multiInfo.position, multiInfo.rotation, multiInfo.scale));
+            }
+            catch (IllegalArgumentException ex) {
+                continue;
+            }
+            
+            Vec3f.transform(origin, inverse, subOrigin);
+            Vec3f.transformDirection(dir, inverse, subDir);
+            found |= multiInfo.renderer.raycast(subOrigin, subDir, hit);
+        }
+        
+        return found;
+    }
+    
     @Override
     public void render(RenderInfo info) {
         GL2 gl = info.drawable.getGL().getGL2();
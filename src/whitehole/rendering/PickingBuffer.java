@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import com.jogamp.opengl.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Offscreen target for the fake-color picking pass. Only a few pixels around the cursor are drawn, and they are read back
+ * through pixel buffer objects so that the read does not wait for the GPU. The result of a pick becomes available with
+ * the next call to {@link #resolve}, usually one frame later.<br>
+ * Without framebuffer objects the pass goes to the back buffer, which the visible frame clears afterwards anyway, and
+ * without pixel buffer objects the read is synchronous.
+ */
+public class PickingBuffer {
+    public static final int NUM_COLORS = 9; // 3x3 pixels around the cursor
+    private static final int COLOR_BYTES = NUM_COLORS * 4;
+    private static final int READ_BYTES = COLOR_BYTES + 4; // colors, then one depth value
+    
+    private boolean isInitialized = false;
+    private boolean hasFramebuffer = false, hasPixelBuffers = false;
+    private int framebuffer = 0, colorBuffer = 0, depthBuffer = 0;
+    private int width = 0, height = 0;
+    
+    // Two pixel buffers, so that a new read never has to wait for the one that is being mapped
+    private final int[] pixelBuffers = new int[2];
+    private int nextPixelBuffer = 0;
+    private int pendingPixelBuffer = -1;
+    
+    // Synchronous fallback
+    private final IntBuffer syncColors = IntBuffer.allocate(NUM_COLORS);
+    private final FloatBuffer syncDepth = FloatBuffer.allocate(1);
+    private boolean isSyncPending = false;
+    
+    private int readX, readY;
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private void init(GL2 gl) {
+        isInitialized = true;
+        hasFramebuffer = gl.isFunctionAvailable("glGenFramebuffers") && gl.isFunctionAvailable("glGenRenderbuffers");
+        hasPixelBuffers = gl.isFunctionAvailable("glMapBuffer") && gl.isExtensionAvailable("GL_ARB_pixel_buffer_object");
+        
+        if (hasPixelBuffers) {
+            gl.glGenBuffers(2, pixelBuffers, 0);
+            
+            for (int pbo : pixelBuffers) {
+                gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbo);
+                gl.glBufferData(GL2.GL_PIXEL_PACK_BUFFER, READ_BYTES, null, GL2.GL_STREAM_READ);
+            }
+            
+            gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+        }
+    }
+    
+    private void resize(GL2 gl, int w, int h) {
+        deleteFramebuffer(gl);
+        width = w;
+        height = h;
+        
+        int[] names = new int[2];
+        gl.glGenRenderbuffers(2, names, 0);
+        colorBuffer = names[0];
+        depthBuffer = names[1];
+        
+        gl.glBindRenderbuffer(GL2.GL_RENDERBUFFER, colorBuffer);
+        gl.glRenderbufferStorage(GL2.GL_RENDERBUFFER, GL2.GL_RGBA8, w, h);
+        gl.glBindRenderbuffer(GL2.GL_RENDERBUFFER, depthBuffer);
+        gl.glRenderbufferStorage(GL2.GL_RENDERBUFFER, GL2.GL_DEPTH_COMPONENT24, w, h);
+        gl.glBindRenderbuffer(GL2.GL_RENDERBUFFER, 0);
+        
+        gl.glGenFramebuffers(1, names, 0);
+        framebuffer = names[0];
+        
+        gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, framebuffer);
+        gl.glFramebufferRenderbuffer(GL2.GL_FRAMEBUFFER, GL2.GL_COLOR_ATTACHMENT0, GL2.GL_RENDERBUFFER, colorBuffer);
+        gl.glFramebufferRenderbuffer(GL2.GL_FRAMEBUFFER, GL2.GL_DEPTH_ATTACHMENT, GL2.GL_RENDERBUFFER, depthBuffer);
+        
+        if (gl.glCheckFramebufferStatus(GL2.GL_FRAMEBUFFER) != GL2.GL_FRAMEBUFFER_COMPLETE) {
+            gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, 0);
+            deleteFramebuffer(gl);
+            hasFramebuffer = false;
+            return;
+        }
+        
+        gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, 0);
+    }
+    
+    private void deleteFramebuffer(GL2 gl) {
+        if (framebuffer != 0) {
+            gl.glDeleteFramebuffers(1, new int[] { framebuffer }, 0);
+            gl.glDeleteRenderbuffers(2, new int[] { colorBuffer, depthBuffer }, 0);
+            framebuffer = colorBuffer = depthBuffer = 0;
+        }
+    }
+    
+    /**
+     * Returns true if a pick was issued whose result has not been handed out by {@link #resolve} yet.
+     */
+    public boolean isPending() {
+        return pendingPixelBuffer >= 0 || isSyncPending;
+    }
+    
+    /**
+     * Prepares the picking pass for a surface of {@code w} by {@code h} pixels. Colors are read from the 3x3 pixels
+     * starting at {@code x}, {@code y}, the depth from the pixel at {@code x + 1}, {@code y - 1}, all in window coordinates
+     * with the origin at the bottom left. The pass itself is drawn by the caller and ended with {@link #end}.
+     */
+    public void begin(GL2 gl, int w, int h, int x, int y) {
+        if (!isInitialized) {
+            init(gl);
+        }
+        
+        if (hasFramebuffer && (w != width || h != height)) {
+            resize(gl, w, h);
+        }
+        
+        if (hasFramebuffer) {
+            gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, framebuffer);
+        }
+        
+        readX = x;
+        readY = y;
+        
+        gl.glEnable(GL2.GL_SCISSOR_TEST);
+        gl.glScissor(x, y - 1, 3, 4);
+    }
+    
+    /**
+     * Issues the reads for the pass started by {@link #begin} and restores the default framebuffer.
+     */
+    public void end(GL2 gl) {
+        gl.glDisable(GL2.GL_SCISSOR_TEST);
+        
+        if (hasPixelBuffers) {
+            int pbo = nextPixelBuffer;
+            nextPixelBuffer ^= 1;
+            
+            gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pixelBuffers[pbo]);
+            gl.glReadPixels(readX, readY, 3, 3, GL2.GL_BGRA, GL2.GL_UNSIGNED_INT_8_8_8_8_REV, 0L);
+            gl.glReadPixels(readX + 1, readY - 1, 1, 1, GL2.GL_DEPTH_COMPONENT, GL2.GL_FLOAT, COLOR_BYTES);
+            gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+            
+            pendingPixelBuffer = pbo;
+        }
+        else {
+            syncColors.clear();
+            syncDepth.clear();
+            gl.glReadPixels(readX, readY, 3, 3, GL2.GL_BGRA, GL2.GL_UNSIGNED_INT_8_8_8_8_REV, syncColors);
+            gl.glReadPixels(readX + 1, readY - 1, 1, 1, GL2.GL_DEPTH_COMPONENT, GL2.GL_FLOAT, syncDepth);
+            
+            isSyncPending = true;
+        }
+        
+        if (hasFramebuffer) {
+            gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, 0);
+        }
+    }
+    
+    /**
+     * Copies the result of the last pick into {@code colors} and {@code depth}. Returns false if there is no new result.
+     */
+    public boolean resolve(GL2 gl, IntBuffer colors, FloatBuffer depth) {
+        if (isSyncPending) {
+            isSyncPending = false;
+            
+            for (int i = 0 ; i < NUM_COLORS ; i++) {
+                colors.put(i, syncColors.get(i));
+            }
+            
+            depth.put(0, syncDepth.get(0));
+            return true;
+        }
+        
+        if (pendingPixelBuffer < 0) {
+            return false;
+        }
+        
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pixelBuffers[pendingPixelBuffer]);
+        ByteBuffer data = gl.glMapBuffer(GL2.GL_PIXEL_PACK_BUFFER, GL2.GL_READ_ONLY);
+        pendingPixelBuffer = -1;
+        
+        if (data == null) {
+            gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+            return false;
+        }
+        
+        data.order(ByteOrder.nativeOrder());
+        
+        for (int i = 0 ; i < NUM_COLORS ; i++) {
+            colors.put(i, data.getInt(i * 4));
+        }
+        
+        depth.put(0, data.getFloat(COLOR_BYTES));
+        
+        gl.glUnmapBuffer(GL2.GL_PIXEL_PACK_BUFFER);
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+        return true;
+    }
+    
+    public void close(GL2 gl) {
+        deleteFramebuffer(gl);
+        
+        if (hasPixelBuffers) {
+            gl.glDeleteBuffers(2, pixelBuffers, 0);
+            hasPixelBuffers = false;
+        }
+        
+        isInitialized = false;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import whitehole.math.Vec3f;
+import whitehole.smg.object.AbstractObj;
+
+/**
+ * The closest surface found by a ray cast, see {@link DrawList#raycast}.
+ */
+public class RayHit {
+    public AbstractObj obj = null;
+    public int subMesh = -1; // batch of the hit model, -1 if the renderer has no such thing
+    public float distance = Float.POSITIVE_INFINITY; // along the ray direction, in multiples of its length
+    public final Vec3f point = new Vec3f(); // world position of the hit
+}
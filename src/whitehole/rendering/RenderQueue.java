@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import com.jogamp.opengl.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import whitehole.math.Matrix4;
+
+/**
+ * Collects the draws of one pass from all renderers that draw directly instead of through display lists, and issues
+ * them in an order that keeps state changes low. Every item is one scene graph node of a model, keyed by its shader,
+ * first texture and blend state. The opaque pass is sorted by that key, the translucent pass keeps the submission order
+ * since its blending depends on it. Redundant state changes are left out by a {@link RenderStateTracker} either way.
+ */
+public class RenderQueue {
+    public static class Item {
+        BmdRenderer renderer;
+        int node, material;
+        long sortKey;
+        Matrix4 transform; // null for instanced items, whose transforms come from the instance buffer
+        int instanceBuffer, instances;
+        boolean simplified;
+    }
+    
+    private static final Comparator<Item> BY_STATE = Comparator.comparingLong(item -> item.sortKey);
+    
+    private final ArrayList<Item> items = new ArrayList();
+    private final ArrayList<Item> pool = new ArrayList();
+    private final RenderStateTracker state = new RenderStateTracker();
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Adds an item for {@code renderer}, which fills in what to draw.
+     */
+    Item add(BmdRenderer renderer, long sortKey) {
+        Item item = pool.isEmpty() ? new Item() : pool.remove(pool.size() - 1);
+        item.renderer = renderer;
+        item.sortKey = sortKey;
+        items.add(item);
+        return item;
+    }
+    
+    /**
+     * Draws and removes all items for the opaque or translucent pass in {@code info}.
+     */
+    public void flush(GLRenderer.RenderInfo info) throws GLException {
+        if (items.isEmpty()) {
+            return;
+        }
+        
+        GL2 gl = info.drawable.getGL().getGL2();
+        
+        if (info.renderMode == GLRenderer.RenderMode.OPAQUE) {
+            items.sort(BY_STATE); // stable, so the nodes of one model keep their order within a state
+        }
+        
+        gl.glColor4f(1f, 1f, 1f, 1f);
+        state.begin(gl);
+        
+        try {
+            for (Item item : items) {
+                item.renderer.drawQueued(gl, info, state, item);
+            }
+        }
+        finally {
+            state.setInstanceBuffer(gl, 0);
+            
+            for (Item item : items) {
+                item.renderer = null;
+                item.transform = null;
+                pool.add(item);
+            }
+            
+            items.clear();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import com.jogamp.opengl.*;
+import java.util.Arrays;
+
+/**
+ * Remembers the material state last set through it and only issues the GL calls for state that actually changes. After
+ * {@link #begin} every state is unknown, so the first change of each one is always issued. Anything that changes the
+ * state behind the tracker's back has to be followed by another {@link #begin}.
+ */
+public class RenderStateTracker {
+    private static final int UNKNOWN = -1;
+    private static final int NUM_UNITS = 8;
+    
+    private boolean hasPrograms, hasMultitexture, hasBlendEquation, hasInstancing;
+    private int program;
+    private int activeUnit;
+    private final int[] textures = new int[NUM_UNITS]; // 0 where texturing is disabled
+    private int alphaFunc = UNKNOWN;
+    private float alphaRef;
+    private int blendMode = UNKNOWN, blendEquation, blendSrc, blendDst, logicOp;
+    private int cullFace = UNKNOWN;
+    private int depthFunc = UNKNOWN;
+    private int depthWrite = UNKNOWN;
+    private int instanceBuffer = UNKNOWN;
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Forgets all state, to be called before the first change and whenever the state was changed elsewhere.
+     */
+    public void begin(GL2 gl) {
+        hasPrograms = gl.isFunctionAvailable("glUseProgram");
+        hasMultitexture = gl.isFunctionAvailable("glActiveTexture");
+        hasBlendEquation = gl.isFunctionAvailable("glBlendEquation");
+        hasInstancing = gl.isFunctionAvailable("glVertexAttribDivisor");
+        
+        program = UNKNOWN;
+        activeUnit = UNKNOWN;
+        Arrays.fill(textures, UNKNOWN);
+        alphaFunc = UNKNOWN;
+        blendMode = UNKNOWN;
+        cullFace = UNKNOWN;
+        depthFunc = UNKNOWN;
+        depthWrite = UNKNOWN;
+        instanceBuffer = UNKNOWN;
+    }
+    
+    public void useProgram(GL2 gl, int id) {
+        if (program == id || !hasPrograms) {
+            return;
+        }
+        
+        gl.glUseProgram(id);
+        program = id;
+    }
+    
+    /**
+     * Binds {@code texid} on texture unit {@code unit} and enables texturing there, or disables texturing on the unit
+     * if {@code texid} is 0.
+     */
+    public void bindTexture(GL2 gl, int unit, int texid) {
+        if (textures[unit] == texid || (unit > 0 && !hasMultitexture)) {
+            return;
+        }
+        
+        if (hasMultitexture && activeUnit != unit) {
+            gl.glActiveTexture(GL2.GL_TEXTURE0 + unit);
+            activeUnit = unit;
+        }
+        
+        if (texid == 0) {
+            gl.glDisable(GL2.GL_TEXTURE_2D);
+        }
+        else {
+            if (textures[unit] <= 0) {
+                gl.glEnable(GL2.GL_TEXTURE_2D);
+            }
+            
+            gl.glBindTexture(GL2.GL_TEXTURE_2D, texid);
+        }
+        
+        textures[unit] = texid;
+    }
+    
+    /**
+     * Sets the fixed-function alpha test. {@code func} is GL_ALWAYS to disable the test.
+     */
+    public void setAlphaTest(GL2 gl, int func, float ref) {
+        if (alphaFunc == func && (func == GL2.GL_ALWAYS || alphaRef == ref)) {
+            return;
+        }
+        
+        if (func == GL2.GL_ALWAYS) {
+            gl.glDisable(GL2.GL_ALPHA_TEST);
+        }
+        else {
+            if (alphaFunc == GL2.GL_ALWAYS || alphaFunc == UNKNOWN) {
+                gl.glEnable(GL2.GL_ALPHA_TEST);
+            }
+            
+            gl.glAlphaFunc(func, ref);
+        }
+        
+        alphaFunc = func;
+        alphaRef = ref;
+    }
+    
+    /**
+     * Sets the blending of a material, where {@code mode} is 0 for none, 1 for blending with {@code equation}, {@code src}
+     * and {@code dst}, and 2 for the logic operation {@code op}.
+     */
+    public void setBlend(GL2 gl, int mode, int equation, int src, int dst, int op) {
+        if (mode == blendMode) {
+            if (mode == 0
+                    || (mode == 1 && equation == blendEquation && src == blendSrc && dst == blendDst)
+                    || (mode == 2 && op == logicOp)) {
+                return;
+            }
+        }
+        
+        switch (mode) {
+            case 0:
+                gl.glDisable(GL2.GL_BLEND);
+                gl.glDisable(GL2.GL_COLOR_LOGIC_OP);
+                break;
+            case 1:
+                gl.glEnable(GL2.GL_BLEND);
+                gl.glDisable(GL2.GL_COLOR_LOGIC_OP);
+                if (hasBlendEquation) {
+                    gl.glBlendEquation(equation);
+                }
+                gl.glBlendFunc(src, dst);
+                break;
+            case 2:
+                gl.glDisable(GL2.GL_BLEND);
+                gl.glEnable(GL2.GL_COLOR_LOGIC_OP);
+                gl.glLogicOp(op);
+                break;
+        }
+        
+        blendMode = mode;
+        blendEquation = equation;
+        blendSrc = src;
+        blendDst = dst;
+        logicOp = op;
+    }
+    
+    /**
+     * Sets the culled faces, or disables culling if {@code face} is 0.
+     */
+    public void setCullFace(GL2 gl, int face) {
+        if (cullFace == face) {
+            return;
+        }
+        
+        if (face == 0) {
+            gl.glDisable(GL2.GL_CULL_FACE);
+        }
+        else {
+            if (cullFace <= 0) {
+                gl.glEnable(GL2.GL_CULL_FACE);
+            }
+            
+            gl.glCullFace(face);
+        }
+        
+        cullFace = face;
+    }
+    
+    /**
+     * Sets the depth comparison, or disables the depth test if {@code func} is 0, and the depth write mask.
+     */
+    public void setDepth(GL2 gl, int func, boolean write) {
+        if (depthFunc != func) {
+            if (func == 0) {
+                gl.glDisable(GL2.GL_DEPTH_TEST);
+            }
+            else {
+                if (depthFunc <= 0) {
+                    gl.glEnable(GL2.GL_DEPTH_TEST);
+                }
+                
+                gl.glDepthFunc(func);
+            }
+            
+            depthFunc = func;
+        }
+        
+        int mask = write ? 1 : 0;
+        
+        if (depthWrite != mask) {
+            gl.glDepthMask(write);
+            depthWrite = mask;
+        }
+    }
+    
+    /**
+     * Sources the instance transforms of the following draws from {@code buffer}, which holds the instances in the
+     * layout of {@link InstanceBatcher}. With 0 the shaders see an identity instance transform instead.
+     */
+    public void setInstanceBuffer(GL2 gl, int buffer) {
+        if (instanceBuffer == buffer || !hasPrograms || (buffer != 0 && !hasInstancing)) {
+            return;
+        }
+        
+        int attrib = BmdRenderer.INSTANCE_ATTRIB;
+        
+        if (buffer == 0) {
+            for (int i = 0 ; i < 3 ; i++) {
+                if (hasInstancing) {
+                    gl.glVertexAttribDivisor(attrib + i, 0);
+                }
+                gl.glDisableVertexAttribArray(attrib + i);
+            }
+            
+            gl.glVertexAttrib4f(attrib, 1f, 0f, 0f, 0f);
+            gl.glVertexAttrib4f(attrib + 1, 0f, 1f, 0f, 0f);
+            gl.glVertexAttrib4f(attrib + 2, 0f, 0f, 1f, 0f);
+        }
+        else {
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffer);
+            
+            for (int i = 0 ; i < 3 ; i++) {
+                gl.glEnableVertexAttribArray(attrib + i);
+                gl.glVertexAttribPointer(attrib + i, 4, GL2.GL_FLOAT, false, InstanceBatcher.INSTANCE_STRIDE, i * 16L);
+                gl.glVertexAttribDivisor(attrib + i, 1);
+            }
+            
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+        }
+        
+        instanceBuffer = buffer;
+    }
+}
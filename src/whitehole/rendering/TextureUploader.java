@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.rendering;
+
+import com.jogamp.opengl.*;
+import java.nio.ByteBuffer;
+import whitehole.smg.ImageUtils;
+
+/**
+ * Uploads texture data decoded by {@link ImageUtils} to the currently bound texture.
+ */
+final class TextureUploader {
+    private TextureUploader() {}
+    
+    /**
+     * Returns the {@link TextureCache} key of the decoded texture data, so that identical images share one GL
+     * texture regardless of the model or BTI they come from. The data is hashed in its compact decoded form,
+     * which is about the size of the source data. The sampler state is part of the key as well, since it is stored
+     * in the shared texture object.
+     */
+    static ContentKey createKey(int format, ImageUtils.PixelLayout layout, int width, int height, int mipmapCount,
+            int wrapS, int wrapT, int minFilter, int magFilter, byte[][] image) {
+        byte[][] parts = new byte[image.length + 1][];
+        parts[0] = ByteBuffer.allocate(21).putInt(format).putInt(layout.ordinal()).putInt(width).putInt(height)
+                .put((byte)mipmapCount).put((byte)wrapS).put((byte)wrapT).put((byte)minFilter).put((byte)magFilter).array();
+        System.arraycopy(image, 0, parts, 1, image.length);
+        return ContentKey.of(parts);
+    }
+    
+    static void upload(GL2 gl, int format, ImageUtils.PixelLayout layout, int width, int height, byte[][] image) {
+        if (layout == ImageUtils.PixelLayout.DXT1) {
+            uploadCmpr(gl, width, height, image);
+            return;
+        }
+        
+        // Texels are stored at their native width, so only use the most compact format that holds them exactly
+        int ifmt, fmt, type;
+        switch(layout) {
+            case I8:
+                ifmt = format == 0 ? GL2.GL_INTENSITY4 : GL2.GL_INTENSITY8;
+                fmt = GL2.GL_LUMINANCE; type = GL2.GL_UNSIGNED_BYTE;
+                break;
+            case IA8:
+                ifmt = format == 2 ? GL2.GL_LUMINANCE4_ALPHA4 : GL2.GL_LUMINANCE8_ALPHA8;
+                fmt = GL2.GL_LUMINANCE_ALPHA; type = GL2.GL_UNSIGNED_BYTE;
+                break;
+            case RGB565:
+                ifmt = gl.isExtensionAvailable("GL_ARB_ES2_compatibility") ? GL2.GL_RGB565 : GL2.GL_RGB;
+                fmt = GL2.GL_RGB; type = GL2.GL_UNSIGNED_SHORT_5_6_5;
+                break;
+            case ARGB1555:
+                ifmt = GL2.GL_RGB5_A1; fmt = GL2.GL_BGRA; type = GL2.GL_UNSIGNED_SHORT_1_5_5_5_REV;
+                break;
+            case ARGB4444:
+                ifmt = GL2.GL_RGBA4; fmt = GL2.GL_BGRA; type = GL2.GL_UNSIGNED_SHORT_4_4_4_4_REV;
+                break;
+            default:
+                ifmt = GL2.GL_RGBA8; fmt = GL2.GL_BGRA; type = GL2.GL_UNSIGNED_BYTE;
+                break;
+        }
+        
+        // Rows of small mips are not 4-byte aligned
+        gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, 1);
+        
+        for(int mip = 0; mip < image.length; mip++) {
+            gl.glTexImage2D(GL2.GL_TEXTURE_2D, mip, ifmt, width, height, 0, fmt, type, ByteBuffer.wrap(image[mip]));
+            width /= 2; height /= 2;
+        }
+        
+        gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, 4);
+    }
+    
+    // CMPR is kept as DXT1 and uploaded as is, unless the driver cannot sample S3TC textures
+    private static void uploadCmpr(GL2 gl, int width, int height, byte[][] image) {
+        boolean hass3tc = gl.isExtensionAvailable("GL_EXT_texture_compression_s3tc");
+        
+        for(int mip = 0; mip < image.length; mip++) {
+            if(hass3tc) {
+                gl.glCompressedTexImage2D(GL2.GL_TEXTURE_2D, mip, GL2.GL_COMPRESSED_RGBA_S3TC_DXT1_EXT, width, height, 0,
+                        image[mip].length, ByteBuffer.wrap(image[mip]));
+            }
+            else {
+                gl.glTexImage2D(GL2.GL_TEXTURE_2D, mip, 4, width, height, 0, GL2.GL_BGRA, GL2.GL_UNSIGNED_BYTE,
+                        ByteBuffer.wrap(ImageUtils.decodeDxt1(image[mip], width, height)));
+            }
+            
+            width /= 2; height /= 2;
+        }
+    }
+}
@@ -22,11 +22,16 @@ import whitehole.math.Vec3f;
 
 public class PoleRenderer extends BmdRenderer {
     public PoleRenderer(RenderInfo info, Vec3f scale, String type) throws IOException {
-        super(info, type);
+        ctor_loadModel(type);
         this.scale = scale;
         
-        if(model != null)
+        if(model != null) {
+            // The mesh is uploaded right after, so the height has to be baked in before
             model.joints[1].finalMatrix.m[13] = 100f * scale.y / scale.x;
+            model.invalidateMesh();
+            model.getMesh(); // rebaking also updates the bounds
+            ctor_uploadData(info);
+        }
     }
     
     @Override
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.smg;
+
+import java.util.Arrays;
+import whitehole.math.Matrix4;
+import whitehole.math.Vec3f;
+
+/**
+ * Render-ready copy of a {@link Bmd}'s geometry. Every batch is de-indexed into one interleaved float
+ * array with vertices already transformed by their joint or envelope matrices, and triangle-type primitives
+ * are flattened into a single triangle list. Baking happens once per model, see {@link Bmd#getMesh()}.
+ */
+public class BakedMesh {
+    public static final int ATTRIB_POSITION = 0;
+    public static final int ATTRIB_NORMAL = 1;
+    public static final int ATTRIB_COLOR0 = 2;
+    public static final int ATTRIB_COLOR1 = 3;
+    public static final int ATTRIB_TEXCOORD0 = 4; // up to ATTRIB_TEXCOORD0 + 7
+    public static final int NUM_ATTRIBS = 12;
+    
+    private static final int[] ATTRIB_SIZES = { 3, 3, 4, 4, 2, 2, 2, 2, 2, 2, 2, 2 };
+    private static final int[] ATTRIB_ARRAYS = { 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 };
+    private static final Matrix4 IDENTITY = new Matrix4();
+    
+    public final Batch[] batches;
+    public final Matrix4[] matrixPalette; // one skinning matrix per DRW1 entry
+    private final int[] paletteJoints; // joint with the largest influence per DRW1 entry
+    private final int[][] vertexJoints; // per batch and vertex, only needed while computing the bounds
+    
+    public static class Batch {
+        public int numVertices;
+        public int stride; // floats per vertex
+        public int[] offsets; // float offset of each ATTRIB_* inside a vertex, -1 if absent
+        public float[] vertices;
+        
+        // quads, triangles, strips and fans as one indexed triangle list
+        public int[] triangles;
+        
+        // lines and points keep their GX primitive type and draw straight from the vertex array
+        public int[] primTypes;
+        public int[] primFirst;
+        public int[] primCount;
+        
+        public boolean hasAttrib(int attrib) {
+            return offsets[attrib] >= 0;
+        }
+    }
+    
+    BakedMesh(Bmd model) {
+        batches = new Batch[model.batches.length];
+        vertexJoints = new int[model.batches.length][];
+        
+        int nummatrices = model.matrixTypes != null ? model.matrixTypes.length : 0;
+        matrixPalette = new Matrix4[nummatrices];
+        paletteJoints = new int[nummatrices];
+        buildMatrixPalette(model);
+        
+        // Packets may inherit matrix slots from the previously drawn packet, so bake in scene graph order
+        int[] lastdrwtable = null;
+        
+        for (Bmd.SceneGraphNode node : model.sceneGraph) {
+            if (node.nodeType != 0 || batches[node.nodeID] != null) {
+                continue;
+            }
+            
+            lastdrwtable = bakeBatch(model, node.nodeID, lastdrwtable);
+        }
+        
+        for (int i = 0 ; i < batches.length ; i++) {
+            if (batches[i] == null) {
+                lastdrwtable = bakeBatch(model, i, lastdrwtable);
+            }
+        }
+        
+        computeBounds(model);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private int[] bakeBatch(Bmd model, int index, int[] lastdrwtable) {
+        Bmd.Batch src = model.batches[index];
+        Batch dst = new Batch();
+        batches[index] = dst;
+        
+        // Interleaved layout, only attributes the batch actually uses
+        dst.offsets = new int[NUM_ATTRIBS];
+        dst.stride = 0;
+        
+        for (int i = 0 ; i < NUM_ATTRIBS ; i++) {
+            if (src.hasAttrib(ATTRIB_ARRAYS[i])) {
+                dst.offsets[i] = dst.stride;
+                dst.stride += ATTRIB_SIZES[i];
+            }
+            else {
+                dst.offsets[i] = -1;
+            }
+        }
+        
+        int numvertices = 0, numtriangles = 0, numprims = 0;
+        
+        for (Bmd.Batch.Packet packet : src.packets) {
+            numvertices += packet.numVertices;
+            
+            for (Bmd.Batch.Packet.Primitive prim : packet.primitives) {
+                int tris = countTriangles(prim.primitiveType, prim.numIndices);
+                
+                if (tris >= 0) {
+                    numtriangles += tris;
+                }
+                else {
+                    numprims++;
+                }
+            }
+        }
+        
+        dst.numVertices = numvertices;
+        dst.vertices = new float[numvertices * dst.stride];
+        dst.triangles = new int[numtriangles * 3];
+        dst.primTypes = new int[numprims];
+        dst.primFirst = new int[numprims];
+        dst.primCount = new int[numprims];
+        vertexJoints[index] = new int[numvertices];
+        
+        int vtx = 0, tri = 0, prm = 0;
+        
+        for (Bmd.Batch.Packet packet : src.packets) {
+            // DRW1 indices of the packet's matrix slots, -1 if unknown
+            int[] drwtable = new int[packet.matrixTable.length];
+            
+            for (int i = 0 ; i < packet.matrixTable.length ; i++) {
+                if (packet.matrixTable[i] == (short)0xFFFF) {
+                    drwtable[i] = lastdrwtable != null && i < lastdrwtable.length ? lastdrwtable[i] : -1;
+                }
+                else {
+                    drwtable[i] = packet.matrixTable[i] & 0xFFFF;
+                }
+            }
+            
+            lastdrwtable = drwtable;
+            
+            writeVertices(model, src, packet, drwtable, dst, vtx, vertexJoints[index]);
+            
+            for (Bmd.Batch.Packet.Primitive prim : packet.primitives) {
+                int first = vtx + prim.firstVertex;
+                
+                if (countTriangles(prim.primitiveType, prim.numIndices) >= 0) {
+                    tri = writeTriangles(prim.primitiveType, first, prim.numIndices, dst.triangles, tri);
+                }
+                else {
+                    dst.primTypes[prm] = prim.primitiveType;
+                    dst.primFirst[prm] = first;
+                    dst.primCount[prm] = prim.numIndices;
+                    prm++;
+                }
+            }
+            
+            vtx += packet.numVertices;
+        }
+        
+        return lastdrwtable;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Skinning
+    
+    /**
+     * Resolves every DRW1 entry to a single matrix. Rigid entries use their joint's final matrix, weighted ones
+     * blend the EVP1 envelope: the sum of {@code weight * inverseBind * jointFinal} over all influencing joints.
+     */
+    private void buildMatrixPalette(Bmd model) {
+        Matrix4[] palette = matrixPalette;
+        Matrix4 skin = new Matrix4();
+        
+        for (int i = 0 ; i < palette.length ; i++) {
+            Bmd.MatrixType mtxtype = model.matrixTypes[i];
+            
+            if (!mtxtype.isWeighted) {
+                Matrix4 mtx = model.joints[mtxtype.index].finalMatrix;
+                palette[i] = mtx != null ? mtx : IDENTITY;
+                paletteJoints[i] = mtxtype.index;
+                continue;
+            }
+            
+            paletteJoints[i] = -1;
+            
+            if (model.multiMatrix == null || mtxtype.index >= model.multiMatrix.length) {
+                palette[i] = IDENTITY;
+                continue;
+            }
+            
+            Bmd.MultiMatrix mm = model.multiMatrix[mtxtype.index];
+            float[] out = new float[16];
+            float maxweight = -1f;
+            
+            for (int j = 0 ; j < mm.numMatrices ; j++) {
+                Matrix4 jointmtx = model.joints[mm.matrixIndices[j]].finalMatrix;
+                
+                if (jointmtx == null) {
+                    jointmtx = IDENTITY;
+                }
+                
+                toRowVectorMatrix(mm.matrices[j], skin);
+                Matrix4.mult(skin, jointmtx, skin);
+                
+                float weight = mm.matrixWeights[j];
+                for (int k = 0 ; k < 16 ; k++) {
+                    out[k] += skin.m[k] * weight;
+                }
+                
+                if (weight > maxweight) {
+                    maxweight = weight;
+                    paletteJoints[i] = mm.matrixIndices[j];
+                }
+            }
+            
+            out[3] = 0f; out[7] = 0f; out[11] = 0f; out[15] = 1f;
+            
+            Matrix4 blended = new Matrix4();
+            blended.m = out;
+            palette[i] = blended;
+        }
+    }
+    
+    /**
+     * EVP1 stores inverse bind matrices as 3x4 row-major matrices for column vectors, whereas {@link Matrix4}
+     * transforms row vectors. Transposes {@code src} into {@code out}.
+     */
+    private static void toRowVectorMatrix(Matrix4 src, Matrix4 out) {
+        float[] s = src.m, d = out.m;
+        d[0] = s[0]; d[1] = s[4]; d[2] = s[8]; d[3] = 0f;
+        d[4] = s[1]; d[5] = s[5]; d[6] = s[9]; d[7] = 0f;
+        d[8] = s[2]; d[9] = s[6]; d[10] = s[10]; d[11] = 0f;
+        d[12] = s[3]; d[13] = s[7]; d[14] = s[11]; d[15] = 1f;
+    }
+    
+    private void writeVertices(Bmd model, Bmd.Batch src, Bmd.Batch.Packet packet, int[] drwtable, Batch dst, int firstvtx, int[] joints) {
+        short[] idx = packet.indices;
+        byte[] slots = src.attribOffsets;
+        float[] out = dst.vertices;
+        int[] offsets = dst.offsets;
+        boolean haspnmtx = src.hasAttrib(0);
+        
+        for (int v = 0 ; v < packet.numVertices ; v++) {
+            int in = v * src.vertexStride;
+            int o = (firstvtx + v) * dst.stride;
+            int drw = drwtable.length == 0 ? -1 : drwtable[haspnmtx ? idx[in + slots[0]] & 0xFFFF : 0];
+            boolean valid = drw >= 0 && drw < matrixPalette.length;
+            float[] m = valid ? matrixPalette[drw].m : IDENTITY.m;
+            joints[firstvtx + v] = valid ? paletteJoints[drw] : -1;
+            
+            if (offsets[ATTRIB_POSITION] >= 0) {
+                int p = (idx[in + slots[9]] & 0xFFFF) * 3;
+                float x = model.positions[p], y = model.positions[p + 1], z = model.positions[p + 2];
+                int d = o + offsets[ATTRIB_POSITION];
+                out[d    ] = x * m[0] + y * m[4] + z * m[8] + m[12];
+                out[d + 1] = x * m[1] + y * m[5] + z * m[9] + m[13];
+                out[d + 2] = x * m[2] + y * m[6] + z * m[10] + m[14];
+            }
+            
+            if (offsets[ATTRIB_NORMAL] >= 0) {
+                int n = (idx[in + slots[10]] & 0xFFFF) * 3;
+                float x = model.normals[n], y = model.normals[n + 1], z = model.normals[n + 2];
+                float nx = x * m[0] + y * m[4] + z * m[8];
+                float ny = x * m[1] + y * m[5] + z * m[9];
+                float nz = x * m[2] + y * m[6] + z * m[10];
+                float len = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (len < 0.000001f) len = 1f;
+                
+                int d = o + offsets[ATTRIB_NORMAL];
+                out[d    ] = nx / len;
+                out[d + 1] = ny / len;
+                out[d + 2] = nz / len;
+            }
+            
+            for (int c = 0 ; c < 2 ; c++) {
+                if (offsets[ATTRIB_COLOR0 + c] >= 0) {
+                    int s = (idx[in + slots[11 + c]] & 0xFFFF) * 4;
+                    System.arraycopy(model.colors[c], s, out, o + offsets[ATTRIB_COLOR0 + c], 4);
+                }
+            }
+            
+            for (int t = 0 ; t < 8 ; t++) {
+                if (offsets[ATTRIB_TEXCOORD0 + t] >= 0) {
+                    int s = (idx[in + slots[13 + t]] & 0xFFFF) * 2;
+                    System.arraycopy(model.texcoords[t], s, out, o + offsets[ATTRIB_TEXCOORD0 + t], 2);
+                }
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Bounds
+    
+    /**
+     * Fills in the model-space bounds of every batch and joint, and of the whole model, from the baked positions.
+     */
+    private void computeBounds(Bmd model) {
+        int numjoints = model.joints != null ? model.joints.length : 0;
+        float[] jointmin = new float[numjoints * 3];
+        float[] jointmax = new float[numjoints * 3];
+        Arrays.fill(jointmin, Float.POSITIVE_INFINITY);
+        Arrays.fill(jointmax, Float.NEGATIVE_INFINITY);
+        
+        float[] modelmin = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+        float[] modelmax = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+        
+        // Boxes first
+        for (int b = 0 ; b < batches.length ; b++) {
+            Batch batch = batches[b];
+            float[] min = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+            float[] max = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+            
+            if (batch.hasAttrib(ATTRIB_POSITION)) {
+                int[] joints = vertexJoints[b];
+                
+                for (int v = 0 ; v < batch.numVertices ; v++) {
+                    int p = v * batch.stride + batch.offsets[ATTRIB_POSITION];
+                    int j = joints[v];
+                    
+                    for (int k = 0 ; k < 3 ; k++) {
+                        float val = batch.vertices[p + k];
+                        min[k] = Math.min(min[k], val);
+                        max[k] = Math.max(max[k], val);
+                        
+                        if (j >= 0 && j < numjoints) {
+                            jointmin[j * 3 + k] = Math.min(jointmin[j * 3 + k], val);
+                            jointmax[j * 3 + k] = Math.max(jointmax[j * 3 + k], val);
+                        }
+                    }
+                }
+            }
+            
+            Bmd.Batch srcbatch = model.batches[b];
+            srcbatch.bboxMin = new Vec3f();
+            srcbatch.bboxMax = new Vec3f();
+            srcbatch.boundingCenter = new Vec3f();
+            setBox(min, max, srcbatch.bboxMin, srcbatch.bboxMax, srcbatch.boundingCenter);
+            
+            for (int k = 0 ; k < 3 ; k++) {
+                modelmin[k] = Math.min(modelmin[k], min[k]);
+                modelmax[k] = Math.max(modelmax[k], max[k]);
+            }
+        }
+        
+        for (int j = 0 ; j < numjoints ; j++) {
+            Bmd.Joint joint = model.joints[j];
+            joint.bboxMin = new Vec3f();
+            joint.bboxMax = new Vec3f();
+            joint.boundingCenter = new Vec3f();
+            joint.boundingRadius = 0f;
+            setBox(Arrays.copyOfRange(jointmin, j * 3, j * 3 + 3), Arrays.copyOfRange(jointmax, j * 3, j * 3 + 3),
+                    joint.bboxMin, joint.bboxMax, joint.boundingCenter);
+        }
+        
+        model.bboxMin = new Vec3f();
+        model.bboxMax = new Vec3f();
+        setBox(modelmin, modelmax, model.bboxMin, model.bboxMax, new Vec3f());
+        
+        // Then the spheres around the box centers
+        for (int b = 0 ; b < batches.length ; b++) {
+            Batch batch = batches[b];
+            Bmd.Batch srcbatch = model.batches[b];
+            float radius = 0f;
+            
+            if (batch.hasAttrib(ATTRIB_POSITION)) {
+                int[] joints = vertexJoints[b];
+                
+                for (int v = 0 ; v < batch.numVertices ; v++) {
+                    int p = v * batch.stride + batch.offsets[ATTRIB_POSITION];
+                    float x = batch.vertices[p], y = batch.vertices[p + 1], z = batch.vertices[p + 2];
+                    radius = Math.max(radius, distanceSq(srcbatch.boundingCenter, x, y, z));
+                    
+                    int j = joints[v];
+                    if (j >= 0 && j < numjoints) {
+                        Bmd.Joint joint = model.joints[j];
+                        joint.boundingRadius = Math.max(joint.boundingRadius, distanceSq(joint.boundingCenter, x, y, z));
+                    }
+                }
+            }
+            
+            srcbatch.boundingRadius = (float)Math.sqrt(radius);
+            vertexJoints[b] = null;
+        }
+        
+        for (int j = 0 ; j < numjoints ; j++) {
+            model.joints[j].boundingRadius = (float)Math.sqrt(model.joints[j].boundingRadius);
+        }
+    }
+    
+    private static void setBox(float[] min, float[] max, Vec3f outmin, Vec3f outmax, Vec3f outcenter) {
+        // Empty boxes collapse to the origin
+        if (min[0] > max[0]) {
+            return;
+        }
+        
+        outmin.x = min[0]; outmin.y = min[1]; outmin.z = min[2];
+        outmax.x = max[0]; outmax.y = max[1]; outmax.z = max[2];
+        outcenter.x = (min[0] + max[0]) * 0.5f;
+        outcenter.y = (min[1] + max[1]) * 0.5f;
+        outcenter.z = (min[2] + max[2]) * 0.5f;
+    }
+    
+    private static float distanceSq(Vec3f center, float x, float y, float z) {
+        float dx = x - center.x, dy = y - center.y, dz = z - center.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Triangulation
+    
+    /**
+     * Returns the number of triangles a GX primitive expands to, or -1 for lines and points.
+     */
+    private static int countTriangles(int primtype, int count) {
+        switch ((primtype - 0x80) / 8) {
+            case 0: return (count / 4) * 2;
+            case 2: return count / 3;
+            case 3:
+            case 4: return Math.max(0, count - 2);
+            default: return -1;
+        }
+    }
+    
+    private static int writeTriangles(int primtype, int first, int count, int[] out, int pos) {
+        switch ((primtype - 0x80) / 8) {
+            case 0:
+                for (int i = 0 ; i + 3 < count ; i += 4) {
+                    out[pos++] = first + i; out[pos++] = first + i + 1; out[pos++] = first + i + 2;
+                    out[pos++] = first + i; out[pos++] = first + i + 2; out[pos++] = first + i + 3;
+                }
+                break;
+            case 2:
+                for (int i = 0 ; i + 2 < count ; i += 3) {
+                    out[pos++] = first + i; out[pos++] = first + i + 1; out[pos++] = first + i + 2;
+                }
+                break;
+            case 3:
+                for (int i = 0 ; i + 2 < count ; i++) {
+                    // Flip every other triangle to keep the strip's winding
+                    if ((i & 1) == 0) {
+                        out[pos++] = first + i; out[pos++] = first + i + 1;
+                    }
+                    else {
+                        out[pos++] = first + i + 1; out[pos++] = first + i;
+                    }
+                    out[pos++] = first + i + 2;
+                }
+                break;
+            case 4:
+                for (int i = 2 ; i < count ; i++) {
+                    out[pos++] = first; out[pos++] = first + i - 1; out[pos++] = first + i;
+                }
+                break;
+        }
+        
+        return pos;
+    }
+}
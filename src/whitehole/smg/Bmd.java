@@ -16,7 +16,10 @@
 package whitehole.smg;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
+import java.util.concurrent.ForkJoinTask;
 import whitehole.io.FileBase;
 import whitehole.util.Color4;
 import whitehole.math.Matrix4;
@@ -25,6 +28,12 @@ import whitehole.math.Vec3f;
 
 public class Bmd 
 {
+    // used by ModelCache, which fills in all the fields itself
+    Bmd()
+    {
+        file = null;
+    }
+    
     public Bmd(FileBase _file) throws IOException
     {
         file = _file;
@@ -52,82 +61,126 @@ public class Bmd
             }
         }
 
-        bboxMin = new Vec3f(0, 0, 0);
-        bboxMax = new Vec3f(0, 0, 0);
-        for (Vec3f vec : positionArray)
-        {
-            if (vec.x < bboxMin.x) bboxMin.x = vec.x;
-            if (vec.y < bboxMin.y) bboxMin.y = vec.y;
-            if (vec.z < bboxMin.z) bboxMin.z = vec.z;
-            if (vec.x > bboxMax.x) bboxMax.x = vec.x;
-            if (vec.y > bboxMax.y) bboxMax.y = vec.y;
-            if (vec.z > bboxMax.z) bboxMax.z = vec.z;
+        // baking also computes the model, batch and joint bounds
+        if (batches != null && sceneGraph != null)
+            getMesh();
+        else {
+            bboxMin = new Vec3f(0, 0, 0);
+            bboxMax = new Vec3f(0, 0, 0);
         }
     }
 
     public void save() throws IOException
     {
-        file.save();
+        if (file != null)
+            file.save();
     }
 
     public void close() throws IOException
     {
-        file.close();
+        if (file != null)
+            file.close();
     }
     
-
-    private float readArrayValue_s16(int fixedpoint) throws IOException
+    /**
+     * Returns the baked, render-ready geometry of this model. It is built on first use and cached.
+     */
+    public synchronized BakedMesh getMesh()
     {
-        short val = file.readShort();
-        return (float)(val / (float)(1 << fixedpoint));
+        if (mesh == null)
+            mesh = new BakedMesh(this);
+        
+        return mesh;
     }
-
-    private float readArrayValue_f32() throws IOException
+    
+    /**
+     * Returns the triangle hierarchy used for ray casts against the baked geometry. It is built on first use and cached.
+     */
+    public synchronized TriangleBvh getBvh()
     {
-        return file.readFloat();
+        if (bvh == null)
+            bvh = new TriangleBvh(getMesh());
+        
+        return bvh;
     }
     
-    private float readArrayValue(int type, int fixedpoint) throws IOException
+    /**
+     * Drops the baked geometry, call this after modifying joints or vertex data.
+     */
+    public synchronized void invalidateMesh()
     {
-        switch (type)
-        {
-            case 3: return readArrayValue_s16(fixedpoint);
-            case 4: return readArrayValue_f32();
-        }
-        
-        return 0f;
+        mesh = null;
+        bvh = null;
     }
-
-    private Color4 readColorValue_RGBA8() throws IOException
+    
+    public int getPositionCount()
     {
-        int r = file.readByte() & 0xFF;
-        int g = file.readByte() & 0xFF;
-        int b = file.readByte() & 0xFF;
-        int a = file.readByte() & 0xFF;
-        return new Color4(r / 255f, g / 255f, b / 255f, a / 255f);
+        return positions != null ? positions.length / 3 : 0;
     }
-
-    private Color4 readColorValue_RGBX8() throws IOException
+    
+    public Vec3f getPosition(int index)
+    {
+        return new Vec3f(positions[index * 3], positions[index * 3 + 1], positions[index * 3 + 2]);
+    }
+    
+    public Vec3f getNormal(int index)
     {
-        int r = file.readByte() & 0xFF;
-        int g = file.readByte() & 0xFF;
-        int b = file.readByte() & 0xFF;
-        file.readByte();
-        return new Color4(r / 255f, g / 255f, b / 255f, 1f);
+        return new Vec3f(normals[index * 3], normals[index * 3 + 1], normals[index * 3 + 2]);
     }
     
-    private Color4 readColorValue(int type) throws IOException
+    public Color4 getColor(int set, int index)
     {
+        float[] c = colors[set];
+        return new Color4(c[index * 4], c[index * 4 + 1], c[index * 4 + 2], c[index * 4 + 3]);
+    }
+    
+    public Vec2f getTexcoord(int set, int index)
+    {
+        float[] t = texcoords[set];
+        return new Vec2f(t[index * 2], t[index * 2 + 1]);
+    }
+    
+
+    private float[] readArrayValues(int count, int type, int fixedpoint) throws IOException
+    {
+        float[] ret = new float[count];
+        
         switch (type)
         {
-            case 1:
-            case 2:
-                return readColorValue_RGBX8();
-            case 5:
-                return readColorValue_RGBA8();
+            case 3:
+                {
+                    ByteBuffer buf = ByteBuffer.wrap(file.readBytes(count * 2)).order(ByteOrder.BIG_ENDIAN);
+                    float scale = 1f / (float)(1 << fixedpoint);
+                    for (int i = 0; i < count; i++) ret[i] = buf.getShort() * scale;
+                }
+                break;
+                
+            case 4:
+                {
+                    ByteBuffer buf = ByteBuffer.wrap(file.readBytes(count * 4)).order(ByteOrder.BIG_ENDIAN);
+                    for (int i = 0; i < count; i++) ret[i] = buf.getFloat();
+                }
+                break;
+        }
+        
+        return ret;
+    }
+    
+    private float[] readColorValues(int count, int type) throws IOException
+    {
+        float[] ret = new float[count * 4];
+        byte[] raw = file.readBytes(count * 4);
+        boolean hasalpha = (type == 5);
+        
+        for (int i = 0; i < count * 4; i += 4)
+        {
+            ret[i    ] = (raw[i    ] & 0xFF) / 255f;
+            ret[i + 1] = (raw[i + 1] & 0xFF) / 255f;
+            ret[i + 2] = (raw[i + 2] & 0xFF) / 255f;
+            ret[i + 3] = hasalpha ? (raw[i + 3] & 0xFF) / 255f : 1f;
         }
         
-        return null;
+        return ret;
     }
 
 
@@ -197,8 +250,8 @@ public class Bmd
         int sectionsize = file.readInt();
 
         arrayMask = 0;
-        colorArray = new Color4[2][];
-        texcoordArray = new Vec2f[8][];
+        colors = new float[2][];
+        texcoords = new float[8][];
 
         List<Integer> arrayoffsets = new ArrayList<>();
 
@@ -263,12 +316,19 @@ public class Bmd
                         switch (compsize)
                         {
                             case 0:
-                                positionArray = new Vec3f[arraysize / 2]; 
-                                for (int j = 0; j < arraysize / 2; j++) positionArray[j] = new Vec3f(readArrayValue(datatype, fp), readArrayValue(datatype, fp), 0f); 
+                                {
+                                    int count = arraysize / 2;
+                                    float[] xy = readArrayValues(count * 2, datatype, fp);
+                                    positions = new float[count * 3];
+                                    for (int j = 0; j < count; j++)
+                                    {
+                                        positions[j * 3] = xy[j * 2];
+                                        positions[j * 3 + 1] = xy[j * 2 + 1];
+                                    }
+                                }
                                 break;
                             case 1:
-                                positionArray = new Vec3f[arraysize / 3]; 
-                                for (int j = 0; j < arraysize / 3; j++) positionArray[j] = new Vec3f(readArrayValue(datatype, fp), readArrayValue(datatype, fp), readArrayValue(datatype, fp)); 
+                                positions = readArrayValues((arraysize / 3) * 3, datatype, fp);
                                 break;
                             default: throw new IOException(String.format("Bmd: unsupported position CompSize %1$d", compsize));
                         }
@@ -280,8 +340,7 @@ public class Bmd
                         switch (compsize)
                         {
                             case 0:
-                                normalArray = new Vec3f[arraysize / 3]; 
-                                for (int j = 0; j < arraysize / 3; j++) normalArray[j] = new Vec3f(readArrayValue(datatype, fp), readArrayValue(datatype, fp), readArrayValue(datatype, fp)); 
+                                normals = readArrayValues((arraysize / 3) * 3, datatype, fp);
                                 break;
                             default: throw new IOException(String.format("Bmd: unsupported normal CompSize %1$d", compsize));
                         }
@@ -290,11 +349,7 @@ public class Bmd
 
                 case 11:
                 case 12:
-                    {
-                        int cid = arraytype - 11;
-                        colorArray[cid] = new Color4[arraysize];
-                        for (int j = 0; j < arraysize; j++) colorArray[cid][j] = readColorValue(datatype);
-                    }
+                    colors[arraytype - 11] = readColorValues(arraysize, datatype);
                     break;
 
                 case 13:
@@ -310,12 +365,14 @@ public class Bmd
                         switch (compsize)
                         {
                             case 0: 
-                                texcoordArray[tid] = new Vec2f[arraysize]; 
-                                for (int j = 0; j < arraysize; j++) texcoordArray[tid][j] = new Vec2f(readArrayValue(datatype, fp), 0f); 
+                                {
+                                    float[] svals = readArrayValues(arraysize, datatype, fp);
+                                    texcoords[tid] = new float[arraysize * 2];
+                                    for (int j = 0; j < arraysize; j++) texcoords[tid][j * 2] = svals[j];
+                                }
                                 break;
                             case 1: 
-                                texcoordArray[tid] = new Vec2f[arraysize / 2]; 
-                                for (int j = 0; j < arraysize / 2; j++) texcoordArray[tid][j] = new Vec2f(readArrayValue(datatype, fp), readArrayValue(datatype, fp)); 
+                                texcoords[tid] = readArrayValues((arraysize / 2) * 2, datatype, fp);
                                 break;
                             default: throw new IOException(String.format("Bmd: unsupported texcoord CompSize %1$d", compsize));
                         }
@@ -512,23 +569,46 @@ public class Bmd
             file.skip(2);
             batch.unk = file.readFloat();
 
-            List<Integer> attribs = new ArrayList<>();
             file.position(sectionstart + batchattribsoffset + attribsoffset);
 
-            int arraymask = 0;
+            // build the vertex layout: one index slot per attribute, in stream order
+            List<Integer> attribs = new ArrayList<>();
             for (; ; )
             {
                 int arraytype = file.readInt();
                 int datatype = file.readInt();
 
                 if (arraytype == 0xFF) break;
+                if (arraytype > 20 || datatype > 3)
+                    throw new IOException(String.format("Bmd: unsupported index attrib %1$04X", (arraytype & 0xFF) | ((datatype & 0xFF) << 8)));
+
+                attribs.add((arraytype & 0xFF) | ((datatype & 0xFF) << 8));
+            }
+
+            int numattribs = attribs.size();
+            batch.arrayMask = 0;
+            batch.vertexStride = numattribs;
+            batch.attribs = new byte[numattribs];
+            batch.attribOffsets = new byte[21];
+            Arrays.fill(batch.attribOffsets, (byte)-1);
 
-                int attrib = ((arraytype & 0xFF) | ((datatype & 0xFF) << 8));
-                attribs.add(attrib);
+            boolean[] wideindex = new boolean[numattribs];
+            int vertexsize = 0;
+            for (int k = 0; k < numattribs; k++)
+            {
+                int attrib = attribs.get(k);
+                int arraytype = attrib & 0xFF;
+
+                batch.attribs[k] = (byte)arraytype;
+                batch.attribOffsets[arraytype] = (byte)k;
+                batch.arrayMask |= (1 << arraytype);
 
-                arraymask |= (int)(1 << (int)arraytype);
+                wideindex[k] = (attrib & 0xFF00) >= 0x0200;
+                vertexsize += wideindex[k] ? 2 : 1;
             }
 
+            int posmtxslot = batch.attribOffsets[0];
+
             batch.packets = new Batch.Packet[numpackets];
             for (int j = 0; j < numpackets; j++)
             {
@@ -553,82 +633,52 @@ public class Bmd
                 int pktoffset = file.readInt();
 
                 file.position(sectionstart + dataoffset + pktoffset);
-                long packetend = file.position() + pktsize;
+                byte[] pktdata = file.readBytes(pktsize);
 
-                for (; ; )
-                {
-                    if (file.position() >= packetend) break;
+                // every vertex takes at least vertexsize bytes, which bounds the index count
+                short[] indices = new short[vertexsize > 0 ? (pktsize / vertexsize) * numattribs : 0];
+                int numvertices = 0;
+                int pos = 0;
 
-                    int primtype = file.readByte() & 0xFF;
+                while (pos + 3 <= pktsize)
+                {
+                    int primtype = pktdata[pos] & 0xFF;
                     if (primtype == 0) break;
-                    char numvertices = (char) file.readShort();
+                    int primverts = ((pktdata[pos + 1] & 0xFF) << 8) | (pktdata[pos + 2] & 0xFF);
+                    pos += 3;
+
+                    if (pos + primverts * vertexsize > pktsize)
+                        throw new IOException("Bmd: primitive exceeds packet bounds");
 
                     Batch.Packet.Primitive prim = packet.new Primitive();
                     packet.primitives.add(prim);
-
-                    prim.colorIndices = new int[2][];
-                    prim.texcoordIndices = new int[8][];
-                    prim.arrayMask = arraymask;
-
-                    prim.numIndices = numvertices;
-                    if ((arraymask & 1) != 0) prim.posMatrixIndices = new int[numvertices];
-                    if ((arraymask & (1 << 9)) != 0) prim.positionIndices = new int[numvertices];
-                    if ((arraymask & (1 << 10)) != 0) prim.normalIndices = new int[numvertices];
-                    if ((arraymask & (1 << 11)) != 0) prim.colorIndices[0] = new int[numvertices];
-                    if ((arraymask & (1 << 12)) != 0) prim.colorIndices[1] = new int[numvertices];
-                    if ((arraymask & (1 << 13)) != 0) prim.texcoordIndices[0] = new int[numvertices];
-                    if ((arraymask & (1 << 14)) != 0) prim.texcoordIndices[1] = new int[numvertices];
-                    if ((arraymask & (1 << 15)) != 0) prim.texcoordIndices[2] = new int[numvertices];
-                    if ((arraymask & (1 << 16)) != 0) prim.texcoordIndices[3] = new int[numvertices];
-                    if ((arraymask & (1 << 17)) != 0) prim.texcoordIndices[4] = new int[numvertices];
-                    if ((arraymask & (1 << 18)) != 0) prim.texcoordIndices[5] = new int[numvertices];
-                    if ((arraymask & (1 << 19)) != 0) prim.texcoordIndices[6] = new int[numvertices];
-                    if ((arraymask & (1 << 20)) != 0) prim.texcoordIndices[7] = new int[numvertices];
-
                     prim.primitiveType = primtype;
+                    prim.numIndices = primverts;
+                    prim.firstVertex = numvertices;
 
-                    for (int k = 0; k < numvertices; k++)
+                    int out = numvertices * numattribs;
+                    for (int k = 0; k < primverts; k++)
                     {
-                        for (int attrib : attribs)
+                        for (int l = 0; l < numattribs; l++)
                         {
-                            int val = 0;
-
-                            switch (attrib & 0xFF00)
+                            int val;
+                            if (wideindex[l])
                             {
-                                case 0x0000:
-                                case 0x0100:
-                                    val = file.readByte() & 0xFF;
-                                    break;
-
-                                case 0x0200:
-                                case 0x0300:
-                                    val = file.readShort() & 0xFFFF;
-                                    break;
-
-                                default: throw new IOException(String.format("Bmd: unsupported index attrib %1$04X", attrib));
+                                val = ((pktdata[pos] & 0xFF) << 8) | (pktdata[pos + 1] & 0xFF);
+                                pos += 2;
                             }
+                            else
+                                val = pktdata[pos++] & 0xFF;
 
-                            switch (attrib & 0xFF)
-                            {
-                                case 0: prim.posMatrixIndices[k] = val / 3; break;
-                                case 9: prim.positionIndices[k] = val; break;
-                                case 10: prim.normalIndices[k] = val; break;
-                                case 11:
-                                case 12: prim.colorIndices[(attrib & 0xFF) - 11][k] = val; break;
-                                case 13:
-                                case 14:
-                                case 15:
-                                case 16:
-                                case 17:
-                                case 18:
-                                case 19:
-                                case 20: prim.texcoordIndices[(attrib & 0xFF) - 13][k] = val; break;
-
-                                default: throw new IOException(String.format("Bmd: unsupported index attrib %1$04X", attrib));
-                            }
+                            indices[out++] = (short)(l == posmtxslot ? val / 3 : val);
                         }
                     }
+
+                    numvertices += primverts;
                 }
+
+                packet.numVertices = numvertices;
+                packet.indices = numvertices * numattribs == indices.length ? indices : Arrays.copyOf(indices, numvertices * numattribs);
             }
         }
 
@@ -1063,6 +1113,7 @@ public class Bmd
         file.skip(2);
 
         textures = new Texture[numtextures];
+        List<ForkJoinTask<byte[][]>> decodetasks = new ArrayList(numtextures);
 
         int entriesoffset = file.readInt();
 
@@ -1099,8 +1150,12 @@ public class Bmd
             file.skip(3);
 
             int dataoffset = file.readInt();
-            tex.image = ImageUtils.decodeTextureData(file, sectionstart + dataoffset + 0x20 + (0x20 * i), 
-                    tex.mipmapCount, tex.format, tex.width, tex.height);
+            
+            // only read the raw data here, the textures are decoded in parallel below
+            file.position(sectionstart + dataoffset + 0x20 + (0x20 * i));
+            byte[] data = file.readBytes(ImageUtils.getTextureDataSize(tex.format, tex.width, tex.height, tex.mipmapCount));
+            tex.layout = ImageUtils.getPixelLayout(tex.format, data, 0, tex.mipmapCount, tex.width, tex.height);
+            decodetasks.add(ImageUtils.createDecodeTask(data, 0, tex.mipmapCount, tex.format, tex.layout, tex.width, tex.height));
             
             /*try 
             {
@@ -1124,6 +1179,10 @@ public class Bmd
             catch (IOException ex) {}*/
         }
 
+        ForkJoinTask.invokeAll(decodetasks);
+        for (int i = 0; i < numtextures; i++)
+            textures[i].image = decodetasks.get(i).join();
+
         file.position(sectionstart + sectionsize);
     }
 
@@ -1145,26 +1204,48 @@ public class Bmd
             {
                 public int numIndices;
                 public int primitiveType;
-
-                public int arrayMask;
-                public int[] posMatrixIndices;
-                public int[] positionIndices;
-                public int[] normalIndices;
-                public int[][] colorIndices;
-                public int[][] texcoordIndices;
+                public int firstVertex; // first vertex of this primitive in the packet's index stream
+                
+                /**
+                 * Returns the array index of attribute {@code arraytype} for vertex {@code vertex} of this primitive.
+                 */
+                public int getIndex(int vertex, int arraytype)
+                {
+                    return indices[(firstVertex + vertex) * vertexStride + attribOffsets[arraytype]] & 0xFFFF;
+                }
             }
 
 
             public List<Primitive> primitives;
             public short[] matrixTable;
+            
+            // vertexStride unsigned indices per vertex, laid out as described by attribs
+            public short[] indices;
+            public int numVertices;
         }
 
 
         public byte matrixType;
+        
+        // vertex layout shared by all packets
+        public int arrayMask;
+        public int vertexStride;
+        public byte[] attribs; // array type of each index slot
+        public byte[] attribOffsets; // index slot of each array type, -1 if absent
 
         public Packet[] packets;
 
         public float unk;
+        
+        // model-space bounds, filled in by BakedMesh
+        public Vec3f bboxMin, bboxMax;
+        public Vec3f boundingCenter;
+        public float boundingRadius;
+        
+        public boolean hasAttrib(int arraytype)
+        {
+            return (arrayMask & (1 << arraytype)) != 0;
+        }
     }
 
     public class MultiMatrix
@@ -1189,6 +1270,11 @@ public class Bmd
         public Vec3f scale, rotation, translation;
         public Matrix4 matrix;
         public Matrix4 finalMatrix; // matrix with parents' transforms applied
+        
+        // model-space bounds of the geometry this joint moves, filled in by BakedMesh
+        public Vec3f bboxMin, bboxMax;
+        public Vec3f boundingCenter;
+        public float boundingRadius;
     }
 
     public class Material
@@ -1325,11 +1411,14 @@ public class Bmd
 
         public byte mipmapCount;
 
-        public byte[][] image; // texture data converted to ARGB
+        public ImageUtils.PixelLayout layout;
+        public byte[][] image; // decoded texture data
     }
 
 
     private FileBase file;
+    private BakedMesh mesh;
+    private TriangleBvh bvh;
 
     public Vec3f bboxMin, bboxMax;
 
@@ -1339,10 +1428,10 @@ public class Bmd
 
     // VTX1
     public int arrayMask;
-    public Vec3f[] positionArray;
-    public Vec3f[] normalArray;
-    public Color4[][] colorArray;
-    public Vec2f[][] texcoordArray;
+    public float[] positions; // xyz
+    public float[] normals; // xyz
+    public float[][] colors; // rgba
+    public float[][] texcoords; // st
 
     // SHP1
     public Batch[] batches;
@@ -44,7 +44,10 @@ public class Bti {
         lodBias = file.readShort() * 0.01F;
         imageOffset = file.readInt();
         
-        image = ImageUtils.decodeTextureData(file, imageOffset, mipmapCount, format, width, height);
+        file.position(imageOffset);
+        byte[] data = file.readBytes(ImageUtils.getTextureDataSize(format, width, height, mipmapCount));
+        layout = ImageUtils.getPixelLayout(format, data, 0, mipmapCount, width, height);
+        image = ImageUtils.createDecodeTask(data, 0, mipmapCount, format, layout, width, height).invoke();
     }
     
     public void save() throws IOException {
@@ -63,5 +66,6 @@ public class Bti {
     public short width, height, paletteCount;
     public byte format, paletteFormat, mipmapCount;
     public byte wrapS, wrapT, minFilter, magFilter;
+    public ImageUtils.PixelLayout layout;
     public byte[][] image;
 }
\ No newline at end of file
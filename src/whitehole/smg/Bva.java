@@ -16,47 +16,145 @@
 package whitehole.smg;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.BitSet;
 import whitehole.io.FileBase;
 
 public class Bva {
+    public static final int LOOP_ONCE = 0;
+    public static final int LOOP_ONCE_RESET = 1;
+    public static final int LOOP_REPEAT = 2;
+    public static final int LOOP_MIRROR_ONCE = 3;
+    public static final int LOOP_MIRROR_REPEAT = 4;
+    
     public Bva(FileBase file) throws IOException {
         this.file = file;
         this.file.setBigEndian(true);
         
-        file.position(0x2C);
+        file.position(0x28);
+        loopMode = file.readByte() & 0xFF;
+        file.skip(0x1);
+        duration = file.readShort() & 0xFFFF;
         short batchCount = file.readShort();
         file.skip(0x2);
         
         int offset1 = 0x20 + file.readInt();
         int offset2 = 0x20 + file.readInt();
         
-        animData = new ArrayList(batchCount);
+        frameCounts = new int[batchCount];
+        frameBits = new long[batchCount][];
         
         for (int b = 0; b < batchCount; b++) {
             file.position(offset1 + (b * 4));
-            short batchSize = file.readShort();
-            short batchStart = file.readShort();
+            int batchSize = file.readShort() & 0xFFFF;
+            int batchStart = file.readShort() & 0xFFFF;
             
-            List<Boolean> list = new ArrayList(batchSize);
-            animData.add(list);
+            long[] bits = new long[(batchSize + 63) >>> 6];
             
             file.position(offset2 + batchStart);
+            byte[] vals = file.readBytes(batchSize);
+            
             for (int i = 0; i < batchSize; i++) {
-                list.add(file.readByte() != 0x0);
+                if (vals[i] != 0x0) {
+                    bits[i >>> 6] |= 1L << i;
+                }
             }
+            
+            frameCounts[b] = batchSize;
+            frameBits[b] = bits;
         }
     }
     
+    Bva(int loopMode, int duration, int[] frameCounts, long[][] frameBits) {
+        file = null;
+        this.loopMode = loopMode;
+        this.duration = duration;
+        this.frameCounts = frameCounts;
+        this.frameBits = frameBits;
+    }
+    
     public void save() throws IOException {
-        file.save();
+        if (file != null) {
+            file.save();
+        }
     }
 
     public void close() throws IOException {
-        file.close();
+        if (file != null) {
+            file.close();
+        }
+    }
+    
+    
+    public int getBatchCount() {
+        return frameCounts.length;
+    }
+    
+    public int getFrameCount(int batch) {
+        return batch < frameCounts.length ? frameCounts[batch] : 0;
+    }
+    
+    /**
+     * Returns whether the batch is shown on the given key frame. Frames past the end hold the last key, batches
+     * without any keys are always visible.
+     */
+    public boolean isVisible(int batch, int frame) {
+        if (batch < 0 || batch >= frameCounts.length || frameCounts[batch] == 0) {
+            return true;
+        }
+        
+        frame = Math.max(0, Math.min(frame, frameCounts[batch] - 1));
+        return (frameBits[batch][frame >>> 6] & (1L << frame)) != 0;
+    }
+    
+    /**
+     * Evaluates the batch's visibility at an arbitrary point of the animation's timeline, applying the loop mode.
+     */
+    public boolean isVisibleAt(int batch, float time) {
+        return isVisible(batch, getKeyFrame(time));
+    }
+    
+    /**
+     * Stores the visibility of all batches at the given point of the timeline into the bit set.
+     */
+    public BitSet getVisibility(float time, BitSet out) {
+        int frame = getKeyFrame(time);
+        out.clear();
+        
+        for (int b = 0; b < frameCounts.length; b++) {
+            if (isVisible(b, frame)) {
+                out.set(b);
+            }
+        }
+        
+        return out;
+    }
+    
+    private int getKeyFrame(float time) {
+        if (duration <= 0) {
+            return 0;
+        }
+        
+        int frame = (int)Math.floor(time);
+        
+        switch (loopMode) {
+            case LOOP_ONCE_RESET:
+                return frame >= duration ? 0 : Math.max(frame, 0);
+            case LOOP_REPEAT:
+                return Math.floorMod(frame, duration);
+            case LOOP_MIRROR_ONCE:
+                frame = Math.max(0, Math.min(frame, duration * 2 - 1));
+                return frame < duration ? frame : duration * 2 - 1 - frame;
+            case LOOP_MIRROR_REPEAT:
+                frame = Math.floorMod(frame, duration * 2);
+                return frame < duration ? frame : duration * 2 - 1 - frame;
+            default:
+                return Math.max(0, Math.min(frame, duration - 1));
+        }
     }
     
     private final FileBase file;
-    public List<List<Boolean>> animData;
-}
\ No newline at end of file
+    public final int loopMode;
+    public final int duration;
+    final int[] frameCounts;
+    final long[][] frameBits; // one bit per frame per batch
+}
@@ -24,8 +24,11 @@ import static com.jogamp.opengl.GL.GL_NEAREST;
 import static com.jogamp.opengl.GL.GL_NEAREST_MIPMAP_LINEAR;
 import static com.jogamp.opengl.GL.GL_NEAREST_MIPMAP_NEAREST;
 import static com.jogamp.opengl.GL.GL_REPEAT;
-import java.io.IOException;
-import whitehole.io.FileBase;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class ImageUtils {
     public enum WrapMode {
@@ -61,261 +64,514 @@ public class ImageUtils {
         }
     }
     
-    public static byte[][] decodeTextureData(FileBase file, long offset, int mipmaps, int format, int width, int height) throws IOException {
-        byte[][] ret = new byte[mipmaps][];
-        file.position(offset);
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Texture decoding
+    
+    /**
+     * Memory layouts of decoded texture data. The 16-bit layouts store little-endian texels with the first channel
+     * in the top bits, DXT1 stores linear S3TC blocks.
+     */
+    public static enum PixelLayout {
+        I8, IA8, RGB565, ARGB1555, ARGB4444, BGRA8, DXT1
+    }
+    
+    // Decoded BGRA8 texel for every RGB5A3 color, packed little-endian
+    private static final int[] RGB5A3_LUT = new int[0x10000];
+    
+    static {
+        for (int col = 0; col < 0x10000; col++) {
+            if ((col & 0x8000) != 0) {
+                RGB5A3_LUT[col] = packBGRA(
+                        ((col & 0x001F) << 3) | ((col & 0x001F) >>> 2),
+                        ((col & 0x03E0) >>> 2) | ((col & 0x03E0) >>> 7),
+                        ((col & 0x7C00) >>> 7) | ((col & 0x7C00) >>> 12),
+                        255);
+            }
+            else {
+                RGB5A3_LUT[col] = packBGRA(
+                        ((col & 0x000F) << 4) | (col & 0x000F),
+                        (col & 0x00F0) | ((col & 0x00F0) >>> 4),
+                        ((col & 0x0F00) >>> 4) | ((col & 0x0F00) >>> 8),
+                        ((col & 0x7000) >>> 7) | ((col & 0x7000) >>> 10) | ((col & 0x7000) >>> 13));
+            }
+        }
+    }
+    
+    private static int packBGRA(int b, int g, int r, int a) {
+        return (b & 0xFF) | ((g & 0xFF) << 8) | ((r & 0xFF) << 16) | (a << 24);
+    }
+    
+    public static int getBlockWidth(int format) {
+        switch (format) {
+            case 0: case 1: case 2: case 14: return 8;
+            default: return 4;
+        }
+    }
+    
+    public static int getBlockHeight(int format) {
+        switch (format) {
+            case 0: case 14: return 8;
+            default: return 4;
+        }
+    }
+    
+    /**
+     * Returns the size of one encoded block in bytes, or 0 if the format is not supported.
+     */
+    public static int getBlockSize(int format) {
+        switch (format) {
+            case 0: case 1: case 2: case 3: case 4: case 5: case 14: return 32;
+            case 6: return 64;
+            default: return 0;
+        }
+    }
+    
+    /**
+     * Returns the layout {@code format} decodes to. RGB5A3 textures keep 16 bits per texel if all texels are opaque,
+     * or all are translucent with an alpha of either 0 or 7, as only then the texels fit a 16-bit GL format losslessly.
+     * @param data the encoded texture data of all mip levels, starting at {@code offset}
+     */
+    public static PixelLayout getPixelLayout(int format, byte[] data, int offset, int mipmaps, int width, int height) {
+        switch (format) {
+            case 0: case 1: return PixelLayout.I8;
+            case 2: case 3: return PixelLayout.IA8;
+            case 4: return PixelLayout.RGB565;
+            case 14: return PixelLayout.DXT1;
+            case 5: break;
+            default: return PixelLayout.BGRA8;
+        }
         
-        for (int mip = 0; mip < mipmaps; mip++) {
-            byte[] image;
-
-            switch (format) {
-                case 0: // I4
-                    {
-                        image = new byte[width * height];
-
-                        for (int by = 0; by < height; by += 8) {
-                            for (int bx = 0; bx < width; bx += 8) {
-                                for (int y = 0; y < 8; y++) {
-                                    for (int x = 0; x < 8; x += 2) {
-                                        int b = file.readByte() & 0xFF;
-
-                                        int outp = (((by + y) * width) + (bx + x));
-                                        image[outp++] = (byte)((b & 0xF0) | (b >>> 4));
-                                        image[outp  ] = (byte)((b << 4) | (b & 0x0F));
-                                    }
-                                }
-                            }
-                        }
-                    }
+        int end = offset + getTextureDataSize(format, width, height, mipmaps);
+        boolean anyopaque = false, anytranslucent = false, anypartial = false;
+        
+        for (int i = offset; i < end; i += 2) {
+            int hi = data[i] & 0xF0;
+            
+            if ((hi & 0x80) != 0) {
+                anyopaque = true;
+            }
+            else {
+                anytranslucent = true;
+                
+                // Three alpha bits only widen to four exactly for 0 and 7
+                if (hi != 0x00 && hi != 0x70) {
+                    anypartial = true;
+                }
+            }
+        }
+        
+        if ((anyopaque && anytranslucent) || anypartial) {
+            return PixelLayout.BGRA8;
+        }
+        
+        return anytranslucent ? PixelLayout.ARGB4444 : PixelLayout.ARGB1555;
+    }
+    
+    public static int getDecodedSize(PixelLayout layout, int width, int height) {
+        switch (layout) {
+            case I8: return width * height;
+            case DXT1: return ((width + 3) / 4) * ((height + 3) / 4) * 8;
+            case BGRA8: return width * height * 4;
+            default: return width * height * 2;
+        }
+    }
+    
+    /**
+     * Returns the average color of one decoded mip level in {@code layout} as 0xRRGGBB. Alpha is ignored.
+     */
+    public static int getAverageColor(PixelLayout layout, byte[] image, int width, int height) {
+        if (layout == PixelLayout.DXT1) {
+            image = decodeDxt1(image, width, height);
+            layout = PixelLayout.BGRA8;
+        }
+        
+        int numpixels = width * height;
+        long r = 0, g = 0, b = 0;
+        
+        for (int i = 0; i < numpixels; i++) {
+            int v;
+            
+            switch (layout) {
+                case I8:
+                    v = image[i] & 0xFF;
+                    r += v; g += v; b += v;
                     break;
-
-                case 1: // I8
-                    {
-                        image = new byte[width * height];
-
-                        for (int by = 0; by < height; by += 4)
-                        {
-                            for (int bx = 0; bx < width; bx += 8)
-                            {
-                                for (int y = 0; y < 4; y++)
-                                {
-                                    for (int x = 0; x < 8; x++)
-                                    {
-                                        byte b = file.readByte();
-
-                                        int outp = (((by + y) * width) + (bx + x));
-                                        image[outp] = b;
-                                    }
-                                }
-                            }
-                        }
-                    }
+                case IA8:
+                    v = image[i * 2] & 0xFF;
+                    r += v; g += v; b += v;
                     break;
-
-                case 2: // IA4
-                    {
-                        image = new byte[width * height * 2];
-
-                        for (int by = 0; by < height; by += 4) {
-                            for (int bx = 0; bx < width; bx += 8) {
-                                for (int y = 0; y < 4; y++) {
-                                    for (int x = 0; x < 8; x++) {
-                                        int b = file.readByte() & 0xFF;
-
-                                        int outp = (((by + y) * width) + (bx + x)) * 2;
-                                        image[outp++] = (byte)((b << 4) | (b & 0x0F));
-                                        image[outp  ] = (byte)((b & 0xF0) | (b >>> 4));
-                                    }
-                                }
-                            }
-                        }
-                    }
+                case BGRA8:
+                    b += image[i * 4] & 0xFF;
+                    g += image[i * 4 + 1] & 0xFF;
+                    r += image[i * 4 + 2] & 0xFF;
                     break;
-
-                case 3: // IA8
-                    {
-                        image = new byte[width * height * 2];
-
-                        for (int by = 0; by < height; by += 4) {
-                            for (int bx = 0; bx < width; bx += 4) {
-                                for (int y = 0; y < 4; y++) {
-                                    for (int x = 0; x < 4; x++) {
-                                        byte a = file.readByte();
-                                        byte l = file.readByte();
-
-                                        int outp = (((by + y) * width) + (bx + x)) * 2;
-                                        image[outp++] = l;
-                                        image[outp  ] = a;
-                                    }
-                                }
-                            }
-                        }
+                default:
+                    v = (image[i * 2] & 0xFF) | ((image[i * 2 + 1] & 0xFF) << 8);
+                    
+                    if (layout == PixelLayout.RGB565) {
+                        r += ((v >>> 11) & 0x1F) * 255 / 31;
+                        g += ((v >>> 5) & 0x3F) * 255 / 63;
+                        b += (v & 0x1F) * 255 / 31;
+                    }
+                    else if (layout == PixelLayout.ARGB1555) {
+                        r += ((v >>> 10) & 0x1F) * 255 / 31;
+                        g += ((v >>> 5) & 0x1F) * 255 / 31;
+                        b += (v & 0x1F) * 255 / 31;
+                    }
+                    else {
+                        r += ((v >>> 8) & 0xF) * 17;
+                        g += ((v >>> 4) & 0xF) * 17;
+                        b += (v & 0xF) * 17;
                     }
                     break;
-
-                case 4: // RGB565
-                    {
-                        image = new byte[width * height * 4];
-
-                        for (int by = 0; by < height; by += 4) {
-                            for (int bx = 0; bx < width; bx += 4) {
-                                for (int y = 0; y < 4; y++) {
-                                    for (int x = 0; x < 4; x++) {
-                                        int col = file.readShort() & 0xFFFF;
-
-                                        int outp = (((by + y) * width) + (bx + x)) * 4;
-                                        image[outp++] = (byte)(((col & 0x001F) << 3) | ((col & 0x001F) >>> 2));
-                                        image[outp++] = (byte)(((col & 0x07E0) >>> 3) | ((col & 0x07E0) >>> 8));
-                                        image[outp++] = (byte)(((col & 0xF800) >>> 8) | ((col & 0xF800) >>> 13));
-                                        image[outp  ] = (byte)255;
-                                    }
-                                }
-                            }
+            }
+        }
+        
+        return (int)(r / numpixels) << 16 | (int)(g / numpixels) << 8 | (int)(b / numpixels);
+    }
+    
+    public static int getMipDataSize(int format, int width, int height) {
+        int bw = getBlockWidth(format), bh = getBlockHeight(format);
+        return ((width + bw - 1) / bw) * ((height + bh - 1) / bh) * getBlockSize(format);
+    }
+    
+    public static int getTextureDataSize(int format, int width, int height, int mipmaps) {
+        int size = 0;
+        
+        for (int mip = 0; mip < mipmaps; mip++) {
+            size += getMipDataSize(format, width, height);
+            width /= 2; height /= 2;
+        }
+        
+        return size;
+    }
+    
+    // Large mip levels are split into slices of block rows of roughly this many pixels
+    private static final int SLICE_PIXELS = 128 * 128;
+    
+    /**
+     * Creates a task that decodes all mip levels of a texture. Every mip level, and every slice of block rows of a
+     * large one, is decoded as its own subtask. Several textures can be decoded at once with
+     * {@link ForkJoinTask#invokeAll}.
+     */
+    public static ForkJoinTask<byte[][]> createDecodeTask(byte[] data, int offset, int mipmaps, int format, PixelLayout layout, int width, int height) {
+        return new RecursiveTask<byte[][]>() {
+            @Override
+            protected byte[][] compute() {
+                byte[][] ret = new byte[mipmaps][];
+                List<DecodeSlice> slices = new ArrayList();
+                int w = width, h = height, mipoffset = offset;
+                
+                for (int mip = 0; mip < mipmaps; mip++) {
+                    if (getBlockSize(format) == 0 || w * h == 0) {
+                        ret[mip] = decodeMip(data, mipoffset, format, layout, w, h);
+                    }
+                    else {
+                        ret[mip] = new byte[getDecodedSize(layout, w, h)];
+                        
+                        int bh = getBlockHeight(format);
+                        int numrows = (h + bh - 1) / bh;
+                        int slicerows = Math.max(1, SLICE_PIXELS / (w * bh));
+                        
+                        for (int row = 0; row < numrows; row += slicerows) {
+                            slices.add(new DecodeSlice(data, mipoffset, ret[mip], format, layout, w, h, row, Math.min(row + slicerows, numrows)));
                         }
                     }
-                    break;
                     
-                case 5: // RGB5A3
-                    {
-                        image = new byte[width * height * 4];
-
-                        for (int by = 0; by < height; by += 4) {
-                            for (int bx = 0; bx < width; bx += 4) {
-                                for (int y = 0; y < 4; y++) {
-                                    for (int x = 0; x < 4; x++) {
-                                        int col = file.readShort() & 0xFFFF;
-
-                                        int outp = (((by + y) * width) + (bx + x)) * 4;
-                                        if ((col & 0x8000) != 0) {
-                                            image[outp++] = (byte)(((col & 0x001F) << 3) | ((col & 0x001F) >>> 2));
-                                            image[outp++] = (byte)(((col & 0x03E0) >>> 3) | ((col & 0x03E0) >>> 8));
-                                            image[outp++] = (byte)(((col & 0x7C00) >>> 7) | ((col & 0x7C00) >>> 12));
-                                            image[outp  ] = (byte)255;
-                                        }
-                                        else {
-                                            image[outp++] = (byte)(((col & 0x000F) << 4) | (col & 0x000F));
-                                            image[outp++] = (byte)((col & 0x00F0) | ((col & 0x00F0) >>> 4));
-                                            image[outp++] = (byte)(((col & 0x0F00) >>> 4) | ((col & 0x0F00) >>> 8));
-                                            image[outp  ] = (byte)(((col & 0x7000) >>> 7) | ((col & 0x7000) >>> 10) | ((col & 0x7000) >>> 13));
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                    mipoffset += getMipDataSize(format, w, h);
+                    w /= 2; h /= 2;
+                }
+                
+                invokeAll(slices);
+                return ret;
+            }
+        };
+    }
+    
+    private static class DecodeSlice extends RecursiveAction {
+        private final byte[] data, image;
+        private final int offset, format, width, height, firstRow, endRow;
+        private final PixelLayout layout;
+        
+        DecodeSlice(byte[] data, int offset, byte[] image, int format, PixelLayout layout, int width, int height, int firstRow, int endRow) {
+            this.data = data;
+            this.offset = offset;
+            this.image = image;
+            this.format = format;
+            this.layout = layout;
+            this.width = width;
+            this.height = height;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+        
+        @Override
+        protected void compute() {
+            decodeBlockRows(data, offset, image, format, layout, width, height, firstRow, endRow);
+        }
+    }
+    
+    public static byte[] decodeMip(byte[] data, int offset, int format, PixelLayout layout, int width, int height) {
+        byte[] image = new byte[getDecodedSize(layout, width, height)];
+        
+        if (getBlockSize(format) == 0) {
+            System.out.println(String.format("Unsupported texture type %1$d, generating solid color texture instead", format));
+            
+            for (int i = 0; i < width * height; i++) {
+                int outp = i * 4;
+                image[outp++] = (byte)255;
+                image[outp++] = (byte)0;
+                image[outp++] = (byte)255;
+                image[outp  ] = (byte)255;
+            }
+            
+            return image;
+        }
+        
+        decodeBlockRows(data, offset, image, format, layout, width, height, 0, (height + getBlockHeight(format) - 1) / getBlockHeight(format));
+        return image;
+    }
+    
+    /**
+     * Decodes the rows of blocks {@code [firstRow, endRow)} of one mip level into {@code image}. Rows are
+     * independent of each other, so large images may be decoded in parallel slices.
+     * @param data the encoded mip level, starting at {@code offset}
+     */
+    public static void decodeBlockRows(byte[] data, int offset, byte[] image, int format, PixelLayout layout, int width, int height, int firstRow, int endRow) {
+        int bw = getBlockWidth(format), bh = getBlockHeight(format), blocksize = getBlockSize(format);
+        int blocksperrow = (width + bw - 1) / bw;
+        
+        for (int row = firstRow; row < endRow; row++) {
+            int by = row * bh;
+            int rows = Math.min(bh, height - by);
+            int blk = offset + row * blocksperrow * blocksize;
+            
+            switch (format) {
+                case 0: decodeI4Row(data, blk, image, width, by, rows); break;
+                case 1: decodeI8Row(data, blk, image, width, by, rows); break;
+                case 2: decodeIA4Row(data, blk, image, width, by, rows); break;
+                case 3: decodeIA8Row(data, blk, image, width, by, rows); break;
+                case 4: swap16BitRow(data, blk, image, width, by, rows, false); break;
+                case 5:
+                    if (layout == PixelLayout.BGRA8) {
+                        decode16BitRow(data, blk, image, width, by, rows, RGB5A3_LUT);
                     }
-                    break;
-
-                case 6: // RGBA32
-                    {
-                        image = new byte[width * height * 4];
-
-                        for (int by = 0; by < height; by += 4) {
-                            for (int bx = 0; bx < width; bx += 4) {
-                                for (int y = 0; y < 4; y++) {
-                                    for (int x = 0; x < 4; x++) {
-                                        byte a = file.readByte();
-                                        byte r = file.readByte();
-
-                                        int outp = (((by + y) * width) + (bx + x)) * 4;
-                                        image[outp+3] = a;
-                                        image[outp+2] = r;
-                                    }
-                                }
-                                for (int y = 0; y < 4; y++) {
-                                    for (int x = 0; x < 4; x++) {
-                                        byte g = file.readByte();
-                                        byte b = file.readByte();
-
-                                        int outp = (((by + y) * width) + (bx + x)) * 4;
-                                        image[outp+1] = g;
-                                        image[outp  ] = b;
-                                    }
-                                }
-                            }
-                        }
+                    else {
+                        swap16BitRow(data, blk, image, width, by, rows, layout == PixelLayout.ARGB4444);
                     }
                     break;
-
-                case 14: // CMPR
-                    {
-                        image = new byte[width * height * 4];
-
-                        for (int by = 0; by < height; by += 8) {
-                            for (int bx = 0; bx < width; bx += 8) {
-                                for (int sby = 0; sby < 8; sby += 4) {
-                                    for (int sbx = 0; sbx < 8; sbx += 4) {
-                                        int c1 = file.readShort() & 0xFFFF;
-                                        int c2 = file.readShort() & 0xFFFF;
-                                        int block = file.readInt();
-
-                                        int r1 = (c1 & 0xF800) >>> 8;
-                                        int g1 = (c1 & 0x07E0) >>> 3;
-                                        int b1 = (c1 & 0x001F) << 3;
-                                        int r2 = (c2 & 0xF800) >>> 8;
-                                        int g2 = (c2 & 0x07E0) >>> 3;
-                                        int b2 = (c2 & 0x001F) << 3;
-
-                                        int[][] colors = new int[4][4];
-                                        colors[0][0] = 255; colors[0][1] = r1; colors[0][2] = g1; colors[0][3] = b1;
-                                        colors[1][0] = 255; colors[1][1] = r2; colors[1][2] = g2; colors[1][3] = b2;
-                                        if (c1 > c2) {
-                                            int r3 = ((r1 << 1) + r2) / 3;
-                                            int g3 = ((g1 << 1) + g2) / 3;
-                                            int b3 = ((b1 << 1) + b2) / 3;
-
-                                            int r4 = (r1 + (r2 << 1)) / 3;
-                                            int g4 = (g1 + (g2 << 1)) / 3;
-                                            int b4 = (b1 + (b2 << 1)) / 3;
-
-                                            colors[2][0] = 255; colors[2][1] = r3; colors[2][2] = g3; colors[2][3] = b3;
-                                            colors[3][0] = 255; colors[3][1] = r4; colors[3][2] = g4; colors[3][3] = b4;
-                                        }
-                                        else {
-                                            colors[2][0] = 255;
-                                            colors[2][1] = ((r1 + r2) / 2);
-                                            colors[2][2] = ((g1 + g2) / 2);
-                                            colors[2][3] = ((b1 + b2) / 2);
-                                            colors[3][0] = 0; colors[3][1] = r2; colors[3][2] = g2; colors[3][3] = b2;
-                                        }
-
-                                        for (int y = 0; y < 4; y++) {
-                                            for (int x = 0; x < 4; x++) {
-                                                int c = block >>> 30;
-                                                int outp = (((by + sby + y) * width) + (bx + sbx + x)) * 4;
-                                                image[outp++] = (byte)(colors[c][3] | (colors[c][3] >>> 5));
-                                                image[outp++] = (byte)(colors[c][2] | (colors[c][2] >>> 5));
-                                                image[outp++] = (byte)(colors[c][1] | (colors[c][1] >>> 5));
-                                                image[outp  ] = (byte)colors[c][0];
-                                                block <<= 2;
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                case 6: decodeRGBA32Row(data, blk, image, width, by, rows); break;
+                case 14: untileCmprRow(data, blk, image, width, by, rows); break;
+            }
+        }
+    }
+    
+    private static void decodeI4Row(byte[] data, int blk, byte[] image, int width, int by, int rows) {
+        for (int bx = 0; bx < width; bx += 8, blk += 32) {
+            int cols = Math.min(8, width - bx);
+            
+            for (int y = 0; y < rows; y++) {
+                int inp = blk + y * 4, outp = (by + y) * width + bx;
+                
+                for (int x = 0; x < cols; x += 2) {
+                    int b = data[inp++] & 0xFF;
+                    image[outp++] = (byte)((b >>> 4) * 0x11);
+                    
+                    if (x + 1 < cols) {
+                        image[outp++] = (byte)((b & 0xF) * 0x11);
                     }
-                    break;
-
-                default: 
-                    {
-                        System.out.println(String.format("Unsupported texture type %1$d, generating solid color texture instead", format));
-                        
-                        image = new byte[width * height * 4];
-                        for (int i = 0; i < width * height; i++) {
-                            int outp = i * 4;
-                            image[outp++] = (byte)255;
-                            image[outp++] = (byte)0;
-                            image[outp++] = (byte)255;
-                            image[outp  ] = (byte)255;
-                        }
+                }
+            }
+        }
+    }
+    
+    private static void decodeI8Row(byte[] data, int blk, byte[] image, int width, int by, int rows) {
+        for (int bx = 0; bx < width; bx += 8, blk += 32) {
+            int cols = Math.min(8, width - bx);
+            
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(data, blk + y * 8, image, (by + y) * width + bx, cols);
+            }
+        }
+    }
+    
+    private static void decodeIA4Row(byte[] data, int blk, byte[] image, int width, int by, int rows) {
+        for (int bx = 0; bx < width; bx += 8, blk += 32) {
+            int cols = Math.min(8, width - bx);
+            
+            for (int y = 0; y < rows; y++) {
+                int inp = blk + y * 8, outp = ((by + y) * width + bx) * 2;
+                
+                for (int x = 0; x < cols; x++) {
+                    int b = data[inp++] & 0xFF;
+                    image[outp++] = (byte)((b & 0xF) * 0x11);
+                    image[outp++] = (byte)((b >>> 4) * 0x11);
+                }
+            }
+        }
+    }
+    
+    private static void decodeIA8Row(byte[] data, int blk, byte[] image, int width, int by, int rows) {
+        for (int bx = 0; bx < width; bx += 4, blk += 32) {
+            int cols = Math.min(4, width - bx);
+            
+            for (int y = 0; y < rows; y++) {
+                int inp = blk + y * 8, outp = ((by + y) * width + bx) * 2;
+                
+                for (int x = 0; x < cols; x++) {
+                    byte a = data[inp++];
+                    image[outp++] = data[inp++];
+                    image[outp++] = a;
+                }
+            }
+        }
+    }
+    
+    private static void decode16BitRow(byte[] data, int blk, byte[] image, int width, int by, int rows, int[] lut) {
+        for (int bx = 0; bx < width; bx += 4, blk += 32) {
+            int cols = Math.min(4, width - bx);
+            
+            for (int y = 0; y < rows; y++) {
+                int inp = blk + y * 8, outp = ((by + y) * width + bx) * 4;
+                
+                for (int x = 0; x < cols; x++, inp += 2, outp += 4) {
+                    putBGRA(image, outp, lut[((data[inp] & 0xFF) << 8) | (data[inp + 1] & 0xFF)]);
+                }
+            }
+        }
+    }
+    
+    // Copies 16-bit texels as little-endian, optionally widening RGB4A3 alpha, which is either 0 or 7, to four bits
+    private static void swap16BitRow(byte[] data, int blk, byte[] image, int width, int by, int rows, boolean rgb4a3) {
+        for (int bx = 0; bx < width; bx += 4, blk += 32) {
+            int cols = Math.min(4, width - bx);
+            
+            for (int y = 0; y < rows; y++) {
+                int inp = blk + y * 8, outp = ((by + y) * width + bx) * 2;
+                
+                for (int x = 0; x < cols; x++, inp += 2, outp += 2) {
+                    int hi = data[inp] & 0xFF;
+                    
+                    if (rgb4a3) {
+                        int a = hi >>> 4;
+                        hi = (((a << 1) | (a >>> 2)) << 4) | (hi & 0xF);
                     }
-                    break;
+                    
+                    image[outp    ] = data[inp + 1];
+                    image[outp + 1] = (byte)hi;
+                }
             }
-
-            ret[mip] = image;
-            width /= 2; height /= 2;
         }
+    }
+    
+    // RGBA32 blocks hold the AR pairs of all 16 texels followed by their GB pairs
+    private static void decodeRGBA32Row(byte[] data, int blk, byte[] image, int width, int by, int rows) {
+        for (int bx = 0; bx < width; bx += 4, blk += 64) {
+            int cols = Math.min(4, width - bx);
+            
+            for (int y = 0; y < rows; y++) {
+                int inp = blk + y * 8, outp = ((by + y) * width + bx) * 4;
+                
+                for (int x = 0; x < cols; x++, inp += 2) {
+                    image[outp++] = data[inp + 33];
+                    image[outp++] = data[inp + 32];
+                    image[outp++] = data[inp + 1];
+                    image[outp++] = data[inp    ];
+                }
+            }
+        }
+    }
+    
+    // Reverses the order of the four 2-bit indices in a byte, GX stores the leftmost texel in the top bits
+    private static final byte[] CMPR_INDEX_SWAP = new byte[256];
+    
+    static {
+        for (int i = 0; i < 256; i++) {
+            CMPR_INDEX_SWAP[i] = (byte)(((i >>> 6) & 3) | ((i >>> 2) & 0xC) | ((i << 2) & 0x30) | ((i << 6) & 0xC0));
+        }
+    }
+    
+    // CMPR blocks are 2x2 big-endian DXT1 sub-blocks, these are rearranged into a linear DXT1 image
+    private static void untileCmprRow(byte[] data, int blk, byte[] image, int width, int by, int rows) {
+        int blocksperrow = (width + 3) / 4;
+        
+        for (int bx = 0; bx < width; bx += 8, blk += 32) {
+            for (int sub = 0; sub < 4; sub++) {
+                int sbx = (sub & 1) * 4, sby = (sub >>> 1) * 4;
+                int inp = blk + sub * 8;
+                
+                if (sby >= rows || bx + sbx >= width) {
+                    continue;
+                }
+                
+                int outp = (((by + sby) / 4) * blocksperrow + (bx + sbx) / 4) * 8;
+                image[outp    ] = data[inp + 1];
+                image[outp + 1] = data[inp    ];
+                image[outp + 2] = data[inp + 3];
+                image[outp + 3] = data[inp + 2];
+                
+                for (int y = 0; y < 4; y++) {
+                    image[outp + 4 + y] = CMPR_INDEX_SWAP[data[inp + 4 + y] & 0xFF];
+                }
+            }
+        }
+    }
+    
+    /**
+     * Expands a DXT1 mip level, as decoded from CMPR, to BGRA. This is the fallback
+     * for drivers without S3TC support.
+     */
+    public static byte[] decodeDxt1(byte[] dxt, int width, int height) {
+        byte[] image = new byte[width * height * 4];
+        int[] palette = new int[4];
+        int blocksperrow = (width + 3) / 4;
+        
+        for (int by = 0; by < height; by += 4) {
+            for (int bx = 0; bx < width; bx += 4) {
+                int inp = ((by / 4) * blocksperrow + bx / 4) * 8;
+                
+                decodeCmprPalette((dxt[inp] & 0xFF) | ((dxt[inp + 1] & 0xFF) << 8),
+                        (dxt[inp + 2] & 0xFF) | ((dxt[inp + 3] & 0xFF) << 8), palette);
+                
+                for (int y = 0; y < Math.min(4, height - by); y++) {
+                    int bits = dxt[inp + 4 + y] & 0xFF;
+                    int outp = ((by + y) * width + bx) * 4;
+                    
+                    for (int x = 0; x < Math.min(4, width - bx); x++, outp += 4) {
+                        putBGRA(image, outp, palette[(bits >>> (x * 2)) & 3]);
+                    }
+                }
+            }
+        }
+        
+        return image;
+    }
+    
+    private static void putBGRA(byte[] image, int outp, int bgra) {
+        image[outp    ] = (byte)bgra;
+        image[outp + 1] = (byte)(bgra >>> 8);
+        image[outp + 2] = (byte)(bgra >>> 16);
+        image[outp + 3] = (byte)(bgra >>> 24);
+    }
+    
+    private static void decodeCmprPalette(int c1, int c2, int[] palette) {
+        int r1 = (c1 & 0xF800) >>> 8, g1 = (c1 & 0x07E0) >>> 3, b1 = (c1 & 0x001F) << 3;
+        int r2 = (c2 & 0xF800) >>> 8, g2 = (c2 & 0x07E0) >>> 3, b2 = (c2 & 0x001F) << 3;
         
-        return ret;
+        palette[0] = cmprColor(r1, g1, b1, 255);
+        palette[1] = cmprColor(r2, g2, b2, 255);
+        
+        if (c1 > c2) {
+            palette[2] = cmprColor(((r1 << 1) + r2) / 3, ((g1 << 1) + g2) / 3, ((b1 << 1) + b2) / 3, 255);
+            palette[3] = cmprColor((r1 + (r2 << 1)) / 3, (g1 + (g2 << 1)) / 3, (b1 + (b2 << 1)) / 3, 255);
+        }
+        else {
+            palette[2] = cmprColor((r1 + r2) / 2, (g1 + g2) / 2, (b1 + b2) / 2, 255);
+            palette[3] = cmprColor(r2, g2, b2, 0);
+        }
+    }
+    
+    private static int cmprColor(int r, int g, int b, int a) {
+        return packBGRA(b | (b >>> 5), g | (g >>> 5), r | (r >>> 5), a);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,818 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.smg;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.zip.CRC32C;
+import whitehole.Whitehole;
+import whitehole.io.ExternalFilesystem;
+import whitehole.io.FilesystemBase;
+import whitehole.math.Matrix4;
+import whitehole.math.Vec3f;
+
+/**
+ * Persistent cache of parsed models. Each entry holds a model's {@link Bmd} (geometry, materials and decoded
+ * texture mips) and its visibility animation, and is keyed by the source archive's path, size, modification
+ * time and content hash. Entries are big-endian with 4-byte aligned arrays so they can be read straight from
+ * a memory-mapped file.
+ */
+public final class ModelCache {
+    private ModelCache() {}
+    
+    private static final int MAGIC = 0x57484D43; // WHMC
+    private static final int VERSION = 4;
+    private static final File CACHE_DIR = new File("data/cache/models");
+    
+    public static class Entry {
+        public Bmd model;
+        public Bva animation;
+    }
+    
+    /**
+     * Returns the cached model {@code modelName} from archive {@code arcPath}, or null if there is no
+     * up-to-date entry.
+     */
+    public static Entry load(String arcPath, String modelName) {
+        File source = getSourceFile(arcPath);
+        
+        if (source == null) {
+            return null;
+        }
+        
+        File cacheFile = getCacheFile(arcPath, modelName);
+        
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            // Validate the key with a plain read first, only map entries that are actually usable
+            ByteBuffer header = ByteBuffer.allocate(32);
+            channel.read(header, 0);
+            header.flip();
+            
+            if (header.remaining() < 32 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+            
+            long size = header.getLong();
+            long mtime = header.getLong();
+            long hash = header.getLong();
+            
+            if (size != source.length() || mtime != source.lastModified() || hash != calcContentHash(source)) {
+                return null;
+            }
+            
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.position(32);
+            
+            if (!readString(buf).equals(arcPath) || !readString(buf).equals(modelName)) {
+                return null;
+            }
+            
+            Entry entry = new Entry();
+            entry.model = readBmd(buf);
+            entry.animation = buf.get() != 0 ? readBva(buf) : null;
+            return entry;
+        }
+        catch (IOException | RuntimeException ex) {
+            System.err.println("Could not read cached model " + modelName + ": " + ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Stores a freshly parsed model. Failures are logged and otherwise ignored, the cache is only an optimization.
+     */
+    public static void store(String arcPath, String modelName, Bmd model, Bva animation) {
+        File source = getSourceFile(arcPath);
+        
+        if (source == null || model == null) {
+            return;
+        }
+        
+        File cacheFile = getCacheFile(arcPath, modelName);
+        File tempFile = new File(cacheFile.getPath() + ".tmp" + Thread.currentThread().getId());
+        
+        try {
+            CACHE_DIR.mkdirs();
+            
+            try (CacheWriter out = new CacheWriter(new BufferedOutputStream(new FileOutputStream(tempFile), 0x10000))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(source.length());
+                out.writeLong(source.lastModified());
+                out.writeLong(calcContentHash(source));
+                out.writeString(arcPath);
+                out.writeString(modelName);
+                
+                writeBmd(out, model);
+                
+                out.writeByte(animation != null ? 1 : 0);
+                if (animation != null) {
+                    writeBva(out, animation);
+                }
+            }
+            
+            try {
+                Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException ex) {
+            System.err.println("Could not cache model " + modelName + ": " + ex);
+            tempFile.delete();
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Keys
+    
+    private static File getSourceFile(String arcPath) {
+        FilesystemBase filesystem = Whitehole.getCurrentGameFileSystem();
+        
+        if (!(filesystem instanceof ExternalFilesystem) || !filesystem.fileExists(arcPath)) {
+            return null;
+        }
+        
+        return new File(((ExternalFilesystem)filesystem).getFileName(arcPath));
+    }
+    
+    private static File getCacheFile(String arcPath, String modelName) {
+        String key = arcPath + "|" + modelName;
+        String safeName = modelName.replaceAll("[^A-Za-z0-9_\\-]", "_");
+        return new File(CACHE_DIR, String.format("%s_%08X.bin", safeName, key.hashCode()));
+    }
+    
+    private static long calcContentHash(File source) throws IOException {
+        // Hash the compressed archive, that is far cheaper than decompressing and parsing it
+        CRC32C crc = new CRC32C();
+        crc.update(Files.readAllBytes(source.toPath()));
+        return (source.length() << 32) | crc.getValue();
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Writing
+    
+    private static class CacheWriter extends DataOutputStream {
+        CacheWriter(OutputStream out) {
+            super(out);
+        }
+        
+        void align() throws IOException {
+            while ((size() & 3) != 0) {
+                writeByte(0);
+            }
+        }
+        
+        void writeString(String val) throws IOException {
+            byte[] bytes = val.getBytes("UTF-8");
+            writeInt(bytes.length);
+            write(bytes);
+            align();
+        }
+        
+        void writeBytes(byte[] val) throws IOException {
+            writeInt(val != null ? val.length : -1);
+            
+            if (val != null) {
+                write(val);
+                align();
+            }
+        }
+        
+        void writeShorts(short[] val) throws IOException {
+            writeInt(val != null ? val.length : -1);
+            
+            if (val != null) {
+                for (short s : val) {
+                    writeShort(s);
+                }
+                align();
+            }
+        }
+        
+        void writeFloats(float[] val) throws IOException {
+            writeInt(val != null ? val.length : -1);
+            
+            if (val != null) {
+                for (float f : val) {
+                    writeFloat(f);
+                }
+            }
+        }
+        
+        void writeVector(Vec3f val) throws IOException {
+            writeFloat(val.x);
+            writeFloat(val.y);
+            writeFloat(val.z);
+        }
+        
+        void writeMatrix(Matrix4 val) throws IOException {
+            writeFloats(val != null ? val.m : null);
+        }
+    }
+    
+    private static void writeBmd(CacheWriter out, Bmd model) throws IOException {
+        out.writeInt(model.numVertices);
+        out.writeInt(model.arrayMask);
+        out.writeVector(model.bboxMin);
+        out.writeVector(model.bboxMax);
+        
+        // INF1
+        out.writeInt(model.sceneGraph.size());
+        for (Bmd.SceneGraphNode node : model.sceneGraph) {
+            out.writeShort(node.materialID);
+            out.writeShort(node.nodeID);
+            out.writeInt(node.parentIndex);
+            out.writeInt(node.nodeType);
+        }
+        
+        // VTX1
+        out.writeFloats(model.positions);
+        out.writeFloats(model.normals);
+        for (float[] colors : model.colors) {
+            out.writeFloats(colors);
+        }
+        for (float[] texcoords : model.texcoords) {
+            out.writeFloats(texcoords);
+        }
+        
+        // SHP1
+        out.writeInt(model.batches.length);
+        for (Bmd.Batch batch : model.batches) {
+            out.writeInt(batch.matrixType);
+            out.writeFloat(batch.unk);
+            out.writeInt(batch.arrayMask);
+            out.writeInt(batch.vertexStride);
+            out.writeBytes(batch.attribs);
+            out.writeBytes(batch.attribOffsets);
+            
+            out.writeInt(batch.packets.length);
+            for (Bmd.Batch.Packet packet : batch.packets) {
+                out.writeInt(packet.numVertices);
+                out.writeShorts(packet.matrixTable);
+                out.writeShorts(packet.indices);
+                
+                out.writeInt(packet.primitives.size());
+                for (Bmd.Batch.Packet.Primitive prim : packet.primitives) {
+                    out.writeInt(prim.primitiveType);
+                    out.writeInt(prim.numIndices);
+                    out.writeInt(prim.firstVertex);
+                }
+            }
+        }
+        
+        // EVP1
+        out.writeInt(model.multiMatrix != null ? model.multiMatrix.length : -1);
+        if (model.multiMatrix != null) {
+            for (Bmd.MultiMatrix mm : model.multiMatrix) {
+                out.writeInt(mm.numMatrices);
+                out.writeShorts(mm.matrixIndices);
+                out.writeFloats(mm.matrixWeights);
+                for (Matrix4 mtx : mm.matrices) {
+                    out.writeMatrix(mtx);
+                }
+            }
+        }
+        
+        // DRW1
+        out.writeInt(model.matrixTypes != null ? model.matrixTypes.length : -1);
+        if (model.matrixTypes != null) {
+            for (Bmd.MatrixType mt : model.matrixTypes) {
+                out.writeInt(mt.isWeighted ? 1 : 0);
+                out.writeInt(mt.index);
+            }
+        }
+        
+        // JNT1
+        out.writeInt(model.joints.length);
+        for (Bmd.Joint jnt : model.joints) {
+            out.writeInt(jnt.unk1);
+            out.writeInt(jnt.unk2);
+            out.writeVector(jnt.scale);
+            out.writeVector(jnt.rotation);
+            out.writeVector(jnt.translation);
+            out.writeMatrix(jnt.matrix);
+            out.writeMatrix(jnt.finalMatrix);
+        }
+        
+        // MAT3
+        out.writeInt(model.materials.length);
+        for (Bmd.Material mat : model.materials) {
+            writeMaterial(out, mat);
+        }
+        
+        // TEX1
+        out.writeInt(model.textures.length);
+        for (Bmd.Texture tex : model.textures) {
+            out.writeInt(tex.format);
+            out.writeInt(tex.width);
+            out.writeInt(tex.height);
+            out.writeByte(tex.wrapS);
+            out.writeByte(tex.wrapT);
+            out.writeByte(tex.paletteFormat);
+            out.writeByte(tex.minFilter);
+            out.writeByte(tex.magFilter);
+            out.writeByte(tex.mipmapCount);
+            out.writeByte(tex.layout.ordinal());
+            out.align();
+            out.writeBytes(tex.palette);
+            
+            for (int i = 0 ; i < tex.mipmapCount ; i++) {
+                out.writeBytes(tex.image[i]);
+            }
+        }
+    }
+    
+    private static void writeMaterial(CacheWriter out, Bmd.Material mat) throws IOException {
+        out.writeString(mat.name);
+        out.writeByte(mat.drawFlag);
+        out.writeByte(mat.cullMode);
+        out.writeByte(mat.numChans);
+        out.writeByte(mat.numTexgens);
+        out.writeByte(mat.numTevStages);
+        
+        out.writeBoolean(mat.zMode.enableZTest);
+        out.writeByte(mat.zMode.func);
+        out.writeBoolean(mat.zMode.enableZWrite);
+        
+        for (Bmd.Material.TexGenInfo texgen : mat.texGen) {
+            out.writeByte(texgen.type);
+            out.writeByte(texgen.src);
+            out.writeByte(texgen.matrix);
+        }
+        out.align();
+        
+        for (Bmd.Material.TexMtxInfo texmtx : mat.texMtx) {
+            out.writeByte(texmtx.proj);
+            out.writeByte(texmtx.type);
+            out.writeShort(texmtx.padding);
+            out.writeFloat(texmtx.centerS);
+            out.writeFloat(texmtx.centerT);
+            out.writeFloat(texmtx.unkf0);
+            out.writeFloat(texmtx.scaleS);
+            out.writeFloat(texmtx.scaleT);
+            out.writeShort(texmtx.rotate);
+            out.writeShort(texmtx.padding2);
+            out.writeFloat(texmtx.transS);
+            out.writeFloat(texmtx.transT);
+            out.writeMatrix(texmtx.preMatrix);
+            out.writeMatrix(texmtx.basicMatrix);
+        }
+        
+        out.writeShorts(mat.texStages);
+        
+        for (Bmd.Material.ColorInfo color : mat.constColors) {
+            out.writeInt(color.r); out.writeInt(color.g); out.writeInt(color.b); out.writeInt(color.a);
+        }
+        
+        out.writeBytes(mat.constColorSel);
+        out.writeBytes(mat.constAlphaSel);
+        
+        for (Bmd.Material.TevOrderInfo order : mat.tevOrder) {
+            out.writeByte(order.texcoordID);
+            out.writeByte(order.texMap);
+            out.writeByte(order.chanID);
+        }
+        out.align();
+        
+        for (Bmd.Material.ColorInfo color : mat.colorS10) {
+            out.writeInt(color.r); out.writeInt(color.g); out.writeInt(color.b); out.writeInt(color.a);
+        }
+        
+        for (Bmd.Material.TevStageInfo stage : mat.tevStage) {
+            out.write(stage.colorIn);
+            out.writeByte(stage.colorOp);
+            out.writeByte(stage.colorBias);
+            out.writeByte(stage.colorScale);
+            out.writeByte(stage.colorClamp);
+            out.writeByte(stage.colorRegID);
+            out.write(stage.alphaIn);
+            out.writeByte(stage.alphaOp);
+            out.writeByte(stage.alphaBias);
+            out.writeByte(stage.alphaScale);
+            out.writeByte(stage.alphaClamp);
+            out.writeByte(stage.alphaRegID);
+        }
+        
+        for (Bmd.Material.TevSwapModeInfo swap : mat.tevSwapMode) {
+            out.writeByte(swap.rasSel);
+            out.writeByte(swap.texSel);
+        }
+        
+        for (Bmd.Material.TevSwapModeTable table : mat.tevSwapTable) {
+            out.writeByte(table.r); out.writeByte(table.g); out.writeByte(table.b); out.writeByte(table.a);
+        }
+        
+        out.writeByte(mat.alphaComp.func0);
+        out.writeByte(mat.alphaComp.func1);
+        out.writeByte(mat.alphaComp.ref0);
+        out.writeByte(mat.alphaComp.ref1);
+        out.writeByte(mat.alphaComp.mergeFunc);
+        
+        out.writeByte(mat.blendMode.blendMode);
+        out.writeByte(mat.blendMode.srcFactor);
+        out.writeByte(mat.blendMode.dstFactor);
+        out.writeByte(mat.blendMode.blendOp);
+        out.align();
+    }
+    
+    private static void writeBva(CacheWriter out, Bva bva) throws IOException {
+        out.writeInt(bva.loopMode);
+        out.writeInt(bva.duration);
+        out.writeInt(bva.getBatchCount());
+        
+        for (int i = 0 ; i < bva.getBatchCount() ; i++) {
+            out.writeInt(bva.frameCounts[i]);
+            
+            for (long bits : bva.frameBits[i]) {
+                out.writeLong(bits);
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Reading
+    
+    private static void align(ByteBuffer buf) {
+        buf.position((buf.position() + 3) & ~3);
+    }
+    
+    private static String readString(ByteBuffer buf) throws IOException {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        align(buf);
+        return new String(bytes, "UTF-8");
+    }
+    
+    private static byte[] readBytes(ByteBuffer buf) {
+        int len = buf.getInt();
+        
+        if (len < 0) {
+            return null;
+        }
+        
+        byte[] ret = new byte[len];
+        buf.get(ret);
+        align(buf);
+        return ret;
+    }
+    
+    private static short[] readShorts(ByteBuffer buf) {
+        int len = buf.getInt();
+        
+        if (len < 0) {
+            return null;
+        }
+        
+        short[] ret = new short[len];
+        buf.asShortBuffer().get(ret);
+        buf.position(buf.position() + len * 2);
+        align(buf);
+        return ret;
+    }
+    
+    private static float[] readFloats(ByteBuffer buf) {
+        int len = buf.getInt();
+        
+        if (len < 0) {
+            return null;
+        }
+        
+        float[] ret = new float[len];
+        buf.asFloatBuffer().get(ret);
+        buf.position(buf.position() + len * 4);
+        return ret;
+    }
+    
+    private static Vec3f readVector(ByteBuffer buf) {
+        return new Vec3f(buf.getFloat(), buf.getFloat(), buf.getFloat());
+    }
+    
+    private static Matrix4 readMatrix(ByteBuffer buf) {
+        float[] m = readFloats(buf);
+        
+        if (m == null) {
+            return null;
+        }
+        
+        Matrix4 ret = new Matrix4();
+        ret.m = m;
+        return ret;
+    }
+    
+    private static Bmd readBmd(ByteBuffer buf) throws IOException {
+        Bmd model = new Bmd();
+        
+        model.numVertices = buf.getInt();
+        model.arrayMask = buf.getInt();
+        model.bboxMin = readVector(buf);
+        model.bboxMax = readVector(buf);
+        
+        // INF1
+        int numnodes = buf.getInt();
+        model.sceneGraph = new ArrayList(numnodes);
+        for (int i = 0 ; i < numnodes ; i++) {
+            Bmd.SceneGraphNode node = model.new SceneGraphNode();
+            node.materialID = buf.getShort();
+            node.nodeID = buf.getShort();
+            node.parentIndex = buf.getInt();
+            node.nodeType = buf.getInt();
+            model.sceneGraph.add(node);
+        }
+        
+        // VTX1
+        model.positions = readFloats(buf);
+        model.normals = readFloats(buf);
+        model.colors = new float[2][];
+        for (int i = 0 ; i < 2 ; i++) {
+            model.colors[i] = readFloats(buf);
+        }
+        model.texcoords = new float[8][];
+        for (int i = 0 ; i < 8 ; i++) {
+            model.texcoords[i] = readFloats(buf);
+        }
+        
+        // SHP1
+        model.batches = new Bmd.Batch[buf.getInt()];
+        for (int i = 0 ; i < model.batches.length ; i++) {
+            Bmd.Batch batch = model.new Batch();
+            model.batches[i] = batch;
+            
+            batch.matrixType = (byte)buf.getInt();
+            batch.unk = buf.getFloat();
+            batch.arrayMask = buf.getInt();
+            batch.vertexStride = buf.getInt();
+            batch.attribs = readBytes(buf);
+            batch.attribOffsets = readBytes(buf);
+            
+            batch.packets = new Bmd.Batch.Packet[buf.getInt()];
+            for (int j = 0 ; j < batch.packets.length ; j++) {
+                Bmd.Batch.Packet packet = batch.new Packet();
+                batch.packets[j] = packet;
+                
+                packet.numVertices = buf.getInt();
+                packet.matrixTable = readShorts(buf);
+                packet.indices = readShorts(buf);
+                
+                int numprims = buf.getInt();
+                packet.primitives = new ArrayList(numprims);
+                for (int k = 0 ; k < numprims ; k++) {
+                    Bmd.Batch.Packet.Primitive prim = packet.new Primitive();
+                    prim.primitiveType = buf.getInt();
+                    prim.numIndices = buf.getInt();
+                    prim.firstVertex = buf.getInt();
+                    packet.primitives.add(prim);
+                }
+            }
+        }
+        
+        // EVP1
+        int nummultimatrices = buf.getInt();
+        if (nummultimatrices >= 0) {
+            model.multiMatrix = new Bmd.MultiMatrix[nummultimatrices];
+            for (int i = 0 ; i < nummultimatrices ; i++) {
+                Bmd.MultiMatrix mm = model.new MultiMatrix();
+                model.multiMatrix[i] = mm;
+                
+                mm.numMatrices = buf.getInt();
+                mm.matrixIndices = readShorts(buf);
+                mm.matrixWeights = readFloats(buf);
+                mm.matrices = new Matrix4[mm.numMatrices];
+                for (int j = 0 ; j < mm.numMatrices ; j++) {
+                    mm.matrices[j] = readMatrix(buf);
+                }
+            }
+        }
+        
+        // DRW1
+        int nummatrixtypes = buf.getInt();
+        if (nummatrixtypes >= 0) {
+            model.matrixTypes = new Bmd.MatrixType[nummatrixtypes];
+            for (int i = 0 ; i < nummatrixtypes ; i++) {
+                Bmd.MatrixType mt = model.new MatrixType();
+                model.matrixTypes[i] = mt;
+                
+                mt.isWeighted = buf.getInt() != 0;
+                mt.index = (short)buf.getInt();
+            }
+        }
+        
+        // JNT1
+        model.joints = new Bmd.Joint[buf.getInt()];
+        for (int i = 0 ; i < model.joints.length ; i++) {
+            Bmd.Joint jnt = model.new Joint();
+            model.joints[i] = jnt;
+            
+            jnt.unk1 = (short)buf.getInt();
+            jnt.unk2 = (byte)buf.getInt();
+            jnt.scale = readVector(buf);
+            jnt.rotation = readVector(buf);
+            jnt.translation = readVector(buf);
+            jnt.matrix = readMatrix(buf);
+            jnt.finalMatrix = readMatrix(buf);
+        }
+        
+        // MAT3
+        model.materials = new Bmd.Material[buf.getInt()];
+        for (int i = 0 ; i < model.materials.length ; i++) {
+            model.materials[i] = readMaterial(buf, model);
+        }
+        
+        // TEX1
+        model.textures = new Bmd.Texture[buf.getInt()];
+        for (int i = 0 ; i < model.textures.length ; i++) {
+            Bmd.Texture tex = model.new Texture();
+            model.textures[i] = tex;
+            
+            tex.format = (byte)buf.getInt();
+            tex.width = (short)buf.getInt();
+            tex.height = (short)buf.getInt();
+            tex.wrapS = buf.get();
+            tex.wrapT = buf.get();
+            tex.paletteFormat = buf.get();
+            tex.minFilter = buf.get();
+            tex.magFilter = buf.get();
+            tex.mipmapCount = buf.get();
+            tex.layout = ImageUtils.PixelLayout.values()[buf.get()];
+            align(buf);
+            tex.palette = readBytes(buf);
+            
+            tex.image = new byte[tex.mipmapCount][];
+            for (int j = 0 ; j < tex.mipmapCount ; j++) {
+                tex.image[j] = readBytes(buf);
+            }
+        }
+        
+        return model;
+    }
+    
+    private static Bmd.Material readMaterial(ByteBuffer buf, Bmd model) throws IOException {
+        Bmd.Material mat = model.new Material();
+        
+        mat.name = readString(buf);
+        mat.drawFlag = buf.get();
+        mat.cullMode = buf.get();
+        mat.numChans = buf.get();
+        mat.numTexgens = buf.get();
+        mat.numTevStages = buf.get();
+        
+        mat.zMode = mat.new ZModeInfo();
+        mat.zMode.enableZTest = buf.get() != 0;
+        mat.zMode.func = buf.get();
+        mat.zMode.enableZWrite = buf.get() != 0;
+        
+        mat.texGen = new Bmd.Material.TexGenInfo[mat.numTexgens];
+        for (int i = 0 ; i < mat.numTexgens ; i++) {
+            Bmd.Material.TexGenInfo texgen = mat.new TexGenInfo();
+            mat.texGen[i] = texgen;
+            texgen.type = buf.get();
+            texgen.src = buf.get();
+            texgen.matrix = buf.get();
+        }
+        align(buf);
+        
+        mat.texMtx = new Bmd.Material.TexMtxInfo[10];
+        for (int i = 0 ; i < 10 ; i++) {
+            Bmd.Material.TexMtxInfo texmtx = mat.new TexMtxInfo();
+            mat.texMtx[i] = texmtx;
+            texmtx.proj = buf.get();
+            texmtx.type = buf.get();
+            texmtx.padding = buf.getShort();
+            texmtx.centerS = buf.getFloat();
+            texmtx.centerT = buf.getFloat();
+            texmtx.unkf0 = buf.getFloat();
+            texmtx.scaleS = buf.getFloat();
+            texmtx.scaleT = buf.getFloat();
+            texmtx.rotate = buf.getShort();
+            texmtx.padding2 = buf.getShort();
+            texmtx.transS = buf.getFloat();
+            texmtx.transT = buf.getFloat();
+            texmtx.preMatrix = readMatrix(buf);
+            texmtx.basicMatrix = readMatrix(buf);
+        }
+        
+        mat.texStages = readShorts(buf);
+        
+        mat.constColors = new Bmd.Material.ColorInfo[4];
+        for (int i = 0 ; i < 4 ; i++) {
+            mat.constColors[i] = readColor(buf, mat);
+        }
+        
+        mat.constColorSel = readBytes(buf);
+        mat.constAlphaSel = readBytes(buf);
+        
+        mat.tevOrder = new Bmd.Material.TevOrderInfo[mat.numTevStages];
+        for (int i = 0 ; i < mat.numTevStages ; i++) {
+            Bmd.Material.TevOrderInfo order = mat.new TevOrderInfo();
+            mat.tevOrder[i] = order;
+            order.texcoordID = buf.get();
+            order.texMap = buf.get();
+            order.chanID = buf.get();
+        }
+        align(buf);
+        
+        mat.colorS10 = new Bmd.Material.ColorInfo[4];
+        for (int i = 0 ; i < 4 ; i++) {
+            mat.colorS10[i] = readColor(buf, mat);
+        }
+        
+        mat.tevStage = new Bmd.Material.TevStageInfo[mat.numTevStages];
+        for (int i = 0 ; i < mat.numTevStages ; i++) {
+            Bmd.Material.TevStageInfo stage = mat.new TevStageInfo();
+            mat.tevStage[i] = stage;
+            stage.colorIn = new byte[4];
+            buf.get(stage.colorIn);
+            stage.colorOp = buf.get();
+            stage.colorBias = buf.get();
+            stage.colorScale = buf.get();
+            stage.colorClamp = buf.get();
+            stage.colorRegID = buf.get();
+            stage.alphaIn = new byte[4];
+            buf.get(stage.alphaIn);
+            stage.alphaOp = buf.get();
+            stage.alphaBias = buf.get();
+            stage.alphaScale = buf.get();
+            stage.alphaClamp = buf.get();
+            stage.alphaRegID = buf.get();
+        }
+        
+        mat.tevSwapMode = new Bmd.Material.TevSwapModeInfo[mat.numTevStages];
+        for (int i = 0 ; i < mat.numTevStages ; i++) {
+            Bmd.Material.TevSwapModeInfo swap = mat.new TevSwapModeInfo();
+            mat.tevSwapMode[i] = swap;
+            swap.rasSel = buf.get();
+            swap.texSel = buf.get();
+        }
+        
+        mat.tevSwapTable = new Bmd.Material.TevSwapModeTable[4];
+        for (int i = 0 ; i < 4 ; i++) {
+            Bmd.Material.TevSwapModeTable table = mat.new TevSwapModeTable();
+            mat.tevSwapTable[i] = table;
+            table.r = buf.get(); table.g = buf.get(); table.b = buf.get(); table.a = buf.get();
+        }
+        
+        mat.alphaComp = mat.new AlphaCompInfo();
+        mat.alphaComp.func0 = buf.get();
+        mat.alphaComp.func1 = buf.get();
+        mat.alphaComp.ref0 = buf.get() & 0xFF;
+        mat.alphaComp.ref1 = buf.get() & 0xFF;
+        mat.alphaComp.mergeFunc = buf.get();
+        
+        mat.blendMode = mat.new BlendModeInfo();
+        mat.blendMode.blendMode = buf.get();
+        mat.blendMode.srcFactor = buf.get();
+        mat.blendMode.dstFactor = buf.get();
+        mat.blendMode.blendOp = buf.get();
+        align(buf);
+        
+        return mat;
+    }
+    
+    private static Bmd.Material.ColorInfo readColor(ByteBuffer buf, Bmd.Material mat) {
+        Bmd.Material.ColorInfo color = mat.new ColorInfo();
+        color.r = buf.getInt(); color.g = buf.getInt(); color.b = buf.getInt(); color.a = buf.getInt();
+        return color;
+    }
+    
+    private static Bva readBva(ByteBuffer buf) {
+        int loopmode = buf.getInt();
+        int duration = buf.getInt();
+        int numbatches = buf.getInt();
+        int[] framecounts = new int[numbatches];
+        long[][] framebits = new long[numbatches][];
+        
+        for (int i = 0 ; i < numbatches ; i++) {
+            framecounts[i] = buf.getInt();
+            framebits[i] = new long[(framecounts[i] + 63) >>> 6];
+            
+            for (int j = 0 ; j < framebits[i].length ; j++) {
+                framebits[i][j] = buf.getLong();
+            }
+        }
+        
+        return new Bva(loopmode, duration, framecounts, framebits);
+    }
+}
@@ -18,7 +18,9 @@ package whitehole.smg;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import whitehole.Whitehole;
+import whitehole.io.FileBase;
 import whitehole.io.FilesystemBase;
 import whitehole.io.RarcFile;
 import whitehole.smg.object.AbstractObj;
@@ -37,6 +39,14 @@ import whitehole.smg.object.StageObj;
 import whitehole.smg.object.StartObj;
 
 public class StageArchive {
+    // Shared by all zones, placement files are small so a fixed pool is enough
+    private static final ExecutorService LOADER_POOL = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "StageArchive loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+    
     // IO stuff
     public final GalaxyArchive galaxy;
     public final String stageName;
@@ -118,39 +128,44 @@ public class StageArchive {
                 }
             }*/
             
-            loadLayeredZones();
             loadPaths();
             
-            loadLayeredObjects(mapArc, "Placement", "ObjInfo");
-            loadLayeredObjects(mapArc, "MapParts", "MapPartsInfo");
-            loadLayeredObjects(mapArc, "Placement", "AreaObjInfo");
-            loadLayeredObjects(mapArc, "Placement", "CameraCubeInfo");
-            loadLayeredObjects(mapArc, "Placement", "PlanetObjInfo");
-            loadLayeredObjects(mapArc, "Placement", "DemoObjInfo");
-            loadLayeredObjects(mapArc, "Start", "StartInfo");
-            loadLayeredObjects(mapArc, "GeneralPos", "GeneralPosInfo");
-            loadLayeredObjects(mapArc, "Debug", "DebugMoveInfo");
+            // Collect every placement file first, then decode them all on the worker pool
+            List<PlacementJob> jobs = new ArrayList(128);
+            loadLayeredZones(jobs);
+            
+            loadLayeredObjects(jobs, mapArc, "Placement", "ObjInfo");
+            loadLayeredObjects(jobs, mapArc, "MapParts", "MapPartsInfo");
+            loadLayeredObjects(jobs, mapArc, "Placement", "AreaObjInfo");
+            loadLayeredObjects(jobs, mapArc, "Placement", "CameraCubeInfo");
+            loadLayeredObjects(jobs, mapArc, "Placement", "PlanetObjInfo");
+            loadLayeredObjects(jobs, mapArc, "Placement", "DemoObjInfo");
+            loadLayeredObjects(jobs, mapArc, "Start", "StartInfo");
+            loadLayeredObjects(jobs, mapArc, "GeneralPos", "GeneralPosInfo");
+            loadLayeredObjects(jobs, mapArc, "Debug", "DebugMoveInfo");
             
             if (Whitehole.getCurrentGameType() == 1) {
-                loadLayeredObjects(mapArc, "ChildObj", "ChildObjInfo");
-                loadLayeredObjects(mapArc, "Placement", "SoundInfo");
+                loadLayeredObjects(jobs, mapArc, "ChildObj", "ChildObjInfo");
+                loadLayeredObjects(jobs, mapArc, "Placement", "SoundInfo");
             }
             else {
                 if (soundArc != null) {
-                    loadLayeredObjects(soundArc, "Placement", "ObjInfo");
-                    loadLayeredObjects(soundArc, "Placement", "AreaObjInfo");
+                    loadLayeredObjects(jobs, soundArc, "Placement", "ObjInfo");
+                    loadLayeredObjects(jobs, soundArc, "Placement", "AreaObjInfo");
                 }
                 if (designArc != null) {
-                    loadLayeredObjects(designArc, "Placement", "AreaObjInfo");
+                    loadLayeredObjects(jobs, designArc, "Placement", "AreaObjInfo");
                 }
             }
+            
+            decodePlacementJobs(jobs);
         }
         catch (IOException ex) {
             System.out.println(ex);
         }
     }
     
-    private void loadLayeredObjects(RarcFile archive, String folder, String file) {
+    private void loadLayeredObjects(List<PlacementJob> jobs, RarcFile archive, String folder, String file) {
         String folderPath = "/Stage/jmp/" + folder;
         List<String> layers = archive.getDirectories(folderPath);
         String type = file.toLowerCase();
@@ -173,11 +188,11 @@ public class StageArchive {
             }
             
             String path = String.format("/Stage/jmp/%s/%s/%s", folder, layer, file);
-            loadObjects(archive, path, type, key, objEntries);
+            queueObjects(jobs, archive, path, type, key, objEntries);
         }
     }
     
-    private void loadLayeredZones() {
+    private void loadLayeredZones(List<PlacementJob> jobs) {
         List<String> layers = mapArc.getDirectories("/Stage/jmp/Placement");
         
         for (String layer : layers) {
@@ -186,36 +201,66 @@ public class StageArchive {
             zones.put(key, objEntries);
             
             String path = String.format("/Stage/jmp/Placement/%s/StageObjInfo", layer);
-            loadObjects(mapArc, path, "stageobjinfo", key, objEntries);
+            queueObjects(jobs, mapArc, path, "stageobjinfo", key, objEntries);
         }
     }
     
-    private void loadObjects(RarcFile archive, String path, String type, String layerKey, List list) {
+    private void queueObjects(List<PlacementJob> jobs, RarcFile archive, String path, String type, String layerKey, List list) {
+        // RARC access is not thread-safe, so the file contents are fetched here on the calling thread
         try {
-            Bcsv bcsv = new Bcsv(archive.openFile(path));
-            
-            switch(type) {
-                case "stageobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new StageObj(this, layerKey, e)); } break;
-                case "objinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new LevelObj(this, layerKey, e)); } break;
-                case "mappartsinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new MapPartObj(this, layerKey, e)); } break;
-                case "areaobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new AreaObj(this, layerKey, e)); } break;
-                case "cameracubeinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new CameraObj(this, layerKey, e)); } break;
-                case "planetobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new GravityObj(this, layerKey, e)); } break;
-                case "demoobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new CutsceneObj(this, layerKey, e)); } break;
-                case "childobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new ChildObj(this, layerKey, e)); } break;
-                case "soundinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new SoundObj(this, layerKey, e)); } break;
-                case "startinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new StartObj(this, layerKey, e)); } break;
-                case "generalposinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new PositionObj(this, layerKey, e)); } break;
-                case "debugmoveinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new DebugObj(this, layerKey, e)); } break;
-            }
-            
-            bcsv.close();
+            jobs.add(new PlacementJob(archive.openFile(path), type, layerKey, list));
         }
         catch(IOException ex) {
             System.err.println(ex);
         }
     }
     
+    private void decodePlacementJobs(List<PlacementJob> jobs) {
+        List<Future<List>> results = new ArrayList(jobs.size());
+        
+        for (PlacementJob job : jobs) {
+            results.add(LOADER_POOL.submit(job));
+        }
+        
+        // Merge in submission order so that the object order matches the archive's layer order
+        for (int i = 0 ; i < jobs.size() ; i++) {
+            try {
+                jobs.get(i).target.addAll(results.get(i).get());
+            }
+            catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                System.err.println(ex);
+                return;
+            }
+            catch(ExecutionException ex) {
+                System.err.println(ex.getCause());
+            }
+        }
+    }
+    
+    private List loadObjects(FileBase file, String type, String layerKey) throws IOException {
+        Bcsv bcsv = new Bcsv(file);
+        List list = new ArrayList(bcsv.entries.size());
+
+        switch(type) {
+            case "stageobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new StageObj(this, layerKey, e)); } break;
+            case "objinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new LevelObj(this, layerKey, e)); } break;
+            case "mappartsinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new MapPartObj(this, layerKey, e)); } break;
+            case "areaobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new AreaObj(this, layerKey, e)); } break;
+            case "cameracubeinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new CameraObj(this, layerKey, e)); } break;
+            case "planetobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new GravityObj(this, layerKey, e)); } break;
+            case "demoobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new CutsceneObj(this, layerKey, e)); } break;
+            case "childobjinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new ChildObj(this, layerKey, e)); } break;
+            case "soundinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new SoundObj(this, layerKey, e)); } break;
+            case "startinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new StartObj(this, layerKey, e)); } break;
+            case "generalposinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new PositionObj(this, layerKey, e)); } break;
+            case "debugmoveinfo": for (Bcsv.Entry e : bcsv.entries) { list.add(new DebugObj(this, layerKey, e)); } break;
+        }
+
+        bcsv.close();
+        return list;
+    }
+    
     private void loadPaths() {
         try {
             Bcsv bcsv = new Bcsv(mapArc.openFile("/Stage/jmp/Path/CommonPathInfo"));
@@ -312,4 +357,31 @@ public class StageArchive {
         bcsv.save();
         bcsv.close();
     }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    // Loader jobs
+    
+    private class PlacementJob implements Callable<List> {
+        final FileBase file;
+        final String type, layerKey;
+        final List target;
+        
+        PlacementJob(FileBase file, String type, String layerKey, List target) {
+            this.file = file;
+            this.type = type;
+            this.layerKey = layerKey;
+            this.target = target;
+        }
+        
+        @Override
+        public List call() {
+            try {
+                return loadObjects(file, type, layerKey);
+            }
+            catch(IOException ex) {
+                System.err.println(ex);
+                return Collections.EMPTY_LIST;
+            }
+        }
+    }
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2022 Whitehole Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitehole.smg;
+
+import whitehole.math.Vec3f;
+
+/**
+ * Bounding volume hierarchy over the triangles of a {@link BakedMesh}, used to cast rays against a model on the CPU.
+ * The tree is split at the median of the longest axis and stored in flat arrays, with a node's left child directly
+ * after it. Built once per model, see {@link Bmd#getBvh()}.
+ */
+public class TriangleBvh {
+    private static final int LEAF_SIZE = 4;
+    private static final float EPSILON = 1e-7f;
+    
+    public static class Hit {
+        public float distance; // along the ray direction, in multiples of its length
+        public int batch;
+        public int triangle; // index of the triangle's first vertex in the batch's triangle list
+    }
+    
+    // Per triangle: the corner positions, and where the triangle came from
+    private final float[] corners;
+    private final int[] triBatches, triOffsets;
+    
+    // Per node: min and max, then either the right child (inner nodes) or the first triangle (leaves)
+    private final float[] nodeBounds;
+    private final int[] nodeData, nodeCounts; // count 0 marks inner nodes
+    private int numNodes = 0;
+    
+    private final int[] order; // triangles sorted so that every leaf covers a contiguous range
+    private float[] centroids; // only needed while building
+    
+    TriangleBvh(BakedMesh mesh) {
+        int numtris = 0;
+        for (BakedMesh.Batch batch : mesh.batches) {
+            if (batch.hasAttrib(BakedMesh.ATTRIB_POSITION)) {
+                numtris += batch.triangles.length / 3;
+            }
+        }
+        
+        corners = new float[numtris * 9];
+        triBatches = new int[numtris];
+        triOffsets = new int[numtris];
+        centroids = new float[numtris * 3];
+        order = new int[numtris];
+        
+        int tri = 0;
+        for (int b = 0 ; b < mesh.batches.length ; b++) {
+            BakedMesh.Batch batch = mesh.batches[b];
+            
+            if (!batch.hasAttrib(BakedMesh.ATTRIB_POSITION)) {
+                continue;
+            }
+            
+            int pos = batch.offsets[BakedMesh.ATTRIB_POSITION];
+            
+            for (int i = 0 ; i < batch.triangles.length ; i += 3, tri++) {
+                for (int c = 0 ; c < 3 ; c++) {
+                    int src = batch.triangles[i + c] * batch.stride + pos;
+                    System.arraycopy(batch.vertices, src, corners, tri * 9 + c * 3, 3);
+                }
+                
+                for (int axis = 0 ; axis < 3 ; axis++) {
+                    int base = tri * 9 + axis;
+                    centroids[tri * 3 + axis] = (corners[base] + corners[base + 3] + corners[base + 6]) / 3f;
+                }
+                
+                triBatches[tri] = b;
+                triOffsets[tri] = i;
+                order[tri] = tri;
+            }
+        }
+        
+        int maxnodes = Math.max(1, 2 * numtris);
+        nodeBounds = new float[maxnodes * 6];
+        nodeData = new int[maxnodes];
+        nodeCounts = new int[maxnodes];
+        
+        if (numtris > 0) {
+            build(0, numtris);
+        }
+        
+        centroids = null;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private int build(int first, int count) {
+        int node = numNodes++;
+        float[] bounds = nodeBounds;
+        int b = node * 6;
+        
+        bounds[b] = bounds[b + 1] = bounds[b + 2] = Float.POSITIVE_INFINITY;
+        bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = Float.NEGATIVE_INFINITY;
+        
+        for (int i = first ; i < first + count ; i++) {
+            int base = order[i] * 9;
+            
+            for (int c = 0 ; c < 9 ; c++) {
+                int axis = c % 3;
+                bounds[b + axis] = Math.min(bounds[b + axis], corners[base + c]);
+                bounds[b + 3 + axis] = Math.max(bounds[b + 3 + axis], corners[base + c]);
+            }
+        }
+        
+        if (count <= LEAF_SIZE) {
+            nodeData[node] = first;
+            nodeCounts[node] = count;
+            return node;
+        }
+        
+        // Split at the median centroid along the longest axis
+        float ex = bounds[b + 3] - bounds[b], ey = bounds[b + 4] - bounds[b + 1], ez = bounds[b + 5] - bounds[b + 2];
+        int axis = ex >= ey && ex >= ez ? 0 : ey >= ez ? 1 : 2;
+        int mid = first + count / 2;
+        select(first, first + count - 1, mid, axis);
+        
+        build(first, mid - first);
+        nodeData[node] = build(mid, first + count - mid);
+        nodeCounts[node] = 0;
+        return node;
+    }
+    
+    /**
+     * Partially sorts {@code order[lo..hi]} by centroid so that the element at {@code k} is in its sorted place.
+     */
+    private void select(int lo, int hi, int k, int axis) {
+        while (lo < hi) {
+            float pivot = centroids[order[(lo + hi) >>> 1] * 3 + axis];
+            int i = lo, j = hi;
+            
+            while (i <= j) {
+                while (centroids[order[i] * 3 + axis] < pivot) i++;
+                while (centroids[order[j] * 3 + axis] > pivot) j--;
+                
+                if (i <= j) {
+                    int t = order[i]; order[i] = order[j]; order[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            
+            if (k <= j) {
+                hi = j;
+            }
+            else if (k >= i) {
+                lo = i;
+            }
+            else {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Casts the ray from {@code origin} along {@code dir} and stores the closest hit that is nearer than
+     * {@code hit.distance} in {@code hit}. Returns true if such a hit was found.
+     */
+    public boolean intersect(Vec3f origin, Vec3f dir, Hit hit) {
+        if (numNodes == 0) {
+            return false;
+        }
+        
+        int[] stack = new int[64];
+        int top = 0;
+        boolean found = false;
+        stack[top++] = 0;
+        
+        while (top > 0) {
+            int node = stack[--top];
+            int b = node * 6;
+            
+            if (intersectBox(origin, dir, nodeBounds[b], nodeBounds[b + 1], nodeBounds[b + 2],
+                    nodeBounds[b + 3], nodeBounds[b + 4], nodeBounds[b + 5], hit.distance) < 0f) {
+                continue;
+            }
+            
+            if (nodeCounts[node] == 0) {
+                if (top + 2 > stack.length) {
+                    int[] grown = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, grown, 0, top);
+                    stack = grown;
+                }
+                
+                stack[top++] = nodeData[node];
+                stack[top++] = node + 1;
+                continue;
+            }
+            
+            for (int i = nodeData[node] ; i < nodeData[node] + nodeCounts[node] ; i++) {
+                int tri = order[i];
+                float t = intersectTriangle(origin, dir, tri * 9);
+                
+                if (t >= 0f && t < hit.distance) {
+                    hit.distance = t;
+                    hit.batch = triBatches[tri];
+                    hit.triangle = triOffsets[tri];
+                    found = true;
+                }
+            }
+        }
+        
+        return found;
+    }
+    
+    /**
+     * Möller-Trumbore, both sides count. Returns the distance along the ray, or -1 if it misses.
+     */
+    private float intersectTriangle(Vec3f origin, Vec3f dir, int base) {
+        float[] v = corners;
+        float e1x = v[base + 3] - v[base], e1y = v[base + 4] - v[base + 1], e1z = v[base + 5] - v[base + 2];
+        float e2x = v[base + 6] - v[base], e2y = v[base + 7] - v[base + 1], e2z = v[base + 8] - v[base + 2];
+        
+        float px = dir.y * e2z - dir.z * e2y;
+        float py = dir.z * e2x - dir.x * e2z;
+        float pz = dir.x * e2y - dir.y * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        
+        if (Math.abs(det) < EPSILON) {
+            return -1f;
+        }
+        
+        float inv = 1f / det;
+        float tx = origin.x - v[base], ty = origin.y - v[base + 1], tz = origin.z - v[base + 2];
+        float u = (tx * px + ty * py + tz * pz) * inv;
+        
+        if (u < 0f || u > 1f) {
+            return -1f;
+        }
+        
+        float qx = ty * e1z - tz * e1y;
+        float qy = tz * e1x - tx * e1z;
+        float qz = tx * e1y - ty * e1x;
+        float w = (dir.x * qx + dir.y * qy + dir.z * qz) * inv;
+        
+        if (w < 0f || u + w > 1f) {
+            return -1f;
+        }
+        
+        return (e2x * qx + e2y * qy + e2z * qz) * inv;
+    }
+    
+    /**
+     * Returns the distance along the ray at which it enters the box from {@code min} to {@code max}, 0 if it starts
+     * inside, or -1 if it misses the box or only reaches it beyond {@code maxDistance}.
+     */
+    public static float intersectBox(Vec3f origin, Vec3f dir, Vec3f min, Vec3f max, float maxDistance) {
+        return intersectBox(origin, dir, min.x, min.y, min.z, max.x, max.y, max.z, maxDistance);
+    }
+    
+    private static float intersectBox(Vec3f origin, Vec3f dir, float minx, float miny, float minz,
+            float maxx, float maxy, float maxz, float maxDistance) {
+        float near = 0f, far = maxDistance;
+        
+        float inv = 1f / dir.x;
+        float t0 = (minx - origin.x) * inv, t1 = (maxx - origin.x) * inv;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        
+        inv = 1f / dir.y;
+        t0 = (miny - origin.y) * inv; t1 = (maxy - origin.y) * inv;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        
+        inv = 1f / dir.z;
+        t0 = (minz - origin.z) * inv; t1 = (maxz - origin.z) * inv;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        
+        return near <= far ? near : -1f;
+    }
+}
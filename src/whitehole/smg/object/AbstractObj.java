@@ -27,6 +27,7 @@ import whitehole.smg.Bcsv;
 import whitehole.smg.StageArchive;
 import whitehole.smg.StageHelper;
 import whitehole.util.PropertyGrid;
+import whitehole.math.Matrix4;
 import whitehole.math.Vec3f;
 
 public abstract class AbstractObj {
@@ -318,6 +319,15 @@ public abstract class AbstractObj {
         renderer = null;
     }
     
+    /**
+     * Returns the transform that {@link #render} applies to this object's model.
+     */
+    public Matrix4 getTransform() {
+        Vec3f rot = new Vec3f((float)Math.toRadians(rotation.x), (float)Math.toRadians(rotation.y), (float)Math.toRadians(rotation.z));
+        Vec3f size = renderer == null || renderer.isScaled() ? scale : new Vec3f(1f, 1f, 1f);
+        return Matrix4.SRTToMatrix(size, rot, position);
+    }
+    
     public void render(GLRenderer.RenderInfo info) {
         if (isHidden || renderer == null) {
             return;